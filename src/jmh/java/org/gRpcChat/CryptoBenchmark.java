@@ -0,0 +1,87 @@
+package org.gRpcChat;
+
+import com.google.crypto.tink.HybridDecrypt;
+import com.google.crypto.tink.HybridEncrypt;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.hybrid.HybridConfig;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+//私聊加解密（GRpcClient.post）：每次创建原语、缓存原语的ECIES，以及会话密钥；房间消息的sender key
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CryptoBenchmark {
+    private final static long sender = 1597535;
+    private final static long receiver = 1597536;
+    private final static long room = 1;
+    private final static byte[] contextInfo = new byte[0];
+    private final byte[] plaintext = "hello, how are you?".getBytes(StandardCharsets.UTF_8);
+    private KeysetHandle pk;
+    private KeysetHandle sk;
+    private HybridEncrypt encryptor;
+    private HybridDecrypt decryptor;
+    private byte[] ciphertext;
+    private CryptoEngine alice;
+    private CryptoEngine bob;
+
+    @Setup
+    public void setup() throws Exception {
+        HybridConfig.register();
+        sk = KeysetHandle.generateNew(KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM"));
+        pk = sk.getPublicKeysetHandle();
+        encryptor = pk.getPrimitive(HybridEncrypt.class);
+        decryptor = sk.getPrimitive(HybridDecrypt.class);
+        ciphertext = encryptor.encrypt(plaintext, contextInfo);
+        KeysetHandle aliceSk = KeysetHandle.generateNew(
+                KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM"));
+        alice = new CryptoEngine(aliceSk, contextInfo, 1, 16);
+        bob = new CryptoEngine(sk, contextInfo, 1, 16);
+        alice.getSenderKeys().setMembers(room, List.of(sender, receiver));
+        alice.getSenderKeys().pendingMembers(room, sender, id -> true);
+        bob.getSenderKeys().accept(sender, alice.getSenderKeys().distribution(room));
+    }
+
+    @TearDown
+    public void tearDown() {
+        alice.shutdown();
+        bob.shutdown();
+    }
+
+    //每条消息重新获取原语
+    @Benchmark
+    public byte[] eciesEncryptUncached() throws Exception {
+        return pk.getPrimitive(HybridEncrypt.class).encrypt(plaintext, contextInfo);
+    }
+
+    @Benchmark
+    public byte[] eciesEncrypt() throws Exception {
+        return encryptor.encrypt(plaintext, contextInfo);
+    }
+
+    @Benchmark
+    public byte[] eciesDecrypt() throws Exception {
+        return decryptor.decrypt(ciphertext, contextInfo);
+    }
+
+    //会话消息加密并由接收方解密（会话建立后只有AES-GCM）
+    @Benchmark
+    public byte[] sessionRoundTrip() throws Exception {
+        byte[] envelope = alice.encrypt(sender, receiver, pk, Protocol.FEATURE_SESSION, plaintext);
+        return bob.decrypt(sender, envelope);
+    }
+
+    //房间消息加密一次，由一个成员解密（每个接收者的开销相同）
+    @Benchmark
+    public byte[] senderKeyRoundTrip() throws Exception {
+        byte[] message = alice.getSenderKeys().encrypt(room, sender, plaintext);
+        return bob.getSenderKeys().decrypt(sender, room, message);
+    }
+}
@@ -0,0 +1,56 @@
+package org.gRpcChat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//上线通知群发：按在线人数与协议版本，投递进每个用户的发送队列（stream丢弃消息）
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+    private final static long id = 1597535;
+    @Param({"100", "1000", "10000"})
+    private int users;
+    @Param({"1", "2"})
+    private int version;
+    @Param({"1000000", "256"})
+    private int shardSize;
+    private UserInfo[] recipients;
+    private FanOutEngine engine;
+    private PresenceLog presenceLog;
+
+    @Setup
+    public void setup() {
+        recipients = new UserInfo[users];
+        for (int i = 0; i < users; i++) {
+            UserInfo userInfo = new UserInfo();
+            userInfo.setId(id + i);
+            userInfo.setName("user" + i);
+            userInfo.setPk(GRpcUtil.toByteString("pk" + i));
+            OutboundQueue outbound = new OutboundQueue(new StubStream(), 1024, OutboundQueue.OverflowPolicy.DROP_OLDEST, null);
+            outbound.setVersion(version);
+            userInfo.setOutbound(outbound);
+            userInfo.login();
+            recipients[i] = userInfo;
+        }
+        engine = new FanOutEngine(Runtime.getRuntime().availableProcessors(), shardSize);
+        presenceLog = new PresenceLog(1024);
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    //与GRpcServer登录时相同：生成上线通知并投递给除自己以外的在线用户
+    @Benchmark
+    public long presence() throws Exception {
+        UserInfo user = recipients[0];
+        Frame frame = Protocol.presence(presenceLog.append(true, user), 0);
+        return engine.fanOut(frame, recipients, target -> target == user.getId()).get();
+    }
+}
@@ -0,0 +1,76 @@
+package org.gRpcChat;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.hybrid.HybridConfig;
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+//GRpcUtil：哈希、十六进制编码、加盐以及公钥的序列化/反序列化
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GRpcUtilBenchmark {
+    private byte[] input;
+    private byte[] digest;
+    private String password;
+    private String salt;
+    private KeysetHandle pk;
+    private ByteString pkBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        HybridConfig.register();
+        input = "hello, how are you?".getBytes(StandardCharsets.UTF_8);
+        digest = MessageDigest.getInstance("SHA-256").digest(input);
+        password = "123456";
+        salt = GRpcUtil.getSalt();
+        pk = KeysetHandle.generateNew(KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM"))
+                .getPublicKeysetHandle();
+        pkBytes = GRpcUtil.getKeyByteString(pk);
+    }
+
+    @Benchmark
+    public String sha256() {
+        return GRpcUtil.SHA256(input);
+    }
+
+    @Benchmark
+    public String bytesToHex() {
+        return GRpcUtil.bytesToHex(digest);
+    }
+
+    //登录时的密码校验
+    @Benchmark
+    public String addSalt() {
+        return GRpcUtil.addSalt(password, salt);
+    }
+
+    @Benchmark
+    public ByteString fingerprint() {
+        return GRpcUtil.fingerprint(pkBytes);
+    }
+
+    @Benchmark
+    public ByteString getKeyByteString() throws Exception {
+        return GRpcUtil.getKeyByteString(pk);
+    }
+
+    @Benchmark
+    public KeysetHandle getKeyKeysetHandle() throws Exception {
+        return GRpcUtil.getKeyKeysetHandle(pkBytes);
+    }
+
+    //公钥 -> ByteString -> 公钥
+    @Benchmark
+    public KeysetHandle keyRoundTrip() throws Exception {
+        return GRpcUtil.getKeyKeysetHandle(GRpcUtil.getKeyByteString(pk));
+    }
+}
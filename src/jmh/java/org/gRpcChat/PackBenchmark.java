@@ -0,0 +1,55 @@
+package org.gRpcChat;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.hybrid.HybridConfig;
+import com.google.protobuf.ByteString;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+//登录结果：构建并序列化带有大量userInfoList的Pack，以及客户端解析
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PackBenchmark {
+    private final static long id = 1597535;
+    @Param({"100", "1000", "10000"})
+    private int users;
+    @Param({"1", "2"})
+    private int version;
+    private PresenceLog.Sync snapshot;
+    private byte[] loginBytes;
+
+    @Setup
+    public void setup() throws Exception {
+        HybridConfig.register();
+        ByteString pk = GRpcUtil.getKeyByteString(KeysetHandle.generateNew(
+                KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM")).getPublicKeysetHandle());
+        List<UserInfo> list = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            UserInfo userInfo = new UserInfo();
+            userInfo.setId(id + i);
+            userInfo.setName("user" + i);
+            userInfo.setPk(pk);
+            list.add(userInfo);
+        }
+        snapshot = new PresenceLog(16).snapshot(list);
+        loginBytes = build();
+    }
+
+    @Benchmark
+    public byte[] build() {
+        return Protocol.login(version, id, StatusCode.OK, id, "alice", snapshot, 0).toByteArray();
+    }
+
+    @Benchmark
+    public LoginResult parse() throws Exception {
+        return Protocol.loginResultOf(Pack.parseFrom(loginBytes));
+    }
+}
@@ -0,0 +1,142 @@
+package org.gRpcChat;
+
+import com.google.crypto.tink.HybridEncrypt;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.hybrid.HybridConfig;
+import com.google.protobuf.ByteString;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+//协议v1与v2对比：典型消息的帧大小，以及服务器/客户端处理一条消息的CPU耗时
+//用法: ./gradlew benchmark -Pbenchmark.main=ProtocolBenchmark [-Pbenchmark.args="iterations"]
+public class ProtocolBenchmark {
+    private final static long sender = 1597535;
+    private final static long receiver = 1597536;
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        HybridConfig.register();
+        KeysetHandle sk = KeysetHandle.generateNew(KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM"));
+        ByteString pk = GRpcUtil.getKeyByteString(sk.getPublicKeysetHandle());
+        ByteString ciphertext = ByteString.copyFrom(sk.getPublicKeysetHandle().getPrimitive(HybridEncrypt.class)
+                .encrypt("hello, how are you?".getBytes(StandardCharsets.UTF_8), new byte[0]));
+        List<UserInfo> users = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            UserInfo userInfo = new UserInfo();
+            userInfo.setId(sender + i);
+            userInfo.setName("alice");
+            userInfo.setPk(pk);
+            users.add(userInfo);
+        }
+        UserInfo user = users.get(0);
+
+        //帧大小
+        System.out.printf("%-24s %8s %8s %8s%n", "frame", "v1 B", "v2 B", "saved");
+        Pack[] post = new Pack[3];
+        Pack[] result = new Pack[3];
+        for (int version = Protocol.V1; version <= Protocol.V2; version++) {
+            post[version] = Protocol.request(version, Action.POST)
+                    .setSender(sender).setReceiver(receiver).setMessage(ciphertext).build();
+            result[version] = Protocol.result(version, Action.POST, sender, StatusCode.OK, 0, 0);
+        }
+        Frame forward = Protocol.forward(sender, receiver, ciphertext);
+        Frame broadcast = Protocol.broadcast(sender, GRpcUtil.toByteString("hello everyone"));
+        PresenceLog presenceLog = new PresenceLog(16);
+        Frame presence = Protocol.presence(presenceLog.append(true, user), 1597534);
+        size("post request", post[1], post[2]);
+        size("post result", result[1], result[2]);
+        size("forward push", forward.toPack(), forward.forVersion(Protocol.V2).toPack());
+        size("broadcast push", broadcast.toPack(), broadcast.forVersion(Protocol.V2).toPack());
+        size("login presence", presence.toPack(), presence.forVersion(Protocol.V2).toPack());
+        PresenceLog.Sync snapshot = presenceLog.snapshot(users);
+        size("login result (100)", Protocol.login(Protocol.V1, sender, StatusCode.OK, sender, "alice", snapshot, 0),
+                Protocol.login(Protocol.V2, sender, StatusCode.OK, sender, "alice", snapshot, 0));
+        size("send failed result", Protocol.result(Protocol.V1, Action.POST, sender, StatusCode.RECEIVER_NOT_FOUND, receiver, 0),
+                Protocol.result(Protocol.V2, Action.POST, sender, StatusCode.RECEIVER_NOT_FOUND, receiver, 0));
+
+        //CPU：服务器解析请求、分派、生成并序列化结果；客户端解析结果并取出通知文本
+        System.out.printf("%n%-24s %10s %10s %8s%n", "cpu (ns/op)", "v1", "v2", "saved");
+        byte[][] postBytes = {null, post[1].toByteArray(), post[2].toByteArray()};
+        byte[][] resultBytes = {null, result[1].toByteArray(), result[2].toByteArray()};
+        long[] server = new long[3];
+        long[] client = new long[3];
+        for (int round = 0; round < 3; round++) {//前两轮预热
+            for (int version = Protocol.V1; version <= Protocol.V2; version++) {
+                server[version] = serverPost(postBytes[version], version, iterations);
+                client[version] = clientResult(resultBytes[version], iterations);
+            }
+        }
+        //客户端处理上线通知：v1每次解析完整公钥，v2指纹命中公钥缓存
+        byte[][] presenceBytes = {null, presence.bytes(), presence.forVersion(Protocol.V2).bytes()};
+        KeyCache keyCache = new KeyCache(null);
+        keyCache.put(sender, pk);
+        long[] clientPresence = new long[3];
+        int presenceIterations = iterations / 20;
+        for (int round = 0; round < 3; round++) {
+            for (int version = Protocol.V1; version <= Protocol.V2; version++)
+                clientPresence[version] = clientPresence(presenceBytes[version], keyCache, presenceIterations);
+        }
+        cpu("server post", server, iterations);
+        cpu("client result", client, iterations);
+        cpu("client presence", clientPresence, presenceIterations);
+    }
+
+    private static long clientPresence(byte[] push, KeyCache keyCache, int iterations) throws Exception {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            UserInfoPack user = Protocol.userOf(Pack.parseFrom(push));
+            KeysetHandle handle = user.getPk().isEmpty() ? keyCache.get(user.getId(), user.getFingerprint())
+                    : GRpcUtil.getKeyKeysetHandle(user.getPk());
+            checksum += handle.getKeysetInfo().getKeyInfoCount();
+        }
+        long nanos = System.nanoTime() - start;
+        if (checksum == 0)
+            System.out.println();
+        return nanos;
+    }
+
+    private static long serverPost(byte[] request, int version, int iterations) throws Exception {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Pack value = Pack.parseFrom(request);
+            Action action = Protocol.actionOf(value);
+            StatusCode code = action == Action.POST ? StatusCode.OK : StatusCode.BAD_REQUEST;
+            checksum += Protocol.result(version, action, value.getSender(), code, 0, value.getRequestId()).toByteArray().length;
+        }
+        long nanos = System.nanoTime() - start;
+        if (checksum == 0)
+            System.out.println();
+        return nanos;
+    }
+
+    private static long clientResult(byte[] response, int iterations) throws Exception {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Pack value = Pack.parseFrom(response);
+            if (Protocol.isResult(value))
+                checksum += Protocol.noticeOf(value).length();
+        }
+        long nanos = System.nanoTime() - start;
+        if (checksum == 0)
+            System.out.println();
+        return nanos;
+    }
+
+    private static void size(String name, Pack v1, Pack v2) {
+        int s1 = v1.getSerializedSize();
+        int s2 = v2.getSerializedSize();
+        System.out.printf("%-24s %8d %8d %7.1f%%%n", name, s1, s2, 100.0 * (s1 - s2) / s1);
+    }
+
+    private static void cpu(String name, long[] nanos, int iterations) {
+        double v1 = (double) nanos[Protocol.V1] / iterations;
+        double v2 = (double) nanos[Protocol.V2] / iterations;
+        System.out.printf("%-24s %10.1f %10.1f %7.1f%%%n", name, v1, v2, 100.0 * (v1 - v2) / v1);
+    }
+}
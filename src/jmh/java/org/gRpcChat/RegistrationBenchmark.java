@@ -0,0 +1,70 @@
+package org.gRpcChat;
+
+import com.google.protobuf.ByteString;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+//注册吞吐量测试：逐条提交 vs 注册流水线（group commit）
+//用法: ./gradlew benchmark -Pbenchmark.main=RegistrationBenchmark [-Pbenchmark.args="users threads"]
+public class RegistrationBenchmark {
+    public static void main(String[] args) throws Exception {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+        ByteString pk = ByteString.copyFrom(new byte[80]);
+
+        //逐条提交：每个注册一个事务
+        ChatDatabase db = openBenchDB("bench-single.db");
+        long start = System.nanoTime();
+        for (int i = 0; i < users; i++)
+            db.reg("user" + i, pk, GRpcUtil.SHA256(new byte[]{(byte) i}));
+        report("single commit", users, System.nanoTime() - start);
+        closeBenchDB(db, "bench-single.db");
+
+        //流水线：threads个并发请求线程，写线程合并提交
+        db = openBenchDB("bench-pipeline.db");
+        RegistrationPipeline pipeline = new RegistrationPipeline(db, 256);
+        ExecutorService clients = Executors.newFixedThreadPool(threads);
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[users];
+        start = System.nanoTime();
+        for (int i = 0; i < users; i++) {
+            int index = i;
+            futures[i] = CompletableFuture.supplyAsync(() -> pipeline.register("user" + index, pk,
+                    GRpcUtil.SHA256(new byte[]{(byte) index})).join(), clients);
+        }
+        CompletableFuture.allOf(futures).join();
+        report("pipeline x" + threads, users, System.nanoTime() - start);
+        System.out.println("  commits: " + pipeline.getCommits()
+                + ", avg batch: " + (pipeline.getRegistered() / Math.max(1, pipeline.getCommits())));
+        clients.shutdown();
+        clients.awaitTermination(10, TimeUnit.SECONDS);
+        pipeline.shutdown();
+        closeBenchDB(db, "bench-pipeline.db");
+    }
+
+    private static ChatDatabase openBenchDB(String name) {
+        deleteBenchDB(name);
+        ChatDatabase db = new ChatDatabase(name);
+        db.openDB();
+        db.createTable();
+        return db;
+    }
+
+    private static void closeBenchDB(ChatDatabase db, String name) {
+        db.closeDB();
+        deleteBenchDB(name);
+    }
+
+    private static void deleteBenchDB(String name) {
+        for (String suffix : new String[]{"", "-wal", "-shm"})
+            new File("./db/" + name + suffix).delete();
+    }
+
+    private static void report(String name, int users, long nanos) {
+        System.out.printf("%-16s %8d users in %8.1f ms  %10.1f registrations/s%n",
+                name, users, nanos / 1e6, users * 1e9 / nanos);
+    }
+}
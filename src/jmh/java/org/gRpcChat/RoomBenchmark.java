@@ -0,0 +1,63 @@
+package org.gRpcChat;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+//房间消息与群发：在线users人，房间有members个在线成员，投递进每个接收者的发送队列（stream丢弃消息）
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoomBenchmark {
+    private final static long id = 1597535;
+    private final static long roomId = 1;
+    @Param({"10000"})
+    private int users;
+    @Param({"10", "100", "1000"})
+    private int members;
+    private final SessionRegistry register = new SessionRegistry();
+    private final RoomIndex rooms = new RoomIndex();
+    private FanOutEngine engine;
+
+    @Setup
+    public void setup() {
+        register.setPresenceLog(new PresenceLog(1024));
+        rooms.addRoom(roomId, "bench", id);
+        for (int i = 0; i < users; i++) {
+            UserInfo userInfo = new UserInfo();
+            userInfo.setId(id + i);
+            userInfo.setName("user" + i);
+            userInfo.setPk(GRpcUtil.toByteString("pk" + i));
+            OutboundQueue outbound = new OutboundQueue(new StubStream(), 1024,
+                    OutboundQueue.OverflowPolicy.DROP_OLDEST, null);
+            outbound.setVersion(Protocol.V2);
+            register.online(userInfo, outbound);
+            if (i % (users / members) == 0)//成员分散在全部用户中
+                rooms.join(roomId, userInfo.getId());
+            rooms.online(userInfo.getId());
+        }
+        engine = new FanOutEngine(Runtime.getRuntime().availableProcessors(), 256);
+    }
+
+    @TearDown
+    public void tearDown() {
+        engine.shutdown();
+    }
+
+    //与GRpcServer的ROOM_POST相同：只查找房间的在线成员
+    @Benchmark
+    public long roomPost() throws Exception {
+        Frame frame = Protocol.room(id, roomId, GRpcUtil.toByteString("hello"));
+        return engine.fanOut(frame, register.onlineOf(rooms.onlineMembers(roomId)), target -> target == id).get();
+    }
+
+    //对比：群发给全部在线用户
+    @Benchmark
+    public long broadcast() throws Exception {
+        Frame frame = Protocol.broadcast(id, GRpcUtil.toByteString("hello"));
+        return engine.fanOut(frame, register.onlineSnapshot(), target -> target == id).get();
+    }
+}
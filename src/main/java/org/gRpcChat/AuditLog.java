@@ -0,0 +1,213 @@
+package org.gRpcChat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//路由审计日志：请求线程把定长二进制记录写入环形缓冲区（不加锁、不分配对象），后台线程批量写入按大小轮转的文件
+//文件格式：16字节文件头(magic "GCAU", version, recordSize, createTime)，之后为定长记录，见AuditReader
+//缓冲区满时丢弃记录并计数，不阻塞请求线程
+public class AuditLog {
+    private final static Logger logger = LoggerFactory.getLogger("Server");
+    public final static int MAGIC = 0x47434155;//"GCAU"
+    public final static short VERSION = 1;
+    public final static int HEADER_SIZE = 16;
+    //time(8) sender(8) target(8) bytes(4) action(2) status(2)
+    public final static int RECORD_SIZE = 32;
+    private final static int batchSize = 1024;
+    private final static long flushNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private final String dir;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    //环形缓冲区：按字段分开的数组，published[i]为该槽已写入的序号+1
+    private final int mask;
+    private final int wakeThreshold;//积压达到该数量时唤醒写线程
+    private final long[] times;
+    private final long[] senders;
+    private final long[] targets;
+    private final int[] sizes;
+    private final short[] actions;
+    private final short[] statuses;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong consumed = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicLong written = new AtomicLong();
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(batchSize * RECORD_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final Thread writer;
+    private volatile boolean running = true;
+    private FileChannel channel;
+    private long fileBytes;
+    private int fileIndex = 0;
+
+    //capacity向上取2的幂
+    public AuditLog(String dir, int capacity, long maxFileBytes, int maxFiles) {
+        this.dir = dir;
+        this.maxFileBytes = Math.max(HEADER_SIZE + RECORD_SIZE, maxFileBytes);
+        this.maxFiles = Math.max(1, maxFiles);
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = size - 1;
+        this.wakeThreshold = Math.min(batchSize, size / 2);
+        this.times = new long[size];
+        this.senders = new long[size];
+        this.targets = new long[size];
+        this.sizes = new int[size];
+        this.actions = new short[size];
+        this.statuses = new short[size];
+        this.published = new AtomicLongArray(size);
+        File directory = new File(dir);
+        if (!directory.exists())
+            directory.mkdirs();
+        this.writer = new Thread(this::run, "audit-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    //记录一次路由：私聊target为接收者，群发target为接收人数；缓冲区满时返回false
+    public boolean record(Action action, StatusCode status, long sender, long target, int bytes) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed.get() > mask) {
+                dropped.increment();
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        int slot = (int) sequence & mask;
+        times[slot] = System.currentTimeMillis();
+        senders[slot] = sender;
+        targets[slot] = target;
+        sizes[slot] = bytes;
+        actions[slot] = (short) action.getNumber();
+        statuses[slot] = (short) status.getNumber();
+        published.lazySet(slot, sequence + 1);//之前的普通写入对读取到该值的写线程可见
+        if ((sequence & (wakeThreshold - 1)) == 0 && sequence - consumed.get() >= wakeThreshold)
+            LockSupport.unpark(writer);
+        return true;
+    }
+
+    //写线程：取出已发布的记录，攒满一批或到达间隔时写入文件
+    private void run() {
+        while (running || consumed.get() < claimed.get()) {
+            int count = drain();
+            if (count < batchSize && running)
+                LockSupport.parkNanos(flushNanos);
+            if (!running && count == 0 && consumed.get() < claimed.get())
+                Thread.onSpinWait();//等待已占用但尚未发布的槽
+        }
+        closeFile();
+    }
+
+    private int drain() {
+        long next = consumed.get();
+        int count = 0;
+        buffer.clear();
+        while (count < batchSize) {
+            int slot = (int) next & mask;
+            if (published.get(slot) != next + 1)
+                break;
+            buffer.putLong(times[slot]).putLong(senders[slot]).putLong(targets[slot])
+                    .putInt(sizes[slot]).putShort(actions[slot]).putShort(statuses[slot]);
+            next++;
+            count++;
+        }
+        consumed.set(next);
+        if (count > 0) {
+            buffer.flip();
+            write(count);
+        }
+        return count;
+    }
+
+    private void write(int count) {
+        try {
+            int end = buffer.limit();
+            while (buffer.position() < end) {//写满当前文件后轮转，记录不跨文件
+                if (channel == null || fileBytes + RECORD_SIZE > maxFileBytes)
+                    rotate();
+                long room = (maxFileBytes - fileBytes) / RECORD_SIZE * RECORD_SIZE;
+                buffer.limit((int) Math.min(end, buffer.position() + room));
+                while (buffer.hasRemaining())
+                    fileBytes += channel.write(buffer);
+            }
+            written.addAndGet(count);
+        } catch (IOException e) {
+            logger.error("Audit Log Write Error: " + e);
+            dropped.add(count);
+            closeFile();
+        }
+    }
+
+    //新建文件，只保留最近的maxFiles个
+    private void rotate() throws IOException {
+        closeFile();
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        File file = new File(dir, "audit-" + stamp + "-" + (fileIndex++) + ".bin");
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(MAGIC).putShort(VERSION).putShort((short) RECORD_SIZE).putLong(System.currentTimeMillis()).flip();
+        while (header.hasRemaining())
+            channel.write(header);
+        fileBytes = HEADER_SIZE;
+        File[] files = new File(dir).listFiles((d, name) -> name.startsWith("audit-") && name.endsWith(".bin"));
+        if (files != null && files.length > maxFiles) {
+            Arrays.sort(files, Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+            for (int i = 0; i < files.length - maxFiles; i++) {
+                if (!files[i].equals(file) && !files[i].delete())
+                    logger.warn("Delete Audit File " + files[i] + " Failed");
+            }
+        }
+    }
+
+    private void closeFile() {
+        if (channel == null)
+            return;
+        try {
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Audit Log Close Error: " + e);
+        }
+        channel = null;
+    }
+
+    //写出缓冲区中剩余的记录后关闭文件
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    //缓冲区中等待写入的记录数
+    public long pending() {
+        return claimed.get() - consumed.get();
+    }
+}
@@ -0,0 +1,84 @@
+package org.gRpcChat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+//解码路由审计日志（AuditLog）
+//用法: java -cp gRpcChat-1.0.jar org.gRpcChat.AuditReader <文件或目录>... [--sender id] [--receiver id]
+public class AuditReader {
+    public static void main(String[] args) throws IOException {
+        List<File> files = new ArrayList<>();
+        long sender = -1;
+        long receiver = -1;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--sender" -> sender = Long.parseLong(args[++i]);
+                case "--receiver" -> receiver = Long.parseLong(args[++i]);
+                default -> {
+                    File file = new File(args[i]);
+                    File[] children = file.listFiles((d, name) -> name.startsWith("audit-") && name.endsWith(".bin"));
+                    if (children != null) {//目录按时间顺序读取
+                        Arrays.sort(children, Comparator.comparingLong(File::lastModified).thenComparing(File::getName));
+                        files.addAll(Arrays.asList(children));
+                    } else {
+                        files.add(file);
+                    }
+                }
+            }
+        }
+        if (files.isEmpty()) {
+            System.err.println("Usage: AuditReader <file|dir>... [--sender id] [--receiver id]");
+            System.exit(1);
+        }
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        for (File file : files) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() != AuditLog.MAGIC) {
+                    System.err.println(file + ": not an audit log");
+                    continue;
+                }
+                short version = in.readShort();
+                int recordSize = in.readShort();
+                in.readLong();//文件创建时间
+                if (version != AuditLog.VERSION || recordSize < AuditLog.RECORD_SIZE) {
+                    System.err.println(file + ": unsupported version " + version);
+                    continue;
+                }
+                while (true) {
+                    long time;
+                    try {
+                        time = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    long from = in.readLong();
+                    long target = in.readLong();
+                    int bytes = in.readInt();
+                    Action action = Action.forNumber(in.readShort());
+                    StatusCode status = StatusCode.forNumber(in.readShort());
+                    in.skipBytes(recordSize - AuditLog.RECORD_SIZE);
+                    if (sender >= 0 && from != sender)
+                        continue;
+                    if (receiver >= 0 && (action != Action.POST || target != receiver))
+                        continue;
+                    String to = action == Action.BROADCAST ? target + " users"
+                            : action == Action.ROOM_POST ? "room " + target : String.valueOf(target);
+                    System.out.printf("%s %-9s %d -> %s %s %dB%n", format.format(new Date(time)), action, from, to,
+                            status, bytes);
+                }
+            } catch (EOFException e) {
+                System.err.println(file + ": truncated record");
+            }
+        }
+    }
+}
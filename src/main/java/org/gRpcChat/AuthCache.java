@@ -0,0 +1,166 @@
+package org.gRpcChat;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//登录认证缓存：id -> (salt, skHashSalted, name)，分段LRU，命中时无需查询SQLite
+public class AuthCache {
+    private final static int segmentCount = 16;
+    private final Segment[] segments = new Segment[segmentCount];
+    private final int capacity;
+    //统计
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public AuthCache(int capacity) {
+        this.capacity = capacity;
+        int segmentCapacity = Math.max(1, (capacity + segmentCount - 1) / segmentCount);
+        for (int i = 0; i < segmentCount; i++)
+            segments[i] = new Segment(segmentCapacity);
+    }
+
+    private Segment segmentOf(long id) {
+        return segments[(int) (id ^ (id >>> 32)) & (segmentCount - 1)];
+    }
+
+    //认证结果
+    public enum Result {HIT_OK, HIT_FAILED, MISS}
+
+    //使用缓存验证，未缓存返回MISS
+    public Result verify(long id, String skHash) {
+        Entry entry;
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            entry = segment.get(id);
+        }
+        if (entry == null) {
+            misses.increment();
+            return Result.MISS;
+        }
+        hits.increment();
+        return entry.verify(skHash) ? Result.HIT_OK : Result.HIT_FAILED;
+    }
+
+    //获取缓存的用户名
+    public String getName(long id) {
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            Entry entry = segment.get(id);
+            return entry == null ? null : entry.name;
+        }
+    }
+
+    public void put(long id, String name, String salt, String skHashSalted) {
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            segment.put(id, new Entry(name, salt, skHashSalted));
+        }
+    }
+
+    //用户重新注册或信息变更时失效
+    public void invalidate(long id) {
+        Segment segment = segmentOf(id);
+        synchronized (segment) {
+            if (segment.remove(id) != null)
+                invalidations.increment();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + "/" + capacity + ", hits=" + hits.sum() + ", misses=" + misses.sum()
+                + ", evictions=" + evictions.sum() + ", invalidations=" + invalidations.sum();
+    }
+
+    //skHash加盐后与数据库中的skHashSalted比较（缓存命中与未命中共用）
+    public static boolean matches(String skHash, String salt, String skHashSalted) {
+        if (skHash == null || salt == null || skHashSalted == null)
+            return false;
+        return MessageDigest.isEqual(GRpcUtil.addSalt(skHash, salt).getBytes(StandardCharsets.UTF_8),
+                skHashSalted.getBytes(StandardCharsets.UTF_8));
+    }
+
+    //只缓存数据库中的字段，不保存客户端提交的skHash
+    private static class Entry {
+        final String name;
+        final String salt;
+        final String skHashSalted;
+
+        Entry(String name, String salt, String skHashSalted) {
+            this.name = name;
+            this.salt = salt;
+            this.skHashSalted = skHashSalted;
+        }
+
+        boolean verify(String skHash) {
+            return matches(skHash, salt, skHashSalted);
+        }
+    }
+
+    //按访问顺序保存条目，超出容量时淘汰最久未使用的条目；调用方持有Segment的锁
+    private class Segment {
+        private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private final int segmentCapacity;
+
+        Segment(int segmentCapacity) {
+            this.segmentCapacity = segmentCapacity;
+        }
+
+        Entry get(long id) {
+            return entries.get(id);
+        }
+
+        void put(long id, Entry entry) {
+            entries.put(id, entry);
+            if (entries.size() > segmentCapacity) {
+                Iterator<Long> eldest = entries.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+
+        Entry remove(long id) {
+            return entries.remove(id);
+        }
+
+        int size() {
+            return entries.size();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package org.gRpcChat;
+
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.hybrid.HybridConfig;
+import io.grpc.CompressorRegistry;
+import org.apache.commons.cli.CommandLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+//压力测试：启动进程内服务器（或连接-i指定的服务器），按速率登录N个模拟用户，
+//按比例混合私聊、群发与登出/重新登录，输出吞吐量、线上流量（帧数与字节数）与延迟分位数，直方图写入文件
+//延迟从计划发送的时间开始计算，发送端落后时不会低估延迟
+public class ChatBench {
+    private final static Logger logger = LoggerFactory.getLogger(GRpcServer.class.getName());
+    private final static String benchDbFile = "bench-userList.db";
+    private final static String messagePrefix = "bench:";
+    private final ChatServer serverConfig;
+    private final TransportProfile transport;//客户端连接，与进程内服务器使用同样的配置
+    private String target = null;//为null时启动进程内服务器
+    private int users = 100;
+    private double rampRate = 50;
+    private int durationSeconds = 30;
+    private double rate = 500;
+    private int[] mix = {80, 15, 5};//私聊:群发:登出重登
+    private String outputPath = "bench-latency.txt";
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int protocolVersion = Protocol.LATEST;
+    private String compression = null;
+    private int batchLinger = 0;
+    private int batchBytes = 16 * 1024;
+    //结果
+    private final Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+    private final Map<String, LongAdder> errors = new LinkedHashMap<>();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final LongAdder skipped = new LongAdder();//没有可用的在线用户而跳过的操作
+
+    //初始化
+    public ChatBench(CommandLine result) {
+        serverConfig = new ChatServer(result);
+        transport = TransportProfile.fromOptions(result);
+        if (result.hasOption("i")) {
+            int port = result.hasOption("p") ? Integer.parseInt(result.getOptionValue("p")) : 50000;
+            target = result.getOptionValue("i") + ":" + port;
+        }
+        if (result.hasOption("bench-users")) {
+            users = Integer.parseInt(result.getOptionValue("bench-users"));
+        }
+        if (result.hasOption("bench-ramp")) {
+            rampRate = Double.parseDouble(result.getOptionValue("bench-ramp"));
+        }
+        if (result.hasOption("bench-duration")) {
+            durationSeconds = Integer.parseInt(result.getOptionValue("bench-duration"));
+        }
+        if (result.hasOption("bench-rate")) {
+            rate = Double.parseDouble(result.getOptionValue("bench-rate"));
+        }
+        if (result.hasOption("bench-mix")) {
+            String[] parts = result.getOptionValue("bench-mix").split(":");
+            for (int i = 0; i < mix.length; i++)
+                mix[i] = i < parts.length ? Integer.parseInt(parts[i]) : 0;
+        }
+        if (result.hasOption("bench-out")) {
+            outputPath = result.getOptionValue("bench-out");
+        }
+        if (result.hasOption("protocol")) {
+            protocolVersion = Integer.parseInt(result.getOptionValue("protocol"));
+        }
+        if (result.hasOption("batch-linger")) {
+            batchLinger = Integer.parseInt(result.getOptionValue("batch-linger"));
+        }
+        if (result.hasOption("batch-bytes")) {
+            batchBytes = Integer.parseInt(result.getOptionValue("batch-bytes"));
+        }
+        if (result.hasOption("compression")) {
+            compression = result.getOptionValue("compression");
+            if (CompressorRegistry.getDefaultInstance().lookupCompressor(compression) == null) {
+                System.err.println("Unknown Compression \"" + compression + "\"");
+                System.exit(1);
+            }
+        }
+        for (String op : new String[]{"login", "logout", "post", "broadcast", "post delivery", "broadcast delivery"}) {
+            histograms.put(op, new LatencyHistogram());
+            errors.put(op, new LongAdder());
+        }
+    }
+
+    //运行测试
+    public void run() throws InterruptedException {
+        logger.info("Running in bench mode");
+        GRpcServer server = null;
+        String connectTarget = target;
+        try {
+            HybridConfig.register();
+            if (connectTarget == null) {//进程内服务器，使用独立的数据库
+                deleteBenchDB();
+                server = serverConfig.createServer();
+                server.setDbFile(benchDbFile);
+                server.start(serverConfig.getPort());
+                connectTarget = "127.0.0.1:" + serverConfig.getPort();
+            }
+            //所有模拟用户使用同一个密钥，测试不包括密钥生成
+            KeysetHandle sk = KeysetHandle.generateNew(KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM"));
+            try (ClientHub hub = new ClientHub(connectTarget, threads, null, transport)) {
+                hub.setMaxVersion(protocolVersion);
+                hub.setCompression(compression);
+                hub.setBatching(batchLinger, batchBytes);
+                hub.setListener(new DeliveryListener());
+                bench(hub, sk, connectTarget);
+            }
+        } catch (GeneralSecurityException | IOException e) {
+            logger.error("Bench Error: " + e.getMessage());
+            System.err.println("Bench Error: " + e.getMessage());
+        } finally {
+            if (server != null) {
+                server.stop();
+                deleteBenchDB();
+            }
+        }
+    }
+
+    private void bench(ClientHub hub, KeysetHandle sk, String connectTarget) throws GeneralSecurityException {
+        //按速率登录
+        List<SimUser> simUsers = new ArrayList<>();
+        long rampStart = System.nanoTime();
+        long rampInterval = (long) (TimeUnit.SECONDS.toNanos(1) / rampRate);
+        for (int i = 0; i < users; i++) {
+            long scheduled = rampStart + i * rampInterval;
+            LockSupport.parkNanos(scheduled - System.nanoTime());
+            SimUser user = new SimUser("bench" + i);
+            simUsers.add(user);
+            login(hub, user, sk, scheduled);
+        }
+        awaitOutstanding(TimeUnit.MINUTES.toNanos(2));
+        long online = simUsers.stream().filter(user -> user.client != null).count();
+        logger.info("Bench: " + online + "/" + users + " users online in "
+                + (System.nanoTime() - rampStart) / 1_000_000 + " ms");
+        if (online < 2) {
+            System.err.println("Bench Error: not enough users online");
+            return;
+        }
+
+        //混合负载
+        int total = mix[0] + mix[1] + mix[2];
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long[] wireStart = hub.getWireStats().snapshot();
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long issued = 0;
+        while (true) {
+            long scheduled = start + issued * interval;
+            if (scheduled >= end)
+                break;
+            LockSupport.parkNanos(scheduled - System.nanoTime());
+            int pick = ThreadLocalRandom.current().nextInt(total);
+            if (pick < mix[0])
+                post(simUsers, scheduled);
+            else if (pick < mix[0] + mix[1])
+                broadcast(simUsers, scheduled);
+            else
+                churn(hub, simUsers, sk, scheduled);
+            issued++;
+        }
+        awaitOutstanding(TimeUnit.SECONDS.toNanos(30));
+        long elapsed = System.nanoTime() - start;
+        long[] wire = hub.getWireStats().snapshot();
+        for (int i = 0; i < wire.length; i++)
+            wire[i] -= wireStart[i];
+        hub.logoutAll().orTimeout(30, TimeUnit.SECONDS).exceptionally(e -> null).join();
+        report(connectTarget, issued, elapsed, wire);
+    }
+
+    //登录（新用户即注册），记录hello+login的延迟
+    private void login(ClientHub hub, SimUser user, KeysetHandle sk, long scheduled) throws GeneralSecurityException {
+        GRpcClient client = hub.newClient(user.id, user.name, sk);
+        track(hub.connect(client), "login", scheduled).thenAccept(result -> {
+            if (client.isLoginSuccessful()) {
+                user.id = client.getAccountId();
+                user.client = client;
+            }
+            user.busy.set(false);
+        });
+    }
+
+    private void post(List<SimUser> simUsers, long scheduled) {
+        SimUser sender = pick(simUsers);
+        SimUser receiver = pick(simUsers);
+        if (sender == null || receiver == null || sender == receiver) {
+            skipped.increment();
+            return;
+        }
+        track(sender.client.post(receiver.id, messagePrefix + scheduled), "post", scheduled);
+    }
+
+    private void broadcast(List<SimUser> simUsers, long scheduled) {
+        SimUser sender = pick(simUsers);
+        if (sender == null) {
+            skipped.increment();
+            return;
+        }
+        track(sender.client.broadcast(messagePrefix + scheduled), "broadcast", scheduled);
+    }
+
+    //登出后用同一账户重新登录
+    private void churn(ClientHub hub, List<SimUser> simUsers, KeysetHandle sk, long scheduled) {
+        SimUser user = pick(simUsers);
+        if (user == null || !user.busy.compareAndSet(false, true)) {
+            skipped.increment();
+            return;
+        }
+        GRpcClient client = user.client;
+        user.client = null;
+        track(client.logout(), "logout", scheduled).whenComplete((result, e) -> {
+            hub.remove(client);
+            try {
+                login(hub, user, sk, System.nanoTime());
+            } catch (GeneralSecurityException ex) {
+                errors.get("login").increment();
+                user.busy.set(false);
+            }
+        });
+    }
+
+    //随机选择一个在线且不在登出/登录过程中的用户
+    private static SimUser pick(List<SimUser> simUsers) {
+        for (int attempt = 0; attempt < 8; attempt++) {
+            SimUser user = simUsers.get(ThreadLocalRandom.current().nextInt(simUsers.size()));
+            if (user.client != null && !user.busy.get())
+                return user;
+        }
+        return null;
+    }
+
+    //记录请求从计划发送到收到结果的延迟，失败的结果计为错误
+    private CompletableFuture<Pack> track(CompletableFuture<Pack> future, String op, long scheduled) {
+        outstanding.incrementAndGet();
+        return future.whenComplete((result, e) -> {
+            if (e != null || !succeeded(result))
+                errors.get(op).increment();
+            else
+                histograms.get(op).recordNanos(System.nanoTime() - scheduled);
+            outstanding.decrementAndGet();
+        });
+    }
+
+    private static boolean succeeded(Pack result) {
+        if (result.hasResult())
+            return result.getResult().getCode() == StatusCode.OK || result.getResult().getCode() == StatusCode.RECEIVER_OFFLINE;
+        if (result.hasLogin())
+            return result.getLogin().getCode() == StatusCode.OK || result.getLogin().getCode() == StatusCode.CREATED;
+        return !result.getMessage().toStringUtf8().contains("Failed");
+    }
+
+    private void awaitOutstanding(long timeoutNanos) {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (outstanding.get() > 0 && System.nanoTime() < deadline)
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        if (outstanding.get() > 0)
+            logger.warn("Bench: " + outstanding.get() + " requests unfinished");
+    }
+
+    //wire：负载阶段的WireStats增量
+    private void report(String connectTarget, long issued, long elapsedNanos, long[] wire) {
+        double seconds = elapsedNanos / 1e9;
+        String header = "users=" + users + ", duration=" + durationSeconds + "s, rate=" + rate
+                + ", mix=" + mix[0] + ":" + mix[1] + ":" + mix[2] + ", target=" + (target == null ? "in-process" : connectTarget)
+                + ", transport=" + transport + ", batch=" + (batchLinger == 0 ? "off" : batchLinger + "ms/" + batchBytes + "B")
+                + ", compression=" + (compression == null ? "identity" : compression);
+        System.out.println("Bench: " + header);
+        System.out.printf("Throughput: %d ops in %.1f s = %.1f ops/s, skipped %d%n", issued, seconds, issued / seconds,
+                skipped.sum());
+        //线上流量：gRPC消息（帧）数与压缩后的字节数，合并发送时每帧包含多条请求
+        System.out.printf("Requests: %.1f frames/s, %.1f KB/s on the wire (%.1f KB/s uncompressed), %.1f ops/frame%n",
+                wire[0] / seconds, wire[1] / seconds / 1024, wire[2] / seconds / 1024, wire[0] == 0 ? 0 : (double) issued / wire[0]);
+        System.out.printf("Pushes:   %.1f frames/s, %.1f KB/s on the wire (%.1f KB/s uncompressed)%n",
+                wire[3] / seconds, wire[4] / seconds / 1024, wire[5] / seconds / 1024);
+        System.out.printf("%-20s %8s %8s %10s %10s %10s %10s%n", "latency (us)", "count", "errors", "p50", "p99", "p999", "max");
+        histograms.forEach((op, histogram) -> System.out.printf("%-20s %8d %8d %10d %10d %10d %10d%n", op,
+                histogram.getCount(), errors.get(op).sum(), histogram.percentile(0.5), histogram.percentile(0.99),
+                histogram.percentile(0.999), histogram.getMax()));
+        try (PrintWriter writer = new PrintWriter(new FileWriter(outputPath))) {
+            writer.println("# gRpcChat bench: " + header + ", throughput=" + Math.round(issued / seconds) + " ops/s");
+            histograms.forEach((op, histogram) -> histogram.writeTo(writer, op.replace(' ', '_')));
+            System.out.println("Histogram: " + outputPath);
+        } catch (IOException e) {
+            logger.error("Write Histogram \"" + outputPath + "\" Failed: " + e.getMessage());
+            System.err.println("Write Histogram \"" + outputPath + "\" Failed: " + e.getMessage());
+        }
+    }
+
+    private static void deleteBenchDB() {
+        for (String suffix : new String[]{"", "-wal", "-shm"})
+            new File("./db/" + benchDbFile + suffix).delete();
+    }
+
+    //模拟用户
+    private static class SimUser {
+        final String name;
+        volatile long id = -1;
+        volatile GRpcClient client = null;//在线时不为null
+        final AtomicBoolean busy = new AtomicBoolean(true);//登录或登出过程中
+
+        SimUser(String name) {
+            this.name = name;
+        }
+    }
+
+    //记录消息从计划发送到接收者收到的延迟（发送与接收在同一进程中，时钟一致）
+    private class DeliveryListener implements ChatListener {
+        @Override
+        public void onMessage(GRpcClient client, long sender, String message) {
+            record("post delivery", message);
+        }
+
+        @Override
+        public void onBroadcast(GRpcClient client, long sender, String message) {
+            record("broadcast delivery", message);
+        }
+
+        private void record(String op, String message) {
+            if (message.startsWith(messagePrefix))
+                histograms.get(op).recordNanos(System.nanoTime() - Long.parseLong(message.substring(messagePrefix.length())));
+        }
+    }
+}
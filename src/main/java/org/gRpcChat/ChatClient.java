@@ -3,25 +3,39 @@ package org.gRpcChat;
 import com.google.crypto.tink.KeyTemplates;
 import com.google.crypto.tink.KeysetHandle;
 import com.google.crypto.tink.hybrid.HybridConfig;
+import io.grpc.CompressorRegistry;
 import io.grpc.ManagedChannel;
-import io.grpc.ManagedChannelBuilder;
 import org.apache.commons.cli.CommandLine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Scanner;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class ChatClient {
     private final static Logger logger = LoggerFactory.getLogger(GRpcServer.class.getName());
-    private final String connectTarget;
+    private final static int maxRedirects = 3;
+    private String connectTarget;
+    private String keyStoreFilePath;
+    private int protocolVersion = Protocol.LATEST;
+    private String keyCachePath;
+    private int decryptThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private int sessionMessages = 1000;
+    private long sessionMinutes = 60;
+    private int maxInFlight = 256;
+    private String compression = null;
+    private int batchLinger = 0;
+    private int batchBytes = 16 * 1024;
+    private final TransportProfile transport;
     private final Account account = new Account();
     private boolean completeFlag = false;
-    private String warnMessage = null;
-    private CountDownLatch finishLatch = null;
+    private long room = -1;//当前发送的聊天室，-1为发给接收者
     private static boolean keyFileSaveFlag = false;
 
     //初始化
@@ -38,6 +52,45 @@ public class ChatClient {
         }
         this.connectTarget = ipConnect + ":" + portConnect;
         logger.info(" - SET Connect Target " + this.connectTarget);
+        //确定协议版本
+        if (result.hasOption("protocol")) {
+            protocolVersion = Integer.parseInt(result.getOptionValue("protocol"));
+        }
+        //确定解密线程数
+        if (result.hasOption("decrypt-threads")) {
+            decryptThreads = Integer.parseInt(result.getOptionValue("decrypt-threads"));
+        }
+        //确定在途消息数上限
+        if (result.hasOption("max-in-flight")) {
+            maxInFlight = Integer.parseInt(result.getOptionValue("max-in-flight"));
+        }
+        //确定私聊会话的轮换周期
+        if (result.hasOption("session-rotate")) {
+            sessionMessages = Integer.parseInt(result.getOptionValue("session-rotate"));
+        }
+        if (result.hasOption("session-ttl")) {
+            sessionMinutes = Long.parseLong(result.getOptionValue("session-ttl"));
+        }
+        //确定合并发送与压缩
+        if (result.hasOption("batch-linger")) {
+            batchLinger = Integer.parseInt(result.getOptionValue("batch-linger"));
+        }
+        if (result.hasOption("batch-bytes")) {
+            batchBytes = Integer.parseInt(result.getOptionValue("batch-bytes"));
+        }
+        if (result.hasOption("compression")) {
+            compression = result.getOptionValue("compression");
+            if (CompressorRegistry.getDefaultInstance().lookupCompressor(compression) == null) {
+                System.err.println("Unknown Compression \"" + compression + "\"");
+                System.exit(1);
+            }
+        }
+        //确定传输配置
+        transport = TransportProfile.fromOptions(result);
+        if (transport == null) {
+            System.err.println("Invalid Transport Profile");
+            System.exit(1);
+        }
         //确定密钥
         try {
             HybridConfig.register();
@@ -48,9 +101,14 @@ public class ChatClient {
         }
         if (result.hasOption("k")) {
             try {//导入密钥
-                String keyStoreFilePath = result.getOptionValue("k");
+                keyStoreFilePath = result.getOptionValue("k");
+                keyCachePath = KeyCache.pathOf(keyStoreFilePath);
                 KeyFile keyFile = KeyFile.parseFrom(GRpcUtil.readBytesFromFile(keyStoreFilePath));
                 account.id = keyFile.getId();
+                if (!keyFile.getHome().isEmpty() && !result.hasOption("i") && !result.hasOption("p")) {
+                    connectTarget = keyFile.getHome();//上次登录时重定向到的所属节点
+                    logger.info(" - SET Connect Target " + connectTarget + " (home)");
+                }
                 account.sk = GRpcUtil.getKeyKeysetHandle(keyFile.getKey());//私钥
                 account.pk = account.sk.getPublicKeysetHandle();//公钥
             } catch (GeneralSecurityException e) {
@@ -71,6 +129,8 @@ public class ChatClient {
                 String accountName = scanner.nextLine();
                 if (accountName.length() > 0)
                     account.name = accountName;
+                keyStoreFilePath = account.name + ".key";
+                keyCachePath = KeyCache.pathOf(keyStoreFilePath);
                 account.sk = KeysetHandle.generateNew(KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM"));//私钥
                 account.pk = account.sk.getPublicKeysetHandle();//公钥
             } catch (GeneralSecurityException e) {
@@ -86,102 +146,216 @@ public class ChatClient {
     public void run() throws InterruptedException {
         logger.info("Running in client mode");
         Thread threadClient = new Thread(() -> {
+            //已知用户的公钥
+            KeyCache keyCache = new KeyCache(keyCachePath);
+            keyCache.load();
             // 与服务器连接的通道
-            ManagedChannel channel = ManagedChannelBuilder.forTarget(connectTarget).usePlaintext().build();
-            GRpcClient client = new GRpcClient(channel);
-            client.setAccountInfo(account.id, account.name, account.pk, account.sk);
-            //登录
-            try {
-                CountDownLatch finishLatch = client.login();
-                if (!finishLatch.await(1, TimeUnit.MINUTES)) {
-                    logger.error("Login can not finish within 1 minutes");
-                    System.err.println("Login can not finish within 1 minutes");
-                }
-                if (client.isLoginSuccessful()) {
-                    logger.info("Login");
-                } else {
-                    logger.error("Login Failed");
-                    System.err.println("Login Failed");
-                    System.exit(1);
+            ManagedChannel channel = transport.channelBuilder(connectTarget).build();
+            GRpcClient client = createClient(channel, keyCache);
+            //登录，被重定向时连接账户所属的节点重新登录
+            boolean homeChanged = false;
+            for (int redirects = 0; ; redirects++) {
+                //协商协议版本
+                if (!await(client.hello(), "Hello")) {
+                    System.err.println("Hello Failed");
                 }
-            } catch (InterruptedException e) {
-                logger.error("Login failed: " + e.getMessage());
-                System.err.println("Login failed: " + e.getMessage());
+                await(client.login(), "Login");
+                if (client.getRedirect() == null || redirects == maxRedirects)
+                    break;
+                connectTarget = client.getRedirect();
+                homeChanged = true;
+                logger.info(" - Redirected to " + connectTarget);
+                client.close();
+                channel.shutdownNow();
+                channel = transport.channelBuilder(connectTarget).build();
+                client = createClient(channel, keyCache);
+            }
+            if (client.isLoginSuccessful()) {
+                logger.info("Login");
+            } else {
+                logger.error("Login Failed");
+                System.err.println("Login Failed");
                 System.exit(1);
             }
-            if (keyFileSaveFlag) {
-                //保存密钥
+            if (keyFileSaveFlag || homeChanged) {
+                //保存密钥与所属节点
                 try {
-                    String keyStoreFilePath = account.name + ".key";
                     KeyFile keyFile = KeyFile.newBuilder()
-                            .setId(GRpcClient.getAccountId()).setKey(GRpcUtil.getKeyByteString(account.sk))
+                            .setId(client.getAccountId()).setKey(GRpcUtil.getKeyByteString(account.sk))
+                            .setHome(connectTarget)
                             .build();
                     GRpcUtil.writeBytesToFile(keyFile.toByteArray(), keyStoreFilePath);
                 } catch (IOException e) {
-                    logger.error("Save Key File \"" + account.name + ".key\" Failed: " + e.getMessage());
-                    System.err.println("Save Key File \"" + account.name + ".key\" Failed: " + e.getMessage());
+                    logger.error("Save Key File \"" + keyStoreFilePath + "\" Failed: " + e.getMessage());
+                    System.err.println("Save Key File \"" + keyStoreFilePath + "\" Failed: " + e.getMessage());
                     System.exit(1);
                 }
-                logger.info(" - Key File \"" + account.name + ".key\" Generated and Saved");
+                logger.info(" - Key File \"" + keyStoreFilePath + "\" Saved");
             }
             Scanner scanner = new Scanner(System.in);
             logger.info("Receiver: " + client.getReceiver());
             //循环，直到登出
             do {
                 //发送消息
-                System.out.print("Send to [" + client.getReceiver() + "]: ");
+                System.out.print("Send to [" + (room >= 0 ? "Room " + room : client.getReceiver()) + "]: ");
                 String inputStr = scanner.nextLine();
-                boolean awaitFlag = true;
-                try {
-                    //其他功能
-                    if ("#function".equals(inputStr)) {
-                        GRpcUtil.printFunctions();
-                        inputStr = scanner.nextLine();
-                        switch (inputStr) {
-                            case "logout" -> {//登出
-                                warnMessage = "Logout";
-                                finishLatch = client.logout();
-                                completeFlag = true;
-                            }
-                            case "userlist" -> {//加载在线用户列表
-                                warnMessage = "Load user list";
-                                awaitFlag = false;
-                                client.showUserList();
-                            }
-                            case "setreceiver" -> {//设置接收者
-                                warnMessage = "Set target";
-                                awaitFlag = false;
-                                client.setReceiver();
-                            }
-                            default -> {
-                                System.out.println("Format Error");
-                                awaitFlag = false;
+                //其他功能
+                if ("#function".equals(inputStr)) {
+                    GRpcUtil.printFunctions();
+                    inputStr = scanner.nextLine();
+                    switch (inputStr) {
+                        case "logout" -> {//登出，结果在之前发送的消息之后返回
+                            await(client.logout(), "Logout");
+                            completeFlag = true;
+                        }
+                        case "userlist" -> showUserList(client);//加载在线用户列表
+                        case "setreceiver" -> {//设置接收者
+                            setReceiver(client);
+                            room = -1;
+                        }
+                        //聊天室
+                        case "createroom" -> {
+                            System.out.print("Room name: ");
+                            String roomName = scanner.nextLine();
+                            CompletableFuture<Pack> created = client.createRoom(roomName);
+                            if (await(created, "Create Room") && created.join().getResult().getCode() == StatusCode.OK)
+                                room = created.join().getResult().getId();
+                        }
+                        case "joinroom" -> {
+                            long roomId = readRoomId(scanner);
+                            CompletableFuture<Pack> joined = roomId < 0 ? null : client.joinRoom(roomId);
+                            if (joined != null && await(joined, "Join Room") && joined.join().getResult().getCode() == StatusCode.OK)
+                                room = roomId;
+                        }
+                        case "leaveroom" -> {
+                            long roomId = readRoomId(scanner);
+                            if (roomId >= 0) {
+                                client.leaveRoom(roomId);
+                                if (roomId == room)
+                                    room = -1;
                             }
                         }
-                    } else {//发送信息
-                        warnMessage = "Post message";
-                        finishLatch = client.post(inputStr);
+                        case "setroom" -> room = readRoomId(scanner);
+                        default -> System.out.println("Format Error");
                     }
-                    //等待同步
-                    if (awaitFlag && (!finishLatch.await(1, TimeUnit.MINUTES))) {
-                        logger.warn(warnMessage + " can not finish within 1 minutes");
-                    }
-                } catch (InterruptedException e) {
-                    logger.warn(warnMessage + " failed: " + e.getMessage());
+                } else if (room >= 0) {//发送到聊天室
+                    client.postRoom(room, inputStr);
+                } else {//发送信息，不等待结果，结果通知由接收线程显示
+                    client.post(inputStr);
                 }
             } while (!completeFlag);
 
+            keyCache.save();
+            client.close();
+            logger.info("Crypto: " + client.getCrypto());
             try {
                 channel.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
             } catch (InterruptedException e) {
                 logger.warn("Channel Shutdown Error: " + e.getMessage());
             }
+            transport.shutdown();
             System.exit(0);
         });
         threadClient.start();
         threadClient.join();
     }
 
+    //连接到channel的客户端
+    private GRpcClient createClient(ManagedChannel channel, KeyCache keyCache) {
+        GRpcClient client = new GRpcClient(channel, compression);
+        client.setListener(new ConsoleListener());
+        client.setDecryptThreads(decryptThreads);
+        client.setAccountInfo(account.id, account.name, account.pk, account.sk);
+        if (client.getCrypto() == null) {
+            System.err.println("Create Crypto Primitive Failed");
+            System.exit(1);
+        }
+        client.setSessionRotation(sessionMessages, TimeUnit.MINUTES.toMillis(sessionMinutes));
+        client.setMaxVersion(protocolVersion);
+        client.setMaxInFlight(maxInFlight);
+        client.setBatching(batchLinger, batchBytes);
+        client.setKeyCache(keyCache);
+        return client;
+    }
+
+    //读取房间id，输入错误返回-1
+    private static long readRoomId(Scanner scanner) {
+        System.out.print("Room id: ");
+        try {
+            return Long.parseLong(scanner.nextLine().trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Format Error");
+            return -1;
+        }
+    }
+
+    //展示在线用户名单
+    private static void showUserList(GRpcClient client) {
+        StringBuffer sb = new StringBuffer("\r+ Online Users:\n");
+        int userIndex = 1;
+        for (GRpcClient.User user : client.getUserList().values()) {
+            sb.append("| User ").append(userIndex++).append(": ").append(user.name).append("\n");
+        }
+        sb.append("\n");
+        System.out.println(sb);
+    }
+
+    //设置接收者
+    private static void setReceiver(GRpcClient client) {
+        int userIndex = 1;
+        StringBuffer sb = new StringBuffer("\rUser[0]: #Everyone\n");
+        ArrayList<GRpcClient.User> users = new ArrayList<>();
+        for (GRpcClient.User user : client.getUserList().values()) {
+            if (user.id == client.getAccountId())
+                continue;
+            sb.append("User[").append(userIndex++).append("]: ").append(user.name).append("\n");
+            users.add(user);
+        }
+        sb.append("Receiver index: ");
+        System.out.print(sb);
+
+        Scanner scanner = new Scanner(System.in);
+        int inputInt;
+        //输入合法性验证
+        if (scanner.hasNextInt()) {
+            inputInt = scanner.nextInt();
+        } else {
+            inputInt = -1;
+        }
+        //设置接收者
+        if (inputInt > 0 && inputInt <= users.size()) {
+            GRpcClient.User user = users.get(inputInt - 1);
+            if (client.setReceiver(user.id)) {
+                System.out.println("Set Receiver User " + user.name + " Succeeded");
+                logger.info("Set new Receiver: " + user.name);
+            } else {
+                System.out.println("Set Receiver Failed: Public key of " + user.name + " is unavailable");
+            }
+        } else if (inputInt == 0) {//设置群发
+            client.setReceiver(-1);
+            System.out.println("Set Receiver User #Everyone Succeeded");
+            logger.info("Set new Receiver: #Everyone");
+        } else {
+            System.out.println("Set Receiver Failed");
+        }
+    }
+
+    //等待请求的结果，超时或失败时返回false
+    private static boolean await(CompletableFuture<Pack> future, String action) {
+        try {
+            future.get(1, TimeUnit.MINUTES);
+            return true;
+        } catch (TimeoutException e) {
+            logger.warn(action + " can not finish within 1 minutes");
+        } catch (ExecutionException e) {
+            logger.warn(action + " failed: " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn(action + " failed: " + e.getMessage());
+        }
+        return false;
+    }
+
     //账户信息
     private static class Account {
         public long id = -1;
@@ -11,30 +11,59 @@ import java.io.File;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
 import java.sql.*;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongPredicate;
 
-//包括一张表：UserList(id, name, pk, skHashSalted, salt, regDate)
+//包括四张表：UserList(id, name, pk, skHashSalted, salt, regDate)
+//          OfflineMessage(seq, receiver, sender, message, createDate)
+//          Room(id, name, owner, createDate)
+//          RoomMember(room, member)
+//写操作使用唯一的写连接，读操作使用只读连接池
 public class ChatDatabase {
     private final static Logger logger = LoggerFactory.getLogger("Server");
     private final String databaseRoot = "./db/";
     private final String database;
-    private Connection connection = null;
+    private final int readConnections;
+    private ConnectionPool pool = null;
+    private AuthCache authCache = new AuthCache(100_000);
     private final String databaseFilePath;
     private final long originId = 1597534;
+    private LongPredicate idFilter = null;//分片模式下本节点所属的id，新用户只分配这些id
+    //各类数据库操作的耗时
+    private final LatencyHistogram[] timers = new LatencyHistogram[Op.values().length];
+
+    //计时的数据库操作（登录只统计认证缓存未命中时的查询）
+    public enum Op {
+        REGISTER, LOGIN, SELECT_ALL, SELECT_USER, INSERT_OFFLINE, SELECT_OFFLINE, DELETE_OFFLINE, DELETE_EXPIRED,
+        UPDATE_ROOM, SELECT_ROOMS;
+
+        public String label() {
+            return name().toLowerCase();
+        }
+    }
 
     public ChatDatabase(String database) {
+        this(database, 4);
+    }
+
+    public ChatDatabase(String database, int readConnections) {
         this.database = database;
+        this.readConnections = readConnections;
+        for (int i = 0; i < timers.length; i++)
+            timers[i] = new LatencyHistogram();
         File dir = new File(databaseRoot);
         if (!dir.exists())
             dir.mkdirs();
         databaseFilePath = databaseRoot + database;
     }
 
-    //打开数据库
+    //打开数据库（WAL模式，提交时不等待检查点fsync）
     public boolean openDB() {
         try {
             Class.forName("org.sqlite.JDBC");
-            connection = DriverManager.getConnection("jdbc:sqlite:" + databaseFilePath);
+            pool = new ConnectionPool("jdbc:sqlite:" + databaseFilePath, readConnections);
         } catch (ClassNotFoundException | SQLException e) {
             logger.error("Database " + database + " Open Error: " + e);
             return false;
@@ -46,19 +75,20 @@ public class ChatDatabase {
     //关闭数据库
     public boolean closeDB() {
         try {
-            connection.close();
+            pool.close();
         } catch (SQLException | NullPointerException e) {
             logger.error("Database " + database + " Close Error: " + e);
             return false;
         }
-        logger.info("Database " + database + " Close Succeed");
+        logger.info("Database " + database + " Close Succeed, Pool Wait: " + pool);
         return true;
     }
 
     //新建表
     public boolean createTable() {
         try {
-            try (Statement stmt = connection.createStatement()) {
+            try (ConnectionPool.PooledConnection pc = pool.writer();
+                 Statement stmt = pc.getConnection().createStatement()) {
                 String sql1 = "create table UserList(" +
                         "id integer not null constraint UserList_pk primary key autoincrement," +
                         "name text not null," +
@@ -93,8 +123,9 @@ public class ChatDatabase {
                 System.err.println("KeyGen Error: " + e.getMessage());
                 System.exit(1);
             }
-            try (PreparedStatement ps = connection.prepareStatement(
-                    "INSERT INTO UserList(id, name, pk, skHashSalted, salt,regDate) VALUES (?,?,?,?,?,?);")) {
+            try (ConnectionPool.PooledConnection pc = pool.writer()) {
+                PreparedStatement ps = pc.prepare(
+                        "INSERT INTO UserList(id, name, pk, skHashSalted, salt,regDate) VALUES (?,?,?,?,?,?);");
                 ps.setObject(1, originId);
                 ps.setObject(2, "#Everyone");
                 ps.setObject(3, pkInit.toByteArray());
@@ -113,86 +144,177 @@ public class ChatDatabase {
 
     //注册，并插入新的用户信息，返回一个不重复的id，插入失败则返回-1
     public long reg(String name, ByteString pk, String skHash) {
-        long id;
-        try {
-            String salt = GRpcUtil.getSalt();
-            String skHashSalted = GRpcUtil.addSalt(skHash, salt);
-            try (PreparedStatement ps = connection.prepareStatement(
-                    "INSERT INTO UserList(name, pk, skHashSalted, salt,regDate) VALUES (?, ?, ?, ?, ?);",
-                    Statement.RETURN_GENERATED_KEYS)) {
-                ps.setObject(1, name);
-                ps.setObject(2, pk.toByteArray());
-                ps.setObject(3, skHashSalted);
-                ps.setObject(4, salt);
-                ps.setObject(5, GRpcUtil.getTimeStamp());
-                ps.executeUpdate();
-                try (ResultSet rs = ps.getGeneratedKeys()) {
-                    id = rs.getLong(1); // 注意：索引从1开始
-                    logger.info("New User " + name + "'s Id: " + id);
+        return regBatch(List.of(Registration.of(name, pk, skHash)))[0];
+    }
+
+    //批量注册（单个事务），按顺序返回新用户id，插入失败则全部为-1
+    public long[] regBatch(List<Registration> registrations) {
+        long[] ids = new long[registrations.size()];
+        long start = System.nanoTime();
+        try (ConnectionPool.PooledConnection pc = pool.writer()) {
+            Connection connection = pc.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                String regDate = GRpcUtil.getTimeStamp();
+                if (idFilter == null) {
+                    PreparedStatement ps = pc.prepareReturningKeys(
+                            "INSERT INTO UserList(name, pk, skHashSalted, salt,regDate) VALUES (?, ?, ?, ?, ?);");
+                    for (int i = 0; i < ids.length; i++) {
+                        Registration registration = registrations.get(i);
+                        ps.setObject(1, registration.getName());
+                        ps.setObject(2, registration.getPk().toByteArray());
+                        ps.setObject(3, registration.getSkHashSalted());
+                        ps.setObject(4, registration.getSalt());
+                        ps.setObject(5, regDate);
+                        ps.executeUpdate();
+                        try (ResultSet rs = ps.getGeneratedKeys()) {
+                            ids[i] = rs.getLong(1); // 注意：索引从1开始
+                        }
+                    }
+                } else {//分片模式：从最大id之后依次跳过不属于本节点的id
+                    long next;
+                    try (ResultSet rs = pc.prepare("SELECT max(id) FROM UserList;").executeQuery()) {
+                        next = Math.max(rs.getLong(1), originId) + 1;
+                    }
+                    PreparedStatement ps = pc.prepare(
+                            "INSERT INTO UserList(id, name, pk, skHashSalted, salt,regDate) VALUES (?, ?, ?, ?, ?, ?);");
+                    for (int i = 0; i < ids.length; i++) {
+                        while (!idFilter.test(next))
+                            next++;
+                        Registration registration = registrations.get(i);
+                        ps.setObject(1, next);
+                        ps.setObject(2, registration.getName());
+                        ps.setObject(3, registration.getPk().toByteArray());
+                        ps.setObject(4, registration.getSkHashSalted());
+                        ps.setObject(5, registration.getSalt());
+                        ps.setObject(6, regDate);
+                        ps.executeUpdate();
+                        ids[i] = next++;
+                    }
                 }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
         } catch (SQLException | NullPointerException e) {
             logger.error("Insert Error: " + e);
-            return -1;
+            Arrays.fill(ids, -1);
+            return ids;
+        } finally {
+            record(Op.REGISTER, start);
         }
-        logger.info("Insert Succeed");
-        return id;
+        //新注册的用户写入认证缓存
+        for (int i = 0; i < ids.length; i++) {
+            Registration registration = registrations.get(i);
+            authCache.invalidate(ids[i]);
+            authCache.put(ids[i], registration.getName(), registration.getSalt(), registration.getSkHashSalted());
+        }
+        logger.info("Insert " + ids.length + " Users Succeed");
+        return ids;
     }
 
-    //登录
+    //登录，先查认证缓存，未命中才查询数据库
     public String login(long id, String skHash) {
-        try {
-            try (PreparedStatement ps = connection.prepareStatement(
-                    "SELECT id, name, skHashSalted, salt FROM UserList WHERE id=?;")) {
-                ps.setObject(1, id);
-                try (ResultSet rs = ps.executeQuery()) {
-                    if (rs.next()) {//用户存在
-                        String skHashSalted = rs.getString("skHashSalted");
-                        String salt = rs.getString("salt");
-                        if (GRpcUtil.addSalt(skHash, salt).equals(skHashSalted)) {
-                            logger.info("User " + id + " Login Succeed");
-                            return rs.getString("name");
+        AuthCache.Result cached = authCache.verify(id, skHash);
+        if (cached == AuthCache.Result.HIT_OK) {
+            logger.info("User " + id + " Login Succeed");
+            return authCache.getName(id);
+        }
+        if (cached == AuthCache.Result.MISS) {
+            long start = System.nanoTime();
+            try {
+                try (ConnectionPool.PooledConnection pc = pool.reader()) {
+                    PreparedStatement ps = pc.prepare(
+                            "SELECT id, name, skHashSalted, salt FROM UserList WHERE id=?;");
+                    ps.setObject(1, id);
+                    try (ResultSet rs = ps.executeQuery()) {
+                        if (rs.next()) {//用户存在
+                            String name = rs.getString("name");
+                            String salt = rs.getString("salt");
+                            String skHashSalted = rs.getString("skHashSalted");
+                            authCache.put(id, name, salt, skHashSalted);
+                            if (AuthCache.matches(skHash, salt, skHashSalted)) {//直接验证读到的行，不计入缓存命中
+                                logger.info("User " + id + " Login Succeed");
+                                return name;
+                            }
                         }
                     }
                 }
+            } catch (SQLException | NullPointerException e) {
+                logger.error("Select ID " + id + " Error: " + e);
+                return null;
+            } finally {
+                record(Op.LOGIN, start);
             }
-        } catch (SQLException | NullPointerException e) {
-            logger.error("Select ID " + id + " Error: " + e);
-            return null;
         }
         logger.warn("User " + id + " Login Failed");
         return null;
     }
 
     //获取所有用户信息
-    public boolean selectAll(HashMap<Long, UserInfo> register) {
+    public boolean selectAll(SessionRegistry register) {
         register.clear();
+        int warm = authCache.getCapacity();
+        long start = System.nanoTime();
         try {
-            try (PreparedStatement ps = connection.prepareStatement(
-                    "SELECT * FROM UserList;")) {
+            try (ConnectionPool.PooledConnection pc = pool.reader()) {
+                PreparedStatement ps = pc.prepare("SELECT * FROM UserList;");
                 try (ResultSet rs = ps.executeQuery()) {
                     while (rs.next()) {
                         UserInfo userInfo = new UserInfo();
                         userInfo.setId(rs.getLong("id"));
                         userInfo.setName(rs.getString("name"));
                         userInfo.setPk(ByteString.copyFrom(rs.getBytes("pk")));
-                        userInfo.setStream(null);
-                        register.put(userInfo.getId(), userInfo);
+                        register.add(userInfo);
+                        //预热认证缓存
+                        if (warm-- > 0)
+                            authCache.put(userInfo.getId(), userInfo.getName(), rs.getString("salt"), rs.getString("skHashSalted"));
                     }
                 }
             }
         } catch (SQLException | NullPointerException e) {
             logger.error("Select All Error: " + e);
             return false;
+        } finally {
+            record(Op.SELECT_ALL, start);
         }
         logger.info("Select All Succeed");
         return true;
     }
 
+    //获取单个用户信息（集群模式下由其他节点注册、本节点尚未同步的用户），不存在或出错返回null
+    public UserInfo selectUser(long id) {
+        long start = System.nanoTime();
+        try {
+            try (ConnectionPool.PooledConnection pc = pool.reader()) {
+                PreparedStatement ps = pc.prepare("SELECT id, name, pk FROM UserList WHERE id=?;");
+                ps.setObject(1, id);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (!rs.next())
+                        return null;
+                    UserInfo userInfo = new UserInfo();
+                    userInfo.setId(rs.getLong("id"));
+                    userInfo.setName(rs.getString("name"));
+                    userInfo.setPk(ByteString.copyFrom(rs.getBytes("pk")));
+                    return userInfo;
+                }
+            }
+        } catch (SQLException | NullPointerException e) {
+            logger.error("Select ID " + id + " Error: " + e);
+            return null;
+        } finally {
+            record(Op.SELECT_USER, start);
+        }
+    }
+
     //清空表
     public boolean clearTable(String tableName) {
         try {
-            try (Statement stmt = connection.createStatement()) {
+            try (ConnectionPool.PooledConnection pc = pool.writer();
+                 Statement stmt = pc.getConnection().createStatement()) {
                 String sql = "DELETE from " + tableName;
                 stmt.executeUpdate(sql);
             }
@@ -204,6 +326,269 @@ public class ChatDatabase {
         return true;
     }
 
+    //新建离线消息表（已存在则跳过）
+    public boolean createOfflineTable() {
+        try {
+            try (ConnectionPool.PooledConnection pc = pool.writer();
+                 Statement stmt = pc.getConnection().createStatement()) {
+                String sql1 = "create table if not exists OfflineMessage(" +
+                        "seq integer not null constraint OfflineMessage_pk primary key autoincrement," +
+                        "receiver integer not null," +
+                        "sender integer not null," +
+                        "message blob not null," +
+                        "createDate integer not null" +
+                        ");";
+                String sql2 = "create index if not exists OfflineMessage_receiver_index on OfflineMessage (receiver, seq)";
+                stmt.executeUpdate(sql1);
+                stmt.executeUpdate(sql2);
+            }
+        } catch (SQLException | NullPointerException e) {
+            logger.error("Create Table \"OfflineMessage\" Error: " + e);
+            return false;
+        }
+        return true;
+    }
+
+    //新建聊天室与成员表（已存在则跳过）
+    public boolean createRoomTables() {
+        try {
+            try (ConnectionPool.PooledConnection pc = pool.writer();
+                 Statement stmt = pc.getConnection().createStatement()) {
+                String sql1 = "create table if not exists Room(" +
+                        "id integer not null constraint Room_pk primary key autoincrement," +
+                        "name text not null," +
+                        "owner integer not null," +
+                        "createDate date not null" +
+                        ");";
+                String sql2 = "create table if not exists RoomMember(" +
+                        "room integer not null," +
+                        "member integer not null," +
+                        "constraint RoomMember_pk primary key (room, member)" +
+                        ") without rowid;";
+                stmt.executeUpdate(sql1);
+                stmt.executeUpdate(sql2);
+            }
+        } catch (SQLException | NullPointerException e) {
+            logger.error("Create Table \"Room\" Error: " + e);
+            return false;
+        }
+        return true;
+    }
+
+    //创建聊天室，创建者同时成为成员，返回房间id，失败返回-1
+    public long createRoom(String name, long owner) {
+        long start = System.nanoTime();
+        long id;
+        try (ConnectionPool.PooledConnection pc = pool.writer()) {
+            Connection connection = pc.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement ps = pc.prepareReturningKeys(
+                        "INSERT INTO Room(name, owner, createDate) VALUES (?, ?, ?);");
+                ps.setObject(1, name);
+                ps.setObject(2, owner);
+                ps.setObject(3, GRpcUtil.getTimeStamp());
+                ps.executeUpdate();
+                try (ResultSet rs = ps.getGeneratedKeys()) {
+                    id = rs.getLong(1);
+                }
+                PreparedStatement member = pc.prepare("INSERT OR IGNORE INTO RoomMember(room, member) VALUES (?, ?);");
+                member.setLong(1, id);
+                member.setLong(2, owner);
+                member.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException | NullPointerException e) {
+            logger.error("Create Room Error: " + e);
+            return -1;
+        } finally {
+            record(Op.UPDATE_ROOM, start);
+        }
+        logger.info("Room " + id + " Created by User " + owner);
+        return id;
+    }
+
+    //加入或离开聊天室
+    public boolean updateRoomMember(long room, long member, boolean join) {
+        long start = System.nanoTime();
+        try (ConnectionPool.PooledConnection pc = pool.writer()) {
+            PreparedStatement ps = pc.prepare(join ? "INSERT OR IGNORE INTO RoomMember(room, member) VALUES (?, ?);"
+                    : "DELETE FROM RoomMember WHERE room=? AND member=?;");
+            ps.setLong(1, room);
+            ps.setLong(2, member);
+            ps.executeUpdate();
+        } catch (SQLException | NullPointerException e) {
+            logger.error("Update Room " + room + " Member " + member + " Error: " + e);
+            return false;
+        } finally {
+            record(Op.UPDATE_ROOM, start);
+        }
+        return true;
+    }
+
+    //加载全部聊天室与成员到索引
+    public boolean selectRooms(RoomIndex index) {
+        index.clear();
+        long start = System.nanoTime();
+        try (ConnectionPool.PooledConnection pc = pool.reader()) {
+            try (ResultSet rs = pc.prepare("SELECT id, name, owner FROM Room;").executeQuery()) {
+                while (rs.next())
+                    index.addRoom(rs.getLong("id"), rs.getString("name"), rs.getLong("owner"));
+            }
+            try (ResultSet rs = pc.prepare("SELECT room, member FROM RoomMember;").executeQuery()) {
+                while (rs.next())
+                    index.join(rs.getLong("room"), rs.getLong("member"));
+            }
+        } catch (SQLException | NullPointerException e) {
+            logger.error("Select Rooms Error: " + e);
+            return false;
+        } finally {
+            record(Op.SELECT_ROOMS, start);
+        }
+        logger.info("Select " + index.size() + " Rooms, " + index.getMemberships() + " Members");
+        return true;
+    }
+
+    //批量写入离线消息（单个事务），每个接收者只保留最新的quota条
+    public boolean insertOfflineMessages(List<OfflineMessage> messages, int quota) {
+        long start = System.nanoTime();
+        try (ConnectionPool.PooledConnection pc = pool.writer()) {
+            Connection connection = pc.getConnection();
+            connection.setAutoCommit(false);
+            try {
+                PreparedStatement insert = pc.prepare(
+                        "INSERT INTO OfflineMessage(receiver, sender, message, createDate) VALUES (?, ?, ?, ?);");
+                PreparedStatement trim = pc.prepare(
+                        "DELETE FROM OfflineMessage WHERE receiver=? AND seq <= " +
+                                "(SELECT seq FROM OfflineMessage WHERE receiver=? ORDER BY seq DESC LIMIT 1 OFFSET ?);");
+                for (OfflineMessage message : messages) {
+                    insert.setLong(1, message.getReceiver());
+                    insert.setLong(2, message.getSender());
+                    insert.setBytes(3, message.getMessage().toByteArray());
+                    insert.setLong(4, message.getCreateDate());
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+                LongHashMap<Boolean> trimmed = new LongHashMap<>(messages.size());
+                for (OfflineMessage message : messages) {//同一批次中的每个接收者只检查一次
+                    if (trimmed.put(message.getReceiver(), Boolean.TRUE) != null)
+                        continue;
+                    trim.setLong(1, message.getReceiver());
+                    trim.setLong(2, message.getReceiver());
+                    trim.setInt(3, quota);
+                    trim.executeUpdate();
+                }
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException | NullPointerException e) {
+            logger.error("Insert Offline Messages Error: " + e);
+            return false;
+        } finally {
+            record(Op.INSERT_OFFLINE, start);
+        }
+        return true;
+    }
+
+    //按顺序读取接收者seq之后、未过期的离线消息
+    public List<OfflineMessage> selectOfflineMessages(long receiver, long afterSeq, long minCreateDate, int limit) {
+        List<OfflineMessage> messages = new ArrayList<>();
+        long start = System.nanoTime();
+        try {
+            try (ConnectionPool.PooledConnection pc = pool.reader()) {
+                PreparedStatement ps = pc.prepare(
+                        "SELECT seq, sender, message, createDate FROM OfflineMessage " +
+                                "WHERE receiver=? AND seq>? AND createDate>=? ORDER BY seq LIMIT ?;");
+                ps.setLong(1, receiver);
+                ps.setLong(2, afterSeq);
+                ps.setLong(3, minCreateDate);
+                ps.setInt(4, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        messages.add(new OfflineMessage(rs.getLong("seq"), receiver, rs.getLong("sender"),
+                                ByteString.copyFrom(rs.getBytes("message")), rs.getLong("createDate")));
+                    }
+                }
+            }
+        } catch (SQLException | NullPointerException e) {
+            logger.error("Select Offline Messages of " + receiver + " Error: " + e);
+        } finally {
+            record(Op.SELECT_OFFLINE, start);
+        }
+        return messages;
+    }
+
+    //删除接收者seq及之前的离线消息（已投递）
+    public boolean deleteOfflineMessages(long receiver, long uptoSeq) {
+        long start = System.nanoTime();
+        try {
+            try (ConnectionPool.PooledConnection pc = pool.writer()) {
+                PreparedStatement ps = pc.prepare("DELETE FROM OfflineMessage WHERE receiver=? AND seq<=?;");
+                ps.setLong(1, receiver);
+                ps.setLong(2, uptoSeq);
+                ps.executeUpdate();
+            }
+        } catch (SQLException | NullPointerException e) {
+            logger.error("Delete Offline Messages of " + receiver + " Error: " + e);
+            return false;
+        } finally {
+            record(Op.DELETE_OFFLINE, start);
+        }
+        return true;
+    }
+
+    //删除过期的离线消息，返回删除条数
+    public int deleteExpiredOfflineMessages(long minCreateDate) {
+        long start = System.nanoTime();
+        try {
+            try (ConnectionPool.PooledConnection pc = pool.writer()) {
+                PreparedStatement ps = pc.prepare("DELETE FROM OfflineMessage WHERE createDate<?;");
+                ps.setLong(1, minCreateDate);
+                return ps.executeUpdate();
+            }
+        } catch (SQLException | NullPointerException e) {
+            logger.error("Delete Expired Offline Messages Error: " + e);
+            return 0;
+        } finally {
+            record(Op.DELETE_EXPIRED, start);
+        }
+    }
+
+    private void record(Op op, long start) {
+        timers[op.ordinal()].recordNanos(System.nanoTime() - start);
+    }
+
+    public LatencyHistogram getTimer(Op op) {
+        return timers[op.ordinal()];
+    }
+
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    public AuthCache getAuthCache() {
+        return authCache;
+    }
+
+    //设置认证缓存（需在openDB之前）
+    public void setAuthCache(AuthCache authCache) {
+        this.authCache = authCache;
+    }
+
+    //设置新用户id的过滤条件（分片模式下为本节点所属的id），null为数据库自增id
+    public void setIdFilter(LongPredicate idFilter) {
+        this.idFilter = idFilter;
+    }
+
     public long getOriginId() {
         return originId;
     }
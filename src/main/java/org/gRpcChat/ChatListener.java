@@ -0,0 +1,44 @@
+package org.gRpcChat;
+
+import java.security.GeneralSecurityException;
+
+//客户端事件回调，在gRPC回调线程或解密线程上调用，不应阻塞（发送请使用返回的future）
+//回调中可以发送：结果也在回调线程上返回，因此不等待在途请求窗口，窗口已满时返回失败的future
+//同一个监听器可以注册到多个客户端，client为事件所属的账户
+public interface ChatListener {
+    //收到私聊消息，同一发送者的消息按顺序回调
+    default void onMessage(GRpcClient client, long sender, String message) {
+    }
+
+    //私聊消息解密失败
+    default void onDecryptFailed(GRpcClient client, long sender, GeneralSecurityException error) {
+    }
+
+    //收到群发消息
+    default void onBroadcast(GRpcClient client, long sender, String message) {
+    }
+
+    //收到聊天室消息
+    default void onRoomMessage(GRpcClient client, long room, long sender, String message) {
+    }
+
+    //服务器对请求的结果通知
+    default void onNotice(GRpcClient client, String notice) {
+    }
+
+    //登录结果，在线用户列表已更新
+    default void onLogin(GRpcClient client, LoginResult result) {
+    }
+
+    //用户上线
+    default void onUserOnline(GRpcClient client, GRpcClient.User user) {
+    }
+
+    //用户下线
+    default void onUserOffline(GRpcClient client, long id) {
+    }
+
+    //与服务器的连接结束，cause为null表示服务器正常结束（如登出后）
+    default void onDisconnected(GRpcClient client, Throwable cause) {
+    }
+}
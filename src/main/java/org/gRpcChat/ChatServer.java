@@ -5,10 +5,35 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 public class ChatServer {
     private final static Logger logger = LoggerFactory.getLogger("Server");
     private int portListening = 50000;
+    private int queueCapacity = 1024;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private int fanOutThreads = Runtime.getRuntime().availableProcessors();
+    private int fanOutShardSize = 256;
+    private long offlineTtlMillis = TimeUnit.DAYS.toMillis(7);
+    private int offlineQuota = 1000;
+    private int dbReadConnections = 4;
+    private int authCacheSize = 100_000;
+    private int presenceLogSize = 4096;
+    private int metricsPort = 0;
+    private String auditDir = "./audit/";
+    private String spillDir = "./spill/";
+    private long auditFileBytes = 64L << 20;
+    private int auditFiles = 100;
+    private final TransportProfile transport;
+    private HandlerExecutor.Mode execMode = HandlerExecutor.Mode.INLINE;
+    private int handlerThreads = 16;
+    private int nodeId = 0;
+    private int clusterPort = 0;
+    private List<String> peers = List.of();
+    private String clusterSecret = "";
+    private HashRing ring = null;
 
     //初始化
     public ChatServer(CommandLine result) {
@@ -16,13 +41,104 @@ public class ChatServer {
         if (result.hasOption("p")) {
             portListening = Integer.parseInt(result.getOptionValue("p"));
         }
+        //设置每个会话发送队列
+        if (result.hasOption("queue-size")) {
+            queueCapacity = Integer.parseInt(result.getOptionValue("queue-size"));
+        }
+        if (result.hasOption("overflow")) {
+            overflowPolicy = OutboundQueue.OverflowPolicy.parse(result.getOptionValue("overflow"));
+        }
+        //设置群发线程数与分片大小
+        if (result.hasOption("fanout-threads")) {
+            fanOutThreads = Integer.parseInt(result.getOptionValue("fanout-threads"));
+        }
+        if (result.hasOption("fanout-shard")) {
+            fanOutShardSize = Integer.parseInt(result.getOptionValue("fanout-shard"));
+        }
+        //设置离线消息
+        if (result.hasOption("offline-ttl")) {
+            offlineTtlMillis = TimeUnit.HOURS.toMillis(Long.parseLong(result.getOptionValue("offline-ttl")));
+        }
+        if (result.hasOption("offline-quota")) {
+            offlineQuota = Integer.parseInt(result.getOptionValue("offline-quota"));
+        }
+        //设置数据库连接池
+        if (result.hasOption("db-readers")) {
+            dbReadConnections = Integer.parseInt(result.getOptionValue("db-readers"));
+        }
+        //设置认证缓存
+        if (result.hasOption("auth-cache")) {
+            authCacheSize = Integer.parseInt(result.getOptionValue("auth-cache"));
+        }
+        //设置在线状态日志
+        if (result.hasOption("presence-log")) {
+            presenceLogSize = Integer.parseInt(result.getOptionValue("presence-log"));
+        }
+        //设置指标抓取端口
+        if (result.hasOption("metrics-port")) {
+            metricsPort = Integer.parseInt(result.getOptionValue("metrics-port"));
+        }
+        //设置传输配置
+        transport = TransportProfile.fromOptions(result);
+        if (transport == null) {
+            System.err.println("Invalid Transport Profile");
+            System.exit(1);
+        }
+        //设置消息处理的执行方式
+        if (result.hasOption("exec-mode")) {
+            execMode = HandlerExecutor.Mode.parse(result.getOptionValue("exec-mode"));
+        }
+        if (result.hasOption("handler-threads")) {
+            handlerThreads = Integer.parseInt(result.getOptionValue("handler-threads"));
+        }
+        //设置集群模式
+        if (result.hasOption("node-id")) {
+            nodeId = Integer.parseInt(result.getOptionValue("node-id"));
+            clusterPort = portListening + 1000;
+            auditDir = "./audit/node-" + nodeId + "/";//同一目录下运行多个节点时各自写入
+            spillDir = "./spill/node-" + nodeId + "/";//启动时会清空溢出目录，不能与其他节点共用
+        }
+        if (result.hasOption("cluster-port")) {
+            clusterPort = Integer.parseInt(result.getOptionValue("cluster-port"));
+        }
+        if (result.hasOption("peers")) {
+            peers = Arrays.asList(result.getOptionValue("peers").split(","));
+        }
+        if (result.hasOption("cluster-secret")) {
+            clusterSecret = result.getOptionValue("cluster-secret");
+        }
+        if (nodeId > 0 && clusterSecret.isEmpty()) {
+            System.err.println("Cluster mode requires --cluster-secret, the same on every node");
+            System.exit(1);
+        }
+        //设置分片模式（需要集群模式），各节点使用自己的数据库
+        if (result.hasOption("ring")) {
+            int vnodes = HashRing.DEFAULT_VNODES;
+            if (result.hasOption("ring-vnodes"))
+                vnodes = Integer.parseInt(result.getOptionValue("ring-vnodes"));
+            ring = HashRing.parse(result.getOptionValue("ring"), vnodes);
+            if (ring == null || nodeId <= 0 || ring.address(nodeId) == null) {
+                System.err.println("Invalid Ring: expected 1=host:port,2=host:port including --node-id");
+                System.exit(1);
+            }
+        }
+        //设置审计日志
+        if (result.hasOption("audit-dir")) {
+            auditDir = result.getOptionValue("audit-dir");
+        }
+        if (result.hasOption("audit-size")) {
+            auditFileBytes = Long.parseLong(result.getOptionValue("audit-size")) << 20;
+        }
+        if (result.hasOption("audit-files")) {
+            auditFiles = Integer.parseInt(result.getOptionValue("audit-files"));
+        }
     }
 
     //运行服务端线程
     public void run() throws InterruptedException {
         logger.info("Running in server mode");
         Thread threadServer = new Thread(() -> {
-            final GRpcServer server = new GRpcServer();
+            final GRpcServer server = createServer();
             try {
                 server.start(portListening);
                 server.blockUntilShutdown();
@@ -34,4 +150,33 @@ public class ChatServer {
         threadServer.start();
         threadServer.join();
     }
+
+    //按命令行参数配置的服务器（尚未启动）
+    public GRpcServer createServer() {
+        GRpcServer server = new GRpcServer();
+        server.setOutboundQueue(queueCapacity, overflowPolicy, spillDir);
+        server.setFanOut(fanOutThreads, fanOutShardSize);
+        server.setOfflineStore(offlineTtlMillis, offlineQuota);
+        server.setDbReadConnections(dbReadConnections);
+        server.setAuthCacheSize(authCacheSize);
+        server.setPresenceLogSize(presenceLogSize);
+        server.setMetricsPort(metricsPort);
+        server.setAuditLog(auditDir, auditFileBytes, auditFiles);
+        server.setTransport(transport);
+        server.setHandlerExecutor(execMode, handlerThreads);
+        server.setCluster(nodeId, clusterPort, peers, clusterSecret);
+        if (ring != null) {
+            server.setRing(ring);
+            server.setDbFile("userList-node" + nodeId + ".db");
+        }
+        return server;
+    }
+
+    public TransportProfile getTransport() {
+        return transport;
+    }
+
+    public int getPort() {
+        return portListening;
+    }
 }
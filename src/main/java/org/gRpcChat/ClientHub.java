@@ -0,0 +1,155 @@
+package org.gRpcChat;
+
+import com.google.crypto.tink.KeysetHandle;
+import io.grpc.Channel;
+import io.grpc.ClientInterceptors;
+import io.grpc.ManagedChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//多账户客户端（机器人、桥接）：所有账户共享一个通道（一条HTTP/2连接）、回调线程池、解密线程与公钥缓存
+//用法：ClientHub hub = new ClientHub("127.0.0.1:50000", 4); hub.setListener(...);
+//      GRpcClient client = hub.newClient(id, name, sk); hub.connect(client).thenAccept(...);
+public class ClientHub implements AutoCloseable {
+    private final static Logger logger = LoggerFactory.getLogger(GRpcServer.class.getName());
+    private final ManagedChannel channel;
+    private final Channel tracedChannel;//统计流量的通道，客户端使用
+    private final WireStats wireStats = new WireStats();
+    private final ExecutorService executor;
+    private final OrderedExecutor decryptWorkers;
+    private final KeyCache keyCache;
+    private final TransportProfile transport;
+    private final Set<GRpcClient> clients = ConcurrentHashMap.newKeySet();
+    private ChatListener listener = new ChatListener() {
+    };
+    private int maxVersion = Protocol.LATEST;
+    private int maxInFlight = 256;
+    private String compression = null;
+    private int batchLinger = 0;
+    private int batchMaxBytes = 16 * 1024;
+
+    //threads：回调线程与解密线程数；keyCachePath为null时公钥只缓存在内存中
+    //transport：连接的传输配置，hub关闭时释放
+    public ClientHub(String target, int threads, String keyCachePath, TransportProfile transport) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "hub-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.transport = transport;
+        this.channel = transport.channelBuilder(target, executor).build();
+        this.tracedChannel = ClientInterceptors.intercept(channel, wireStats);
+        this.decryptWorkers = new OrderedExecutor(threads, 4096, "hub-decrypt");
+        this.keyCache = new KeyCache(keyCachePath);
+        keyCache.load();
+    }
+
+    public ClientHub(String target, int threads, String keyCachePath) {
+        this(target, threads, keyCachePath, new TransportProfile());
+    }
+
+    public ClientHub(String target, int threads) {
+        this(target, threads, null);
+    }
+
+    //创建账户的客户端（id为-1时登录即注册），事件回调到hub的监听器
+    public GRpcClient newClient(long id, String name, KeysetHandle sk) throws GeneralSecurityException {
+        GRpcClient client = new GRpcClient(tracedChannel, compression);
+        client.setDecryptWorkers(decryptWorkers);
+        client.setBatching(batchLinger, batchMaxBytes);
+        client.setListener(listener);
+        client.setKeyCache(keyCache);
+        client.setMaxVersion(maxVersion);
+        client.setMaxInFlight(maxInFlight);
+        client.setAccountInfo(id, name, sk.getPublicKeysetHandle(), sk);
+        if (client.getCrypto() == null)
+            throw new GeneralSecurityException("Create Crypto Primitive Failed");
+        clients.add(client);
+        return client;
+    }
+
+    //协商协议版本并登录，返回登录结果
+    public CompletableFuture<Pack> connect(GRpcClient client) {
+        return client.hello().thenCompose(hello -> client.login());
+    }
+
+    //关闭账户的stream并不再由hub管理（如登出后）
+    public void remove(GRpcClient client) {
+        clients.remove(client);
+        client.close();
+    }
+
+    //所有账户登出
+    public CompletableFuture<Void> logoutAll() {
+        return CompletableFuture.allOf(clients.stream()
+                .filter(GRpcClient::isLoginSuccessful)
+                .map(GRpcClient::logout)
+                .toArray(CompletableFuture[]::new));
+    }
+
+    //关闭所有账户的stream与共享资源
+    @Override
+    public void close() {
+        for (GRpcClient client : clients)
+            client.close();
+        clients.clear();
+        keyCache.save();
+        try {
+            channel.shutdown().awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Channel Shutdown Error: " + e.getMessage());
+        }
+        channel.shutdownNow();
+        transport.shutdown();
+        decryptWorkers.shutdown();
+        executor.shutdown();
+    }
+
+    //设置事件回调（对之后创建的客户端生效）
+    public void setListener(ChatListener listener) {
+        this.listener = listener;
+    }
+
+    public void setMaxVersion(int maxVersion) {
+        this.maxVersion = maxVersion;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    //请求与推送的压缩算法（对之后创建的客户端生效），null为不压缩
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    //合并发送（对之后创建的客户端生效），见GRpcClient.setBatching
+    public void setBatching(int lingerMillis, int maxBytes) {
+        this.batchLinger = lingerMillis;
+        this.batchMaxBytes = maxBytes;
+    }
+
+    //所有账户的收发流量
+    public WireStats getWireStats() {
+        return wireStats;
+    }
+
+    public Set<GRpcClient> getClients() {
+        return clients;
+    }
+
+    public KeyCache getKeyCache() {
+        return keyCache;
+    }
+}
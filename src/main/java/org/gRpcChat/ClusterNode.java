@@ -0,0 +1,430 @@
+package org.gRpcChat;
+
+import com.google.protobuf.ByteString;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//集群模式：多个服务器节点共享用户数据库（分片模式下各自独立），每个节点持有连接到本节点的会话
+//在线目录：每个节点把本节点用户的上线/下线发布给其他节点，其他节点记录在SessionRegistry中并推送给本节点的用户
+//发给其他节点上用户的私聊、以及群发，经节点间的内部gRPC链路（独立端口）转发，由接收节点投递
+//每个节点连接--peers中的所有节点，只在自己建立的链路上发送；链路断开时对端的用户视为下线，之后每秒重连
+//分片模式（HashRing）下各节点使用自己的数据库，只保存所属的用户；发给其他节点离线用户的私聊转发给其所属节点暂存
+//链路以共享密钥的HMAC质询-应答双向认证，未认证的链路上不接收任何消息
+public class ClusterNode {
+    private final static Logger logger = LoggerFactory.getLogger("Server");
+    private final static long reconnectMillis = 1000;
+    private final static int nonceSize = 16;
+    private final static int maxBacklog = 10000;//链路断开时每个节点暂存的转发消息数
+    private final static byte[] acceptLabel = "grpcchat-accept".getBytes(StandardCharsets.UTF_8);
+    private final static byte[] linkLabel = "grpcchat-link".getBytes(StandardCharsets.UTF_8);
+    private final int nodeId;
+    private final SecretKeySpec secret;
+    private final SecureRandom random = new SecureRandom();
+    private final List<Peer> peers = new ArrayList<>();
+    private final SessionRegistry register;
+    private final FanOutEngine fanOut;
+    private final OfflineStore offlineStore;
+    private final long originId;
+    private final TransportProfile transport;
+    //对端节点id -> 当前的入站链路，旧链路晚于新链路关闭时不清除新链路同步的用户
+    private final ConcurrentHashMap<Integer, Object> inbound = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "cluster-link");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Server server;
+    //统计
+    private final LongAdder relayed = new LongAdder();//发往其他节点的私聊与群发
+    private final LongAdder received = new LongAdder();//从其他节点收到的私聊与群发
+    private final LongAdder dropped = new LongAdder();//链路未建立而未能发送的消息
+    private final LongAdder rejected = new LongAdder();//认证失败的链路
+
+    public ClusterNode(int nodeId, String secret, List<String> peerTargets, SessionRegistry register, FanOutEngine fanOut,
+                       OfflineStore offlineStore, long originId, TransportProfile transport) {
+        this.nodeId = nodeId;
+        this.secret = new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256");
+        this.register = register;
+        this.fanOut = fanOut;
+        this.offlineStore = offlineStore;
+        this.originId = originId;
+        this.transport = transport;
+        for (String target : peerTargets)
+            peers.add(new Peer(target));
+    }
+
+    //在port上接受其他节点的链路，并连接所有节点
+    public void start(int port) throws IOException {
+        server = transport.serverBuilder(port)
+                .addService(new LinkService())
+                .build()
+                .start();
+        logger.info("Cluster node " + nodeId + " listening on " + port + ", peers " + peers);
+        for (Peer peer : peers)
+            peer.connect();
+    }
+
+    //本节点用户上线，发布给其他节点
+    public void publishOnline(UserInfo userInfo) {
+        NodeMessage message = NodeMessage.newBuilder().setOnline(userInfo.toPack()).build();
+        for (Peer peer : peers)
+            peer.send(message, false);
+    }
+
+    //本节点用户下线，发布给其他节点
+    public void publishOffline(long id) {
+        NodeMessage message = NodeMessage.newBuilder().setOffline(id).build();
+        for (Peer peer : peers)
+            peer.send(message, false);
+    }
+
+    //接收者在其他节点在线时转发私聊，不在其他节点在线或链路未建立时返回false（由调用方离线暂存）
+    public boolean relay(long receiver, long sender, ByteString message) {
+        UserInfo remote = register.getRemote(receiver);
+        if (remote == null)
+            return false;
+        return relay(remote.getNode(), receiver, sender, message, false);
+    }
+
+    //私聊转发给指定节点，由该节点投递或离线暂存（分片模式下发给接收者所属的节点）
+    //链路未建立时暂存在内存中，链路恢复后发出；暂存已满时返回false
+    public boolean relayTo(int node, long receiver, long sender, ByteString message) {
+        return relay(node, receiver, sender, message, true);
+    }
+
+    private boolean relay(int node, long receiver, long sender, ByteString message, boolean backlog) {
+        for (Peer peer : peers) {
+            if (peer.node == node) {
+                Pack pack = Pack.newBuilder().setAction(Action.PUSH_FORWARD)
+                        .setSender(sender).setReceiver(receiver).setMessage(message).build();
+                if (!peer.send(NodeMessage.newBuilder().setRelay(pack).build(), backlog))
+                    return false;
+                relayed.increment();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //群发转发给所有节点，由各节点投递给其在线用户
+    public void relayBroadcast(long sender, ByteString message) {
+        Pack pack = Pack.newBuilder().setAction(Action.PUSH_BROADCAST).setSender(sender).setMessage(message).build();
+        NodeMessage relay = NodeMessage.newBuilder().setRelay(pack).build();
+        for (Peer peer : peers) {
+            if (peer.send(relay, false))
+                relayed.increment();
+        }
+    }
+
+    //投递其他节点转发的消息
+    private void deliver(Pack pack) {
+        received.increment();
+        long sender = pack.getSender();
+        if (pack.getAction() == Action.PUSH_BROADCAST) {
+            fanOut.fanOut(Protocol.broadcast(sender, pack.getMessage()), register.onlineSnapshot(),
+                    id -> id == originId);
+            return;
+        }
+        long receiver = pack.getReceiver();
+        UserInfo userForwardTo = register.getOnline(receiver);
+        if (userForwardTo != null)
+            userForwardTo.send(Protocol.forward(sender, receiver, pack.getMessage()));
+        else if (register.contains(receiver))//转发途中已下线
+            offlineStore.store(sender, receiver, pack.getMessage());
+    }
+
+    //把其他节点用户的上线/下线推送给本节点的在线用户
+    private void push(PresenceLog.Event event) {
+        if (event != null)
+            fanOut.fanOut(Protocol.presence(event, originId), register.onlineSnapshot(), id -> id == originId);
+    }
+
+    private ByteString nonce() {
+        byte[] nonce = new byte[nonceSize];
+        random.nextBytes(nonce);
+        return ByteString.copyFrom(nonce);
+    }
+
+    //HMAC-SHA256(共享密钥, 标签 + 对方的nonce + 证明方的节点id)
+    private ByteString auth(byte[] label, ByteString nonce, int node) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(secret);
+            mac.update(label);
+            mac.update(nonce.toByteArray());
+            mac.update(ByteBuffer.allocate(4).putInt(node).array());
+            return ByteString.copyFrom(mac.doFinal());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private boolean verify(ByteString auth, byte[] label, ByteString nonce, int node) {
+        return nonce != null && nonce.size() == nonceSize
+                && MessageDigest.isEqual(auth.toByteArray(), auth(label, nonce, node).toByteArray());
+    }
+
+    public void shutdown() {
+        for (Peer peer : peers)
+            peer.close();
+        if (server != null)
+            server.shutdown();
+        scheduler.shutdownNow();
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    //已建立的出站链路数
+    public int connectedPeers() {
+        int connected = 0;
+        for (Peer peer : peers) {
+            if (peer.isConnected())
+                connected++;
+        }
+        return connected;
+    }
+
+    public long getRelayed() {
+        return relayed.sum();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    //接受其他节点的链路：回应连接方的质询并发出自己的质询，连接方通过认证后只接收
+    private class LinkService extends ClusterLinkGrpc.ClusterLinkImplBase {
+        @Override
+        public StreamObserver<NodeMessage> link(StreamObserver<NodeMessage> responseObserver) {
+            return new StreamObserver<>() {
+                private int node = 0;//认证通过后为对端节点id
+                private ByteString challenge = null;//发给连接方的nonce
+                private boolean rejected = false;
+
+                @Override
+                public void onNext(NodeMessage value) {
+                    if (rejected)
+                        return;
+                    if (node == 0) {
+                        authenticate(value);
+                        return;
+                    }
+                    switch (value.getBodyCase()) {
+                        case ONLINE -> push(register.onlineRemote(value.getOnline(), node));
+                        case OFFLINE -> push(register.offlineRemote(value.getOffline(), node));
+                        case RELAY -> deliver(value.getRelay());
+                        default -> logger.warn("Unknown Cluster Message From Node " + node);
+                    }
+                }
+
+                //第一条NodeHello为连接方的质询，第二条为对本节点质询的应答与在线用户
+                private void authenticate(NodeMessage value) {
+                    if (!value.hasHello()) {
+                        reject("message before authentication");
+                    } else if (challenge == null) {
+                        NodeHello hello = value.getHello();
+                        if (hello.getNonce().size() != nonceSize) {
+                            reject("missing nonce");
+                            return;
+                        }
+                        challenge = nonce();
+                        responseObserver.onNext(NodeMessage.newBuilder().setHello(NodeHello.newBuilder().setNode(nodeId)
+                                .setNonce(challenge).setAuth(auth(acceptLabel, hello.getNonce(), nodeId))).build());
+                    } else {
+                        NodeHello hello = value.getHello();
+                        if (hello.getNode() <= 0 || !verify(hello.getAuth(), linkLabel, challenge, hello.getNode())) {
+                            reject("bad secret from node " + hello.getNode());
+                            return;
+                        }
+                        node = hello.getNode();
+                        inbound.put(node, this);
+                        List<PresenceLog.Event> events = register.replaceNode(node, hello.getUsersList());
+                        events.forEach(ClusterNode.this::push);
+                        logger.info("Cluster node " + node + " linked, " + hello.getUsersCount() + " users online");
+                    }
+                }
+
+                private void reject(String reason) {
+                    rejected = true;
+                    ClusterNode.this.rejected.increment();
+                    logger.warn("Cluster link rejected: " + reason);
+                    responseObserver.onError(Status.PERMISSION_DENIED.withDescription("Cluster authentication failed")
+                            .asRuntimeException());
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    close();
+                }
+
+                @Override
+                public void onCompleted() {
+                    close();
+                    if (!rejected)
+                        responseObserver.onCompleted();
+                }
+
+                private void close() {
+                    if (node == 0 || !inbound.remove(node, this))
+                        return;
+                    logger.warn("Cluster node " + node + " unlinked");
+                    register.replaceNode(node, null).forEach(ClusterNode.this::push);
+                }
+            };
+        }
+    }
+
+    //到其他节点的出站链路：发送质询，对端的hello通过认证后发送应答与本节点的在线用户，之后发送上线/下线与转发的消息
+    private class Peer implements ClientResponseObserver<NodeMessage, NodeMessage> {
+        private final String target;
+        private final ManagedChannel channel;
+        private volatile int node = 0;//对端节点id
+        private ClientCallStreamObserver<NodeMessage> call;
+        private StreamObserver<NodeMessage> stream;//链路建立后不为null
+        private ByteString challenge;//本次连接发给对端的nonce
+        private final ArrayDeque<NodeMessage> backlog = new ArrayDeque<>();//链路断开时暂存的转发消息
+        private boolean closed = false;
+        private boolean warned = false;//连接失败只记录一次，直到重新连接成功
+
+        Peer(String target) {
+            this.target = target;
+            this.channel = transport.channelBuilder(target).build();
+        }
+
+        synchronized void connect() {
+            if (closed)
+                return;
+            challenge = nonce();
+            ClusterLinkGrpc.newStub(channel).link(this)
+                    .onNext(NodeMessage.newBuilder().setHello(NodeHello.newBuilder().setNode(nodeId).setNonce(challenge)).build());
+        }
+
+        @Override
+        public synchronized void beforeStart(ClientCallStreamObserver<NodeMessage> requestStream) {
+            call = requestStream;
+        }
+
+        //对端的hello：验证对本节点质询的应答，链路建立，发送对端质询的应答、本节点的完整在线列表与暂存的转发消息
+        //在同一把锁内取快照并开始发送，快照之后的上线/下线都会经send发出
+        @Override
+        public void onNext(NodeMessage value) {
+            if (!value.hasHello())
+                return;
+            NodeHello peerHello = value.getHello();
+            synchronized (this) {
+                if (call == null || stream != null)
+                    return;
+                if (!verify(peerHello.getAuth(), acceptLabel, challenge, peerHello.getNode())) {
+                    rejected.increment();
+                    if (!warned)
+                        logger.warn("Cluster node at " + target + " failed authentication");
+                    call.cancel("Cluster authentication failed", null);
+                    return;
+                }
+                node = peerHello.getNode();
+                NodeHello.Builder hello = NodeHello.newBuilder().setNode(nodeId)
+                        .setAuth(auth(linkLabel, peerHello.getNonce(), nodeId));
+                for (UserInfo userInfo : register.onlineSnapshot())
+                    hello.addUsers(userInfo.toPack());
+                call.onNext(NodeMessage.newBuilder().setHello(hello).build());
+                stream = call;
+                warned = false;
+                if (!backlog.isEmpty())
+                    logger.info("Cluster link to node " + node + ": sending " + backlog.size() + " queued messages");
+                while (!backlog.isEmpty())
+                    stream.onNext(backlog.poll());
+            }
+            logger.info("Cluster link to node " + node + " (" + target + ") established");
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            disconnected(t.getMessage());
+        }
+
+        @Override
+        public void onCompleted() {
+            disconnected("closed by peer");
+        }
+
+        private synchronized void disconnected(String reason) {
+            boolean wasConnected = stream != null;
+            stream = null;
+            call = null;
+            if (closed)
+                return;
+            if (wasConnected || !warned)
+                logger.warn("Cluster link to " + target + " down: " + reason + ", reconnecting");
+            warned = true;
+            scheduler.schedule(this::connect, reconnectMillis, TimeUnit.MILLISECONDS);
+        }
+
+        //链路未建立时：queue为true且暂存未满时暂存，链路建立后发出；否则丢弃并返回false
+        //上线/下线不暂存，对端重新连接后以hello中的完整列表恢复在线状态
+        //发送不等待isReady，由gRPC缓冲：节点间链路的带宽远大于单个会话
+        synchronized boolean send(NodeMessage message, boolean queue) {
+            if (stream == null) {
+                if (queue && !closed && backlog.size() < maxBacklog) {
+                    backlog.add(message);
+                    return true;
+                }
+                dropped.increment();
+                return false;
+            }
+            stream.onNext(message);
+            return true;
+        }
+
+        synchronized boolean isConnected() {
+            return stream != null;
+        }
+
+        synchronized void close() {
+            closed = true;
+            if (stream != null)
+                stream.onCompleted();
+            else if (call != null)
+                call.cancel("shutdown", null);
+            stream = null;
+            channel.shutdown();
+        }
+
+        @Override
+        public String toString() {
+            return target;
+        }
+    }
+}
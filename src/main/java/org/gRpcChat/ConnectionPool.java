@@ -0,0 +1,197 @@
+package org.gRpcChat;
+
+import org.sqlite.SQLiteConfig;
+
+import java.sql.*;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+
+//SQLite连接池：一个写连接，多个只读连接（WAL模式下读写互不阻塞），每个连接缓存PreparedStatement
+public class ConnectionPool {
+    private final static long borrowTimeoutMillis = 30_000;
+    private final ArrayBlockingQueue<PooledConnection> writers = new ArrayBlockingQueue<>(1);
+    private final ArrayBlockingQueue<PooledConnection> readers;
+    private final int readerCount;
+    //等待统计
+    private final WaitStats writerStats = new WaitStats();
+    private final WaitStats readerStats = new WaitStats();
+
+    public ConnectionPool(String url, int readerCount) throws SQLException {
+        this.readerCount = readerCount;
+        this.readers = new ArrayBlockingQueue<>(readerCount);
+        SQLiteConfig writeConfig = new SQLiteConfig();
+        writeConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        writeConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        writeConfig.setBusyTimeout(5000);
+        writers.add(new PooledConnection(DriverManager.getConnection(url, writeConfig.toProperties()), writers));
+        SQLiteConfig readConfig = new SQLiteConfig();
+        readConfig.setReadOnly(true);
+        readConfig.setBusyTimeout(5000);
+        for (int i = 0; i < readerCount; i++)
+            readers.add(new PooledConnection(DriverManager.getConnection(url, readConfig.toProperties()), readers));
+    }
+
+    //借出写连接，用完后close()归还
+    public PooledConnection writer() throws SQLException {
+        return borrow(writers, writerStats);
+    }
+
+    //借出只读连接，用完后close()归还
+    public PooledConnection reader() throws SQLException {
+        return borrow(readers, readerStats);
+    }
+
+    private PooledConnection borrow(ArrayBlockingQueue<PooledConnection> pool, WaitStats stats) throws SQLException {
+        PooledConnection connection = pool.poll();
+        if (connection != null) {
+            stats.record(0);
+            return connection;
+        }
+        long start = System.nanoTime();
+        try {
+            connection = pool.poll(borrowTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for connection");
+        }
+        stats.record(System.nanoTime() - start);
+        if (connection == null) {
+            stats.timeouts.incrementAndGet();
+            throw new SQLException("Connection pool timeout");
+        }
+        return connection;
+    }
+
+    //关闭所有连接（需在连接全部归还后调用）
+    public void close() throws SQLException {
+        SQLException error = null;
+        for (ArrayBlockingQueue<PooledConnection> pool : List.of(writers, readers)) {
+            PooledConnection connection;
+            while ((connection = pool.poll()) != null) {
+                try {
+                    connection.closeAll();
+                } catch (SQLException e) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null)
+            throw error;
+    }
+
+    public int getReaderCount() {
+        return readerCount;
+    }
+
+    public WaitStats getWriterStats() {
+        return writerStats;
+    }
+
+    public WaitStats getReaderStats() {
+        return readerStats;
+    }
+
+    @Override
+    public String toString() {
+        return "writer[" + writerStats + "], readers(" + readerCount + ")[" + readerStats + "]";
+    }
+
+    //借出连接的等待统计
+    public static class WaitStats {
+        private final AtomicLong borrows = new AtomicLong();
+        private final AtomicLong waits = new AtomicLong();
+        private final AtomicLong waitNanos = new AtomicLong();
+        private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+        private final AtomicLong timeouts = new AtomicLong();
+
+        private void record(long nanos) {
+            borrows.incrementAndGet();
+            if (nanos > 0) {
+                waits.incrementAndGet();
+                waitNanos.addAndGet(nanos);
+                maxWaitNanos.accumulate(nanos);
+            }
+        }
+
+        public long getBorrows() {
+            return borrows.get();
+        }
+
+        public long getWaits() {
+            return waits.get();
+        }
+
+        public long getWaitNanos() {
+            return waitNanos.get();
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+
+        public long getTimeouts() {
+            return timeouts.get();
+        }
+
+        @Override
+        public String toString() {
+            return "borrows=" + borrows.get() + ", waits=" + waits.get()
+                    + ", waitMs=" + waitNanos.get() / 1_000_000 + ", maxWaitMs=" + maxWaitNanos.get() / 1_000_000
+                    + ", timeouts=" + timeouts.get();
+        }
+    }
+
+    //池化连接，PreparedStatement按SQL缓存，调用方不要关闭缓存的语句
+    public static class PooledConnection implements AutoCloseable {
+        private final Connection connection;
+        private final ArrayBlockingQueue<PooledConnection> home;
+        private final HashMap<String, PreparedStatement> statements = new HashMap<>();
+        private final HashMap<String, PreparedStatement> keyStatements = new HashMap<>();
+
+        private PooledConnection(Connection connection, ArrayBlockingQueue<PooledConnection> home) {
+            this.connection = connection;
+            this.home = home;
+        }
+
+        public PreparedStatement prepare(String sql) throws SQLException {
+            PreparedStatement ps = statements.get(sql);
+            if (ps == null) {
+                ps = connection.prepareStatement(sql);
+                statements.put(sql, ps);
+            }
+            return ps;
+        }
+
+        //返回自增主键的语句
+        public PreparedStatement prepareReturningKeys(String sql) throws SQLException {
+            PreparedStatement ps = keyStatements.get(sql);
+            if (ps == null) {
+                ps = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+                keyStatements.put(sql, ps);
+            }
+            return ps;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+        //归还连接
+        @Override
+        public void close() {
+            home.add(this);
+        }
+
+        private void closeAll() throws SQLException {
+            for (PreparedStatement ps : statements.values())
+                ps.close();
+            for (PreparedStatement ps : keyStatements.values())
+                ps.close();
+            connection.close();
+        }
+    }
+}
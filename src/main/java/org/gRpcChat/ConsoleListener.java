@@ -0,0 +1,41 @@
+package org.gRpcChat;
+
+import java.security.GeneralSecurityException;
+
+//命令行客户端：把事件打印到控制台
+public class ConsoleListener implements ChatListener {
+    @Override
+    public void onMessage(GRpcClient client, long sender, String message) {
+        System.out.println("\r - Receive Message: [" + message + "]\n - From [" + client.nameOf(sender) + "]");
+    }
+
+    @Override
+    public void onDecryptFailed(GRpcClient client, long sender, GeneralSecurityException error) {
+        System.out.println("\r - Receive Message: [Decrypt Failed]\n - From [" + client.nameOf(sender) + "]");
+    }
+
+    @Override
+    public void onBroadcast(GRpcClient client, long sender, String message) {
+        System.out.println("\r - Receive Broadcast: [" + message + "]\n - From [" + client.nameOf(sender) + "]");
+    }
+
+    @Override
+    public void onRoomMessage(GRpcClient client, long room, long sender, String message) {
+        System.out.println("\r - Receive Room Message: [" + message + "]\n - From [" + client.nameOf(sender) + "] in Room " + room);
+    }
+
+    @Override
+    public void onNotice(GRpcClient client, String notice) {
+        System.out.println("\rNotice: [" + notice + "]");
+    }
+
+    @Override
+    public void onLogin(GRpcClient client, LoginResult result) {
+        if (result.getCode() == StatusCode.OK)
+            System.out.println("\rNotice: [Welcome back, " + result.getName() + "]");
+        else if (result.getCode() == StatusCode.CREATED)
+            System.out.println("\rNotice: [Hello " + client.getAccountName() + ", your id is " + result.getId() + "]");
+        else
+            System.out.println("\rNotice: [" + Protocol.describe(Action.LOGIN, result.getCode(), result.getId()) + "]");
+    }
+}
@@ -0,0 +1,211 @@
+package org.gRpcChat;
+
+import com.google.crypto.tink.HybridDecrypt;
+import com.google.crypto.tink.HybridEncrypt;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+//客户端加解密：原语只创建一次并缓存；解密在按发送者分条的工作线程上执行，同一发送者的消息保持顺序
+//对方支持会话时私聊使用SessionCipher，只有会话的第一条消息做混合加密
+public class CryptoEngine {
+    private final static Logger logger = LoggerFactory.getLogger(GRpcServer.class.getName());
+    private final byte[] contextInfo;
+    private final HybridDecrypt decryptor;
+    private final ConcurrentHashMap<Long, PeerEncrypt> encryptors = new ConcurrentHashMap<>();
+    private final SessionCipher sessions;
+    private final SenderKeys senderKeys = new SenderKeys();//聊天室消息
+    private volatile boolean sessionEnabled = true;
+    private final OrderedExecutor workers;
+    private final boolean ownWorkers;//自己创建的工作线程在shutdown时停止
+    //统计
+    private final LongAdder encrypted = new LongAdder();
+    private final LongAdder encryptNanos = new LongAdder();
+    private final LongAdder sessionEncrypted = new LongAdder();
+    private final LongAdder decrypted = new LongAdder();
+    private final LongAdder decryptNanos = new LongAdder();
+    private final LongAdder decryptFailures = new LongAdder();
+    private final LongAdder decryptedBytes = new LongAdder();
+
+    //解密结果回调，失败时plaintext为null
+    public interface Delivery {
+        void deliver(long sender, byte[] plaintext, GeneralSecurityException error);
+    }
+
+    public CryptoEngine(KeysetHandle sk, byte[] contextInfo, int threads, int queueSize) throws GeneralSecurityException {
+        this(sk, contextInfo, new OrderedExecutor(threads, queueSize, "decrypt"), true);
+    }
+
+    //使用共享的解密线程
+    public CryptoEngine(KeysetHandle sk, byte[] contextInfo, OrderedExecutor workers) throws GeneralSecurityException {
+        this(sk, contextInfo, workers, false);
+    }
+
+    private CryptoEngine(KeysetHandle sk, byte[] contextInfo, OrderedExecutor workers, boolean ownWorkers)
+            throws GeneralSecurityException {
+        this.contextInfo = contextInfo;
+        this.decryptor = sk.getPrimitive(HybridDecrypt.class);
+        this.sessions = new SessionCipher(decryptor, contextInfo);
+        this.workers = workers;
+        this.ownWorkers = ownWorkers;
+    }
+
+    //使用接收者公钥混合加密
+    public byte[] encrypt(long receiver, KeysetHandle pk, byte[] plaintext) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        byte[] ciphertext = encryptorOf(receiver, pk).encrypt(plaintext, contextInfo);
+        encrypted.increment();
+        encryptNanos.add(System.nanoTime() - start);
+        return ciphertext;
+    }
+
+    //私聊加密：接收者的客户端支持会话时使用会话密钥，否则混合加密
+    public byte[] encrypt(long sender, long receiver, KeysetHandle pk, int features, byte[] plaintext)
+            throws GeneralSecurityException {
+        if (!sessionEnabled || (features & Protocol.FEATURE_SESSION) == 0)
+            return encrypt(receiver, pk, plaintext);
+        long start = System.nanoTime();
+        byte[] ciphertext = sessions.encrypt(sender, receiver, pk, encryptorOf(receiver, pk), plaintext);
+        encrypted.increment();
+        sessionEncrypted.increment();
+        encryptNanos.add(System.nanoTime() - start);
+        return ciphertext;
+    }
+
+    //接收者的加密原语，公钥变化时重新创建
+    private HybridEncrypt encryptorOf(long receiver, KeysetHandle pk) throws GeneralSecurityException {
+        PeerEncrypt peer = encryptors.get(receiver);
+        if (peer == null || peer.pk != pk) {
+            peer = new PeerEncrypt(pk, pk.getPrimitive(HybridEncrypt.class));
+            encryptors.put(receiver, peer);
+        }
+        return peer.encryptor;
+    }
+
+    //同步解密，会话消息与混合加密的消息都可以解密
+    public byte[] decrypt(long sender, byte[] ciphertext) throws GeneralSecurityException {
+        long start = System.nanoTime();
+        try {
+            byte[] plaintext = SessionCipher.isSession(ciphertext) ? sessions.decrypt(sender, ciphertext)
+                    : decryptor.decrypt(ciphertext, contextInfo);
+            decrypted.increment();
+            decryptedBytes.add(plaintext.length);
+            return plaintext;
+        } catch (GeneralSecurityException e) {
+            decryptFailures.increment();
+            throw e;
+        } finally {
+            decryptNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    //异步解密，同一发送者的消息按提交顺序回调；队列已满时阻塞调用方（即gRPC接收线程）形成背压
+    public void decryptAsync(long sender, ByteString ciphertext, Delivery delivery) {
+        execute(sender, () -> decrypt(sender, ciphertext.toByteArray()), delivery);
+    }
+
+    //异步解密房间消息，与同一发送者的私聊消息（包括sender key的分发）在同一线程上按顺序处理
+    public void decryptRoomAsync(long sender, long room, ByteString message, Delivery delivery) {
+        execute(sender, () -> {
+            try {
+                byte[] plaintext = senderKeys.decrypt(sender, room, message.toByteArray());
+                decryptedBytes.add(plaintext.length);
+                return plaintext;
+            } catch (GeneralSecurityException e) {
+                decryptFailures.increment();
+                throw e;
+            }
+        }, delivery);
+    }
+
+    private interface Decryption {
+        byte[] run() throws GeneralSecurityException;
+    }
+
+    private void execute(long sender, Decryption decryption, Delivery delivery) {
+        Runnable task = () -> {
+            byte[] plaintext = null;
+            GeneralSecurityException error = null;
+            try {
+                plaintext = decryption.run();
+            } catch (GeneralSecurityException e) {
+                error = e;
+            }
+            try {
+                delivery.deliver(sender, plaintext, error);
+            } catch (RuntimeException e) {
+                logger.warn("Message Delivery Error: " + e);
+            }
+        };
+        if (!workers.execute(sender, task))
+            logger.warn("Decrypt Interrupted, Message from " + sender + " Dropped");
+    }
+
+    //对方重新登录或下线时结束发往对方的会话
+    public void closeSession(long peer) {
+        sessions.close(peer);
+    }
+
+    //会话的消息数与时长上限，messages为0时不使用会话
+    public void setSessionRotation(int messages, long millis) {
+        sessionEnabled = messages > 0;
+        sessions.setRotation(messages, millis);
+    }
+
+    //等待队列中的消息处理完毕后停止工作线程，共享的工作线程由创建者停止
+    public void shutdown() {
+        if (ownWorkers)
+            workers.shutdown();
+    }
+
+    //待解密的消息数（共享工作线程时为所有客户端的总数）
+    public int pending() {
+        return workers.pending();
+    }
+
+    public SenderKeys getSenderKeys() {
+        return senderKeys;
+    }
+
+    public long getEncrypted() {
+        return encrypted.sum();
+    }
+
+    public long getDecrypted() {
+        return decrypted.sum();
+    }
+
+    public long getDecryptFailures() {
+        return decryptFailures.sum();
+    }
+
+    @Override
+    public String toString() {
+        long encryptCount = encrypted.sum();
+        long decryptCount = decrypted.sum() + decryptFailures.sum();
+        return "encrypted=" + encryptCount
+                + ", sessionEncrypted=" + sessionEncrypted.sum()
+                + ", sessionsOpened=" + sessions.getOpened() + ", sessionsAccepted=" + sessions.getAccepted()
+                + ", avgEncryptUs=" + (encryptCount == 0 ? 0 : encryptNanos.sum() / encryptCount / 1000)
+                + ", decrypted=" + decrypted.sum() + ", failures=" + decryptFailures.sum()
+                + ", avgDecryptUs=" + (decryptCount == 0 ? 0 : decryptNanos.sum() / decryptCount / 1000)
+                + ", decryptedBytes=" + decryptedBytes.sum() + ", " + senderKeys + ", pending=" + pending()
+                + ", threads=" + workers.getThreads();
+    }
+
+    //接收者的公钥与加密原语
+    private static class PeerEncrypt {
+        final KeysetHandle pk;
+        final HybridEncrypt encryptor;
+
+        PeerEncrypt(KeysetHandle pk, HybridEncrypt encryptor) {
+            this.pk = pk;
+            this.encryptor = encryptor;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.gRpcChat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.LongPredicate;
+
+//群发引擎：同一Frame投递给所有接收者，接收者按id分到固定的工作线程（条带）上投递
+//同一接收者的群发总在同一线程上按提交顺序投递，不同群发之间不会乱序（上线通知的版本、房间消息的链序号依赖这一点）
+public class FanOutEngine {
+    private final static Logger logger = LoggerFactory.getLogger("Server");
+    private final static int stripeQueueSize = 1024;
+    private final OrderedExecutor workers;
+    private final int shardSize;
+    //统计
+    private final AtomicLong fanOutCount = new AtomicLong();
+    private final AtomicLong recipientCount = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    private volatile long lastNanos = 0;
+    private final LatencyHistogram sizes = new LatencyHistogram();//每次群发的接收人数
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    public FanOutEngine(int threads, int shardSize) {
+        this.shardSize = Math.max(1, shardSize);
+        //队列满时阻塞提交线程，形成背压
+        this.workers = new OrderedExecutor(threads, stripeQueueSize, "fan-out");
+    }
+
+    //投递给recipients中skip返回false的用户，返回完成耗时(ns)
+    //每个条带上的接收者每shardSize人一个任务
+    public CompletableFuture<Long> fanOut(Frame frame, UserInfo[] recipients, LongPredicate skip) {
+        long start = System.nanoTime();
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        if (recipients.length == 0) {
+            done.complete(finish(start, 0));
+            return done;
+        }
+        //按条带分组接收者的下标
+        int[] stripeOf = new int[recipients.length];
+        int[] counts = new int[workers.getThreads()];
+        for (int i = 0; i < recipients.length; i++)
+            counts[stripeOf[i] = workers.stripeOf(recipients[i].getId())]++;
+        int[][] members = new int[counts.length][];
+        int shards = 0;
+        for (int stripe = 0; stripe < counts.length; stripe++) {
+            members[stripe] = new int[counts[stripe]];
+            shards += (counts[stripe] + shardSize - 1) / shardSize;
+            counts[stripe] = 0;
+        }
+        for (int i = 0; i < recipients.length; i++)
+            members[stripeOf[i]][counts[stripeOf[i]]++] = i;
+        AtomicInteger remaining = new AtomicInteger(shards);
+        AtomicInteger delivered = new AtomicInteger();
+        for (int stripe = 0; stripe < members.length; stripe++) {
+            int[] indexes = members[stripe];
+            for (int from = 0; from < indexes.length; from += shardSize) {
+                int shardFrom = from;
+                int shardTo = Math.min(indexes.length, from + shardSize);
+                Runnable shard = () -> {
+                    try {
+                        delivered.addAndGet(deliver(frame, recipients, indexes, shardFrom, shardTo, skip));
+                    } finally {
+                        if (remaining.decrementAndGet() == 0)
+                            done.complete(finish(start, delivered.get()));
+                    }
+                };
+                if (!workers.executeOn(stripe, shard)) {//提交时被中断，在当前线程投递
+                    logger.warn("Fan-out interrupted, delivering shard on " + Thread.currentThread().getName());
+                    shard.run();
+                }
+            }
+        }
+        return done;
+    }
+
+    private int deliver(Frame frame, UserInfo[] recipients, int[] indexes, int from, int to, LongPredicate skip) {
+        int delivered = 0;
+        for (int i = from; i < to; i++) {
+            UserInfo user = recipients[indexes[i]];
+            if (skip.test(user.getId()))
+                continue;
+            if (user.send(frame))
+                delivered++;
+        }
+        return delivered;
+    }
+
+    private long finish(long start, int delivered) {
+        long elapsed = System.nanoTime() - start;
+        fanOutCount.incrementAndGet();
+        recipientCount.addAndGet(delivered);
+        totalNanos.addAndGet(elapsed);
+        maxNanos.accumulate(elapsed);
+        lastNanos = elapsed;
+        sizes.record(delivered);
+        latency.recordNanos(elapsed);
+        if (logger.isDebugEnabled())
+            logger.debug("Fan-out to " + delivered + " users finished in " + elapsed / 1000 + " us");
+        return elapsed;
+    }
+
+    public long getFanOutCount() {
+        return fanOutCount.get();
+    }
+
+    public long getRecipientCount() {
+        return recipientCount.get();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public long getLastNanos() {
+        return lastNanos;
+    }
+
+    public LatencyHistogram getSizes() {
+        return sizes;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    //等待执行的分片数
+    public int getQueued() {
+        return workers.pending();
+    }
+
+    public void shutdown() {
+        workers.shutdown();
+    }
+}
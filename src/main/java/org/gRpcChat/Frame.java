@@ -0,0 +1,94 @@
+package org.gRpcChat;
+
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+
+//已序列化的Pack：只序列化一次，多个接收者共享同一份字节
+public final class Frame {
+    //以Frame为响应类型的序列化器，与Pack的线上格式完全一致
+    public static final MethodDescriptor.Marshaller<Frame> MARSHALLER = new FrameMarshaller();
+    private final byte[] bytes;
+    //v2编码，null表示各版本相同
+    private final Frame v2;
+
+    private Frame(byte[] bytes) {
+        this(bytes, null);
+    }
+
+    private Frame(byte[] bytes, Frame v2) {
+        this.bytes = bytes;
+        this.v2 = v2;
+    }
+
+    public static Frame of(Pack pack) {
+        return new Frame(pack.toByteArray());
+    }
+
+    //同一消息的v1与v2编码，各序列化一次，发送时按会话的协议版本选择
+    public static Frame of(Pack v1, Pack v2) {
+        return new Frame(v1.toByteArray(), new Frame(v2.toByteArray()));
+    }
+
+    public static Frame wrap(byte[] bytes) {
+        return new Frame(bytes);
+    }
+
+    public Frame forVersion(int version) {
+        return v2 != null && version >= Protocol.V2 ? v2 : this;
+    }
+
+    //只读，调用方不得修改
+    public byte[] bytes() {
+        return bytes;
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    public Pack toPack() {
+        try {
+            return Pack.parseFrom(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static class FrameMarshaller implements MethodDescriptor.Marshaller<Frame> {
+        @Override
+        public InputStream stream(Frame value) {
+            return new FrameInputStream(value.bytes);
+        }
+
+        @Override
+        public Frame parse(InputStream stream) {
+            try {
+                return new Frame(stream.readAllBytes());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    //长度已知且可直接写出，避免gRPC再拷贝一次
+    private static class FrameInputStream extends ByteArrayInputStream implements KnownLength, Drainable {
+        FrameInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public int drainTo(OutputStream target) throws IOException {
+            int length = count - pos;
+            target.write(buf, pos, length);
+            pos = count;
+            return length;
+        }
+    }
+}
@@ -13,6 +13,8 @@ public class GRpcChat {
         options.addOption(Option.builder("c").longOpt("client").desc("Client mode [default]").build());
         //服务器模式
         options.addOption(Option.builder("s").longOpt("server").desc("Server mode").build());
+        //压力测试模式
+        options.addOption(Option.builder().longOpt("bench").desc("Bench mode: in-process server, or the server given by -i").build());
         //服务器地址
         options.addOption(Option.builder("i").longOpt("ip").hasArg().desc("Connect ip [default: 127.0.0.1]").build());
         //RPC端口
@@ -21,6 +23,66 @@ public class GRpcChat {
         options.addOption(Option.builder("n").longOpt("name").hasArg().desc("Account name [default: Random Generation]").build());
         //密钥
         options.addOption(Option.builder("k").longOpt("key").hasArg().desc("Account key file path [default: Random Generation]").build());
+        //协议版本
+        options.addOption(Option.builder().longOpt("protocol").hasArg().desc("Highest protocol version the client offers: 1, 2 [default: 2]").build());
+        //解密线程
+        options.addOption(Option.builder().longOpt("decrypt-threads").hasArg().desc("Client decryption threads [default: min(4, CPU cores)]").build());
+        //在途消息
+        options.addOption(Option.builder().longOpt("max-in-flight").hasArg().desc("Messages awaiting a server result before sending blocks [default: 256]").build());
+        //合并发送与压缩
+        options.addOption(Option.builder().longOpt("batch-linger").hasArg().desc("Client send coalescing delay in ms, 0 disables batching [default: 0]").build());
+        options.addOption(Option.builder().longOpt("batch-bytes").hasArg().desc("Max request bytes coalesced into one batch [default: 16384]").build());
+        options.addOption(Option.builder().longOpt("compression").hasArg().desc("Client stream compression for requests and pushes: gzip, identity [default: identity]").build());
+        //私聊会话
+        options.addOption(Option.builder().longOpt("session-rotate").hasArg().desc("Messages per direct message session key, 0 disables sessions [default: 1000]").build());
+        options.addOption(Option.builder().longOpt("session-ttl").hasArg().desc("Direct message session key lifetime in minutes [default: 60]").build());
+        //发送队列
+        options.addOption(Option.builder().longOpt("queue-size").hasArg().desc("Per-session outbound queue size [default: 1024]").build());
+        options.addOption(Option.builder().longOpt("overflow").hasArg().desc("Outbound queue overflow policy: drop-oldest, disconnect, spill-to-disk [default: drop-oldest]").build());
+        //群发
+        options.addOption(Option.builder().longOpt("fanout-threads").hasArg().desc("Fan-out worker threads [default: CPU cores]").build());
+        options.addOption(Option.builder().longOpt("fanout-shard").hasArg().desc("Recipients per fan-out shard [default: 256]").build());
+        //离线消息
+        options.addOption(Option.builder().longOpt("offline-ttl").hasArg().desc("Offline message TTL in hours [default: 168]").build());
+        options.addOption(Option.builder().longOpt("offline-quota").hasArg().desc("Offline messages kept per user [default: 1000]").build());
+        //数据库连接池
+        options.addOption(Option.builder().longOpt("db-readers").hasArg().desc("Database read connections [default: 4]").build());
+        //认证缓存
+        options.addOption(Option.builder().longOpt("auth-cache").hasArg().desc("Authentication cache entries [default: 100000]").build());
+        //在线状态日志
+        options.addOption(Option.builder().longOpt("presence-log").hasArg().desc("Presence events kept for delta sync [default: 4096]").build());
+        //传输配置
+        options.addOption(Option.builder().longOpt("transport").hasArg().desc("Transport preset: default, low-latency, high-fan-out, or a .properties file [default: default]").build());
+        options.addOption(Option.builder().longOpt("transport-type").hasArg().desc("Netty transport: auto, epoll, nio [default: auto]").build());
+        options.addOption(Option.builder().longOpt("event-loops").hasArg().desc("Netty event loop threads [default: gRPC default]").build());
+        options.addOption(Option.builder().longOpt("executor-threads").hasArg().desc("gRPC callback executor threads [default: gRPC cached pool]").build());
+        options.addOption(Option.builder().longOpt("keepalive").hasArg().desc("Keepalive ping interval in seconds, 0 disables [default: 0]").build());
+        options.addOption(Option.builder().longOpt("max-message").hasArg().desc("Max inbound message size in MB [default: 4]").build());
+        options.addOption(Option.builder().longOpt("flow-window").hasArg().desc("HTTP/2 flow control window in KB [default: 1024]").build());
+        //消息处理的执行方式
+        options.addOption(Option.builder().longOpt("exec-mode").hasArg().desc("Where login/registration runs: inline, virtual, pool [default: inline]").build());
+        options.addOption(Option.builder().longOpt("handler-threads").hasArg().desc("Handler pool threads for pool mode [default: 16]").build());
+        //集群模式
+        options.addOption(Option.builder().longOpt("node-id").hasArg().desc("Cluster node id (> 0), enables cluster mode [default: standalone]").build());
+        options.addOption(Option.builder().longOpt("cluster-port").hasArg().desc("Port for links from other nodes [default: port + 1000]").build());
+        options.addOption(Option.builder().longOpt("peers").hasArg().desc("Other nodes' cluster links, host:port,host:port").build());
+        options.addOption(Option.builder().longOpt("cluster-secret").hasArg().desc("Shared secret authenticating links between nodes (required with --node-id)").build());
+        //分片模式
+        options.addOption(Option.builder().longOpt("ring").hasArg().desc("Shard users by consistent hashing over nodes, 1=host:port,2=host:port (requires --node-id)").build());
+        options.addOption(Option.builder().longOpt("ring-vnodes").hasArg().desc("Virtual nodes per ring node [default: 160]").build());
+        //指标
+        options.addOption(Option.builder().longOpt("metrics-port").hasArg().desc("Prometheus metrics port on 127.0.0.1, 0 disables [default: 0]").build());
+        //路由审计日志
+        options.addOption(Option.builder().longOpt("audit-dir").hasArg().desc("Routing audit log directory [default: ./audit/]").build());
+        options.addOption(Option.builder().longOpt("audit-size").hasArg().desc("Audit log file size in MB before rotating [default: 64]").build());
+        options.addOption(Option.builder().longOpt("audit-files").hasArg().desc("Audit log files kept [default: 100]").build());
+        //压力测试
+        options.addOption(Option.builder().longOpt("bench-users").hasArg().desc("Simulated users [default: 100]").build());
+        options.addOption(Option.builder().longOpt("bench-ramp").hasArg().desc("User logins per second during ramp-up [default: 50]").build());
+        options.addOption(Option.builder().longOpt("bench-duration").hasArg().desc("Load duration in seconds [default: 30]").build());
+        options.addOption(Option.builder().longOpt("bench-rate").hasArg().desc("Operations per second [default: 500]").build());
+        options.addOption(Option.builder().longOpt("bench-mix").hasArg().desc("Operation mix post:broadcast:churn [default: 80:15:5]").build());
+        options.addOption(Option.builder().longOpt("bench-out").hasArg().desc("Latency histogram file [default: bench-latency.txt]").build());
         //帮助信息
         options.addOption(Option.builder("h").longOpt("help").desc("Print this help message").build());
 
@@ -47,6 +109,9 @@ public class GRpcChat {
         } else if ((result.hasOption("c"))) {//客户端
             ChatClient chatClient = new ChatClient(result);
             chatClient.run();
+        } else if (result.hasOption("bench")) {//压力测试
+            ChatBench chatBench = new ChatBench(result);
+            chatBench.run();
         } else {
             // 打印帮助信息
             formatter.printHelp("gRpcChat", options, true);
@@ -4,6 +4,8 @@ import com.google.crypto.tink.*;
 import com.google.protobuf.ByteString;
 import io.grpc.Channel;
 import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ClientCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.LoggerFactory;
 
@@ -14,243 +16,657 @@ import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-//Grpc客户端
+//Grpc客户端：一个实例对应一个账户，不读写控制台，事件通过ChatListener回调
+//多个实例可以共享同一个Channel（见ClientHub）
 public class GRpcClient {
     private final static Logger logger = LoggerFactory.getLogger(GRpcServer.class.getName());
-    private static final Account accountInfo = new Account();//用户信息
+    private final Account accountInfo = new Account();//用户信息
+    private volatile ChatListener listener = new ChatListener() {
+    };
     private final StreamObserver<Pack> requestObserver;
-    private CountDownLatch finishLatch = null;
-    private final HashMap<Long, User> userList = new HashMap<>();
+    //在途请求：请求id -> 结果，在途数量受window限制
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Pack>> inFlight = new ConcurrentSkipListMap<>();
+    private Semaphore window = new Semaphore(256);
+    private long nextRequestId = 0;
+    //当前线程正在执行回调（gRPC回调线程或解密线程）：结果也在回调线程上返回，此时发送不能等待window
+    private final static ThreadLocal<Boolean> inCallback = ThreadLocal.withInitial(() -> false);
+    private final Set<Long> quietRequests = ConcurrentHashMap.newKeySet();//结果不通知listener的请求（sender key的分发）
+    //合并发送：消息类请求等待batchLinger毫秒或累计batchMaxBytes字节后作为一个BATCH发送，0为不合并
+    private final static ScheduledExecutorService batchTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "batch-linger");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile int batchLinger = 0;
+    private volatile int batchMaxBytes = 16 * 1024;
+    private final ArrayList<Pack> batch = new ArrayList<>();//由requestObserver的锁保护
+    private int batchBytes = 0;
+    private final String compression;//请求与推送使用的压缩算法，空为不压缩
+    private volatile int serverFeatures = 0;//服务器在HELLO结果中声明的特性
+    private volatile Throwable streamError = null;
+    private final ConcurrentHashMap<Long, User> userList = new ConcurrentHashMap<>();
     private final User receiver = new User();
     private final byte[] contextInfo = new byte[0];
-    private boolean loginSuccessful = false;
+    private volatile boolean loginSuccessful = false;
     private final static long serverId = 0;
-    private static String accountName;
+    private int maxVersion = Protocol.LATEST;
+    private int version = Protocol.V1;//协商后的协议版本
+    private volatile boolean helloPending = false;
+    //最后看到的在线状态版本，重新登录时只接收增量
+    private long presenceEpoch = 0;
+    private long presenceVersion = 0;
+    //等待登录结果期间收到的上线/下线推送，可能晚于登录结果中的快照，需要在快照之后重新应用
+    private final ArrayList<Pack> earlyPresence = new ArrayList<>();
+    private volatile boolean loginPending = false;
+    private volatile String redirect = null;//登录被重定向到的节点地址
+    //公钥缓存与等待获取公钥的用户
+    private final StringMessageGrpc.StringMessageStub asyncStub;
+    private final StringMessageGrpc.StringMessageBlockingStub blockingStub;
+    private KeyCache keyCache = new KeyCache(null);
+    private final HashMap<Long, User> keyPending = new HashMap<>();
+    private boolean keyFetching = false;
+    //加解密
+    private CryptoEngine crypto = null;
+    private int decryptThreads = Math.min(4, Runtime.getRuntime().availableProcessors());
+    private OrderedExecutor decryptWorkers = null;//共享的解密线程，为null时自己创建
+    private final Object roomSendLock = new Object();//房间消息的分发与发送保持顺序
 
     //初始化
     public GRpcClient(Channel channel) {
-        StringMessageGrpc.StringMessageStub asyncStub = StringMessageGrpc.newStub(channel);
+        this(channel, null);
+    }
+
+    //compression：请求使用的压缩算法（如gzip，需已在CompressorRegistry中注册），并在HELLO中请求服务器推送同样压缩，null为不压缩
+    public GRpcClient(Channel channel, String compression) {
+        this.compression = compression == null || compression.equals("identity") ? "" : compression;
+        asyncStub = this.compression.isEmpty() ? StringMessageGrpc.newStub(channel)
+                : StringMessageGrpc.newStub(channel).withCompression(this.compression);
+        blockingStub = StringMessageGrpc.newBlockingStub(channel);
         requestObserver =
                 asyncStub.postPackage(
                         new StreamObserver<>() {
                             @Override
                             public void onNext(Pack value) {
-                                switch (value.getAct()) {
-                                    //接收私聊消息
-                                    case "SP_forward" -> {
-                                        //混合解密
-                                        String message = null;
-                                        try {
-                                            HybridDecrypt decryptor = GRpcClient.accountInfo.sk.getPrimitive(HybridDecrypt.class);
-                                            byte[] plaintext = decryptor.decrypt(value.getMessage().toByteArray(), contextInfo);
-                                            message = new String(plaintext, StandardCharsets.UTF_8);
-                                        } catch (GeneralSecurityException ex) {
-                                            System.err.println("Cannot create primitive, got error: " + ex);
-                                            System.exit(1);
-                                        }
-                                        System.out.println("\r - Receive Message: [" + message + "]\n - From [" + userList.get(value.getSender()).name + "]");
+                                asCallback(() -> handle(value));
+                            }
+
+                            private void handle(Pack value) {
+                                Action action = Protocol.actionOf(value);
+                                if (helloPending) {//握手结果，旧服务器不认识HELLO，继续使用v1
+                                    helloPending = false;
+                                    if (action == Action.HELLO) {
+                                        version = value.getHello().getVersion();
+                                        serverFeatures = value.getHello().getFeatures();
                                     }
+                                    logger.info("Protocol Version: " + version + ", Server Features: " + serverFeatures
+                                            + (GRpcClient.this.compression.isEmpty() ? "" : ", Push Compression: "
+                                            + (value.getHello().getCompression().isEmpty() ? "none" : value.getHello().getCompression())));
+                                    complete(value);
+                                    return;
+                                }
+                                if (Protocol.isResult(value)) {//普通服务器通知
+                                    if (!quietRequests.remove(value.getRequestId()))
+                                        listener.onNotice(GRpcClient.this, Protocol.noticeOf(value));
+                                    complete(value);
+                                    return;
+                                }
+                                switch (action) {
+                                    //接收私聊消息
+                                    //解密在解密线程上执行，同一发送者的消息按顺序回调
+                                    case PUSH_FORWARD -> crypto.decryptAsync(value.getSender(), value.getMessage(),
+                                            (senderId, plaintext, error) -> asCallback(() -> {
+                                                if (error != null) {
+                                                    logger.warn("Decrypt Message from " + nameOf(senderId) + " Failed: " + error);
+                                                    listener.onDecryptFailed(GRpcClient.this, senderId, error);
+                                                    return;
+                                                }
+                                                if (SenderKeys.isDistribution(plaintext)) {//房间的sender key
+                                                    acceptSenderKey(senderId, plaintext);
+                                                    return;
+                                                }
+                                                listener.onMessage(GRpcClient.this, senderId, new String(plaintext, StandardCharsets.UTF_8));
+                                            }));
                                     //接收群发消息
-                                    case "SP_broadcast" -> {
-                                        String message = value.getMessage().toStringUtf8();
-                                        String sender = userList.get(value.getSender()).name;
-                                        System.out.println("\r - Receive Broadcast: [" + message + "]\n - From [" + sender + "]");
-                                    }
-                                    //登录成功，并接收在线用户列表
-                                    case "SR_UserList" -> {
-                                        String message = value.getMessage().toStringUtf8();
-                                        if (message.contains("Login Successful")) {
+                                    case PUSH_BROADCAST -> listener.onBroadcast(GRpcClient.this, value.getSender(),
+                                            value.getMessage().toStringUtf8());
+                                    //接收房间消息，与同一发送者的私聊消息在同一解密线程上按顺序解密
+                                    case PUSH_ROOM -> crypto.decryptRoomAsync(value.getSender(), value.getReceiver(),
+                                            value.getMessage(), (senderId, plaintext, error) -> asCallback(() -> {
+                                                if (error != null) {
+                                                    logger.warn("Decrypt Room Message from " + nameOf(senderId) + " Failed: " + error);
+                                                    listener.onDecryptFailed(GRpcClient.this, senderId, error);
+                                                    return;
+                                                }
+                                                listener.onRoomMessage(GRpcClient.this, value.getReceiver(), senderId,
+                                                        new String(plaintext, StandardCharsets.UTF_8));
+                                            }));
+                                    //房间成员变化，下一条房间消息前更换sender key
+                                    case PUSH_ROOM_MEMBERS -> crypto.getSenderKeys().membersChanged(value.getRoom().getId(),
+                                            value.getRoom().getMembersList(), value.getRoom().getLeftList());
+                                    //房间成员列表
+                                    case ROOM_MEMBERS -> complete(value);
+                                    //登录结果，成功时接收在线用户列表
+                                    case LOGIN -> {
+                                        LoginResult result = Protocol.loginResultOf(value);
+                                        if (result.getCode() == StatusCode.REDIRECT) {//用户属于其他节点
+                                            redirect = result.getRedirect();
+                                            earlyPresence.clear();
+                                            loginPending = false;
+                                            logger.info("Login Redirected to " + redirect);
+                                            listener.onLogin(GRpcClient.this, result);
+                                            complete(value);
+                                            return;
+                                        }
+                                        if (result.getCode() == StatusCode.OK) {
                                             loginSuccessful = true;
-                                            accountInfo.name = message.split(":")[1];
-                                            System.out.println("\rNotice: [Welcome back, " + message.split(":")[1] + "]");
-                                        } else if (message.contains("Registration Successful")) {
+                                            accountInfo.name = result.getName();
+                                        } else if (result.getCode() == StatusCode.CREATED) {
                                             loginSuccessful = true;
-                                            accountInfo.id = Long.parseLong(message.split(":")[1]);
-                                            System.out.println("\rNotice: [Hello " + accountInfo.name + ", your id is " + message.split(":")[1] + "]");
+                                            accountInfo.id = result.getId();
                                         }
-                                        accountName = accountInfo.name + "@" + accountInfo.id;
-                                        userList.clear();
-                                        int listSize = value.getUserInfoListCount();
-                                        for (int i = 0; i < listSize; ++i) {
-                                            String userName = value.getUserInfoList(i).getName() + "@" + value.getUserInfoList(i).getId();
-                                            User user = new User(value.getUserInfoList(i).getId(), userName, value.getUserInfoList(i).getPk());
-                                            userList.put(value.getUserInfoList(i).getId(), user);//本地保存在线用户的公钥
+                                        if (!result.getDelta())//完整快照
+                                            userList.clear();
+                                        for (UserInfoPack userInfo : result.getUsersList())
+                                            addUser(userInfo);//本地保存在线用户的公钥
+                                        for (long id : result.getLeftList())
+                                            userList.remove(id);
+                                        fetchPendingKeys();
+                                        loginPending = false;
+                                        if (value.hasPresence()) {
+                                            presenceEpoch = value.getPresence().getEpoch();
+                                            presenceVersion = value.getPresence().getVersion();
+                                            for (Pack early : earlyPresence)
+                                                if (early.getPresence().getVersion() > presenceVersion) {
+                                                    applyPresence(early);
+                                                    updatePresenceVersion(early);
+                                                }
                                         }
+                                        earlyPresence.clear();
+                                        logger.info("User List: " + (result.getDelta() ? "delta" : "snapshot")
+                                                + " " + result.getUsersCount() + "+/" + result.getLeftCount() + "-, version " + presenceVersion);
+                                        listener.onLogin(GRpcClient.this, result);
+                                        complete(value);
                                     }
                                     //接收用户登录消息
-                                    case "SP_loginMsg" -> {
-                                        String userName = value.getUserInfoList(0).getName() + "@" + value.getUserInfoList(0).getId();
-                                        User user = new User(value.getUserInfoList(0).getId(), userName, value.getUserInfoList(0).getPk());
-                                        userList.put(value.getUserInfoList(0).getId(), user);
+                                    case PUSH_LOGIN -> {
+                                        if (loginPending)
+                                            earlyPresence.add(value);
+                                        UserInfoPack userInfo = Protocol.userOf(value);
+                                        crypto.closeSession(userInfo.getId());//对方重新登录，已没有旧会话
+                                        crypto.getSenderKeys().peerOnline(userInfo.getId());//也没有收到的sender key
+                                        if (userInfo.getId() == receiver.id)
+                                            receiver.features = userInfo.getFeatures();
+                                        User user = addUser(userInfo);
+                                        fetchPendingKeys();
+                                        updatePresenceVersion(value);
+                                        listener.onUserOnline(GRpcClient.this, user);
                                     }
                                     //接收用户下线消息
-                                    case "SP_logoutMsg" -> {
-                                        String userName = value.getUserInfoList(0).getName() + "@" + value.getUserInfoList(0).getId();
-                                        userList.remove(value.getUserInfoList(0).getId());
+                                    case PUSH_LOGOUT -> {
+                                        if (loginPending)
+                                            earlyPresence.add(value);
+                                        long userId = Protocol.userOf(value).getId();
+                                        userList.remove(userId);
+                                        crypto.closeSession(userId);//离线消息从新会话开始
+                                        updatePresenceVersion(value);
+                                        listener.onUserOffline(GRpcClient.this, userId);
                                     }
-                                    //普通服务器通知
-                                    case "SR_String" -> System.out.println("\rNotice: [" + value.getMessage().toStringUtf8() + "]");
                                     //未知消息
-                                    default -> System.out.println("\rUnknown message: [" + value.getMessage().toStringUtf8() + "]");
+                                    default -> logger.warn("Unknown Message: [" + value.getAct() + "/" + action + "]");
                                 }
-                                finishLatch.countDown();
                             }
 
                             @Override
                             public void onError(Throwable t) {
                                 logger.warn("PostPackage Error: " + Status.fromThrowable(t));
-                                finishLatch.countDown();
+                                failInFlight(t);
+                                listener.onDisconnected(GRpcClient.this, t);
                             }
 
                             @Override
                             public void onCompleted() {
-                                finishLatch.countDown();
+                                failInFlight(Status.UNAVAILABLE.withDescription("Stream Completed").asRuntimeException());
+                                listener.onDisconnected(GRpcClient.this, null);
                             }
                         }
                 );
     }
 
-    // 发送信息
-    public CountDownLatch post(String message) {
-        finishLatch = new CountDownLatch(1);
-        if (this.receiver.name == null || this.receiver.pk == null) {
-            //群发(不加密)
-            try {
-                Pack request = Pack.newBuilder().setAct("#broadcast")
-                        .setSender(accountInfo.id).setReceiver(serverId)
-                        .setMessage(GRpcUtil.toByteString(message)).build();
-                requestObserver.onNext(request);
-            } catch (RuntimeException e) {
-                // Cancel RPC
-                requestObserver.onError(e);
-                e.printStackTrace();
-            }
-        } else {
+    //向当前接收者发送信息，返回服务器结果的future；在途请求达到上限时阻塞（回调中调用时返回失败的future）
+    public CompletableFuture<Pack> post(String message) {
+        if (this.receiver.name == null || this.receiver.pk == null)
+            return broadcast(message);
+        return post(this.receiver.id, this.receiver.pk, this.receiver.features, message);
+    }
+
+    //向指定的在线用户发送私聊消息，公钥尚未获取时同步获取
+    public CompletableFuture<Pack> post(long receiverId, String message) {
+        User user = userList.get(receiverId);
+        KeysetHandle pk = user == null ? null : keyOf(user);
+        if (pk == null)
+            return CompletableFuture.failedFuture(
+                    new IllegalArgumentException("Public key of user " + receiverId + " is unavailable"));
+        return post(receiverId, pk, user.features, message);
+    }
+
+    //群发(不加密)
+    public CompletableFuture<Pack> broadcast(String message) {
+        return send(Protocol.request(version, Action.BROADCAST)
+                .setSender(accountInfo.id).setReceiver(serverId)
+                .setMessage(GRpcUtil.toByteString(message)));
+    }
+
+    //创建聊天室并加入，结果中的id为房间id（仅v2）
+    public CompletableFuture<Pack> createRoom(String name) {
+        if (version < Protocol.V2)
+            return CompletableFuture.failedFuture(new UnsupportedOperationException("Rooms require protocol v2"));
+        return send(Protocol.request(version, Action.ROOM_CREATE)
+                .setSender(accountInfo.id).setRoom(Room.newBuilder().setName(name)));
+    }
+
+    //加入聊天室
+    public CompletableFuture<Pack> joinRoom(long roomId) {
+        return roomRequest(Action.ROOM_JOIN, roomId, null);
+    }
+
+    //离开聊天室
+    public CompletableFuture<Pack> leaveRoom(long roomId) {
+        return roomRequest(Action.ROOM_LEAVE, roomId, null).thenApply(result -> {
+            if (result.getResult().getCode() == StatusCode.OK)
+                crypto.getSenderKeys().forget(roomId);
+            return result;
+        });
+    }
+
+    //向聊天室发送消息(sender key加密)，只有房间的在线成员收到
+    //成员变化后先经私聊把新的链密钥发给每个在线成员，之后每条消息只加密一次，服务器投递同一密文
+    //第一次发送前同步获取房间成员，不能在gRPC回调线程（即ChatListener）中调用
+    public CompletableFuture<Pack> postRoom(long roomId, String message) {
+        if (version < Protocol.V2)
+            return CompletableFuture.failedFuture(new UnsupportedOperationException("Rooms require protocol v2"));
+        SenderKeys senderKeys = crypto.getSenderKeys();
+        synchronized (roomSendLock) {
             try {
-                //混合加密
-                HybridEncrypt hybridEncrypt = this.receiver.pk.getPrimitive(HybridEncrypt.class);
-                byte[] ciphertext = hybridEncrypt.encrypt(message.getBytes(StandardCharsets.UTF_8), contextInfo);
-
-                Pack request = Pack.newBuilder().setAct("#post")
-                        .setSender(accountInfo.id).setReceiver(this.receiver.id)
-                        .setMessage(ByteString.copyFrom(ciphertext)).build();
-                requestObserver.onNext(request);
-            } catch (RuntimeException | GeneralSecurityException e) {
-                // Cancel RPC
-                requestObserver.onError(e);
-                e.printStackTrace();
+                if (!senderKeys.knowsMembers(roomId)) {
+                    Pack result = roomRequest(Action.ROOM_MEMBERS, roomId, null).get(10, TimeUnit.SECONDS);
+                    if (!result.hasRoom())//不是成员或房间不存在
+                        return CompletableFuture.completedFuture(result);
+                    senderKeys.setMembers(roomId, result.getRoom().getMembersList());
+                }
+                //私聊会话的发送顺序先于房间消息，接收者在同一解密线程上先收到链密钥
+                for (long member : senderKeys.pendingMembers(roomId, accountInfo.id, userList::containsKey)) {
+                    User user = userList.get(member);
+                    KeysetHandle pk = user == null ? null : keyOf(user);
+                    if (pk == null)//下一条消息时重试
+                        continue;
+                    byte[] ciphertext = crypto.encrypt(accountInfo.id, member, pk, user.features,
+                            senderKeys.distribution(roomId));
+                    send(Protocol.request(version, Action.POST).setSender(accountInfo.id).setReceiver(member)
+                            .setMessage(ByteString.copyFrom(ciphertext)), true);
+                    senderKeys.distributed(roomId, member);
+                }
+                byte[] body = senderKeys.encrypt(roomId, accountInfo.id, message.getBytes(StandardCharsets.UTF_8));
+                return roomRequest(Action.ROOM_POST, roomId, ByteString.copyFrom(body));
+            } catch (GeneralSecurityException e) {
+                logger.error("Encrypt Room Message Failed: " + e);
+                return CompletableFuture.failedFuture(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return CompletableFuture.failedFuture(e);
+            } catch (ExecutionException | TimeoutException e) {
+                logger.warn("Fetch Room Members Failed: " + e);
+                return CompletableFuture.failedFuture(e);
             }
         }
-        // return the latch while receiving happens asynchronously
-        return finishLatch;
+    }
+
+    private CompletableFuture<Pack> roomRequest(Action action, long roomId, ByteString message) {
+        if (version < Protocol.V2)
+            return CompletableFuture.failedFuture(new UnsupportedOperationException("Rooms require protocol v2"));
+        Pack.Builder request = Protocol.request(version, action).setSender(accountInfo.id).setReceiver(roomId);
+        if (message != null)
+            request.setMessage(message);
+        return send(request);
+    }
+
+    //保存房间成员经私聊发来的sender key
+    private void acceptSenderKey(long senderId, byte[] plaintext) {
+        try {
+            crypto.getSenderKeys().accept(senderId, plaintext);
+        } catch (GeneralSecurityException e) {
+            logger.warn("Sender Key from " + nameOf(senderId) + " Rejected: " + e);
+            listener.onDecryptFailed(GRpcClient.this, senderId, e);
+        }
+    }
+
+    private CompletableFuture<Pack> post(long receiverId, KeysetHandle pk, int features, String message) {
+        try {
+            //会话加密或混合加密
+            byte[] ciphertext = crypto.encrypt(accountInfo.id, receiverId, pk, features,
+                    message.getBytes(StandardCharsets.UTF_8));
+            return send(Protocol.request(version, Action.POST)
+                    .setSender(accountInfo.id).setReceiver(receiverId)
+                    .setMessage(ByteString.copyFrom(ciphertext)));
+        } catch (GeneralSecurityException e) {//加密失败不影响连接
+            logger.error("Encrypt Message Failed: " + e);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    //协商协议版本，需在登录前完成
+    public CompletableFuture<Pack> hello() {
+        if (maxVersion < Protocol.V2)//只使用v1，无需握手
+            return CompletableFuture.completedFuture(null);
+        helloPending = true;
+        return send(Protocol.hello(maxVersion, Protocol.FEATURE_SESSION, compression).toBuilder());
     }
 
     //登录
-    public CountDownLatch login() {
+    public CompletableFuture<Pack> login() {
         logger.info("Logging in");
-        finishLatch = new CountDownLatch(1);
+        loginPending = true;
+        redirect = null;
+        Pack.Builder request = Protocol.request(version, Action.LOGIN);
         try {
             UserInfoPack userInfoPack = UserInfoPack.newBuilder().setId(accountInfo.id).setName(accountInfo.name)
                     .setPk(GRpcUtil.getKeyByteString(accountInfo.pk)).setSkHash(accountInfo.skHash)
                     .build();
-            Pack request = Pack.newBuilder()
-                    .setAct("#login").setMessage(GRpcUtil.toByteString(GRpcUtil.getTimeStamp()))
-                    .setSender(accountInfo.id).setReceiver(serverId).addUserInfoList(userInfoPack)
-                    .build();
-            requestObserver.onNext(request);
-        } catch (IOException | RuntimeException e) {
-            // Cancel RPC
-            requestObserver.onError(e);
-            e.printStackTrace();
+            if (version >= Protocol.V2) {
+                request.setUser(userInfoPack);
+                if (presenceEpoch != 0)//已有在线列表，请求增量
+                    request.setPresence(PresenceVersion.newBuilder()
+                            .setEpoch(presenceEpoch).setVersion(presenceVersion));
+            }
+            else
+                request.setMessage(GRpcUtil.toByteString(GRpcUtil.getTimeStamp()))
+                        .setSender(accountInfo.id).setReceiver(serverId).addUserInfoList(userInfoPack);
+        } catch (IOException e) {
+            logger.error("Load Public Key Failed: " + e);
+            return CompletableFuture.failedFuture(e);
         }
-        return finishLatch;
+        return send(request);
     }
 
     //登出
-    public CountDownLatch logout() {
+    public CompletableFuture<Pack> logout() {
         logger.info("Logout");
-        finishLatch = new CountDownLatch(1);
+        Pack.Builder request = Protocol.request(version, Action.LOGOUT).setSender(accountInfo.id);
+        if (version < Protocol.V2)
+            request.setMessage(GRpcUtil.toByteString(GRpcUtil.getTimeStamp())).setReceiver(serverId);
+        return send(request);
+    }
+
+    //分配请求id并发送，不等待结果；在途请求达到上限时阻塞，直到有结果返回
+    //在回调线程上调用时不阻塞，在途请求已满则返回失败的future
+    private CompletableFuture<Pack> send(Pack.Builder request) {
+        return send(request, false);
+    }
+
+    //quiet为true时结果不通知listener
+    private CompletableFuture<Pack> send(Pack.Builder request, boolean quiet) {
+        CompletableFuture<Pack> future = new CompletableFuture<>();
+        if (inCallback.get()) {
+            if (!window.tryAcquire()) {
+                logger.warn("Send Rejected in Callback: Too Many Requests in Flight");
+                future.completeExceptionally(new IllegalStateException("Too many requests in flight"));
+                return future;
+            }
+        } else {
+            try {
+                window.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(e);
+                return future;
+            }
+        }
+        synchronized (requestObserver) {//分配id与发送保持同一顺序
+            if (streamError != null) {
+                window.release();
+                future.completeExceptionally(streamError);
+                return future;
+            }
+            long requestId = ++nextRequestId;
+            inFlight.put(requestId, future);
+            if (quiet)
+                quietRequests.add(requestId);
+            try {
+                Pack pack = request.setRequestId(requestId).build();
+                if (batchLinger > 0 && (serverFeatures & Protocol.FEATURE_BATCH) != 0
+                        && Protocol.isBatchable(Protocol.actionOf(pack))) {
+                    batch.add(pack);
+                    batchBytes += pack.getSerializedSize();
+                    if (batchBytes >= batchMaxBytes)
+                        flushBatch();
+                    else if (batch.size() == 1)//批次的第一条消息开始计时
+                        batchTimer.schedule(this::lingerExpired, batchLinger, TimeUnit.MILLISECONDS);
+                } else {//其他请求先发出等待中的批次，保持顺序
+                    flushBatch();
+                    write(pack);
+                }
+            } catch (RuntimeException e) {
+                quietRequests.remove(requestId);
+                if (inFlight.remove(requestId) != null)
+                    window.release();
+                future.completeExceptionally(e);
+                // Cancel RPC
+                requestObserver.onError(e);
+                logger.warn("Send Error: " + e);
+            }
+        }
+        return future;
+    }
+
+    //标记当前线程正在执行回调，期间的发送不等待window
+    private static void asCallback(Runnable task) {
+        boolean outer = inCallback.get();
+        inCallback.set(true);
         try {
-            Pack request = Pack.newBuilder()
-                    .setAct("#logout").setMessage(GRpcUtil.toByteString(GRpcUtil.getTimeStamp()))
-                    .setSender(accountInfo.id).setReceiver(serverId)
-                    .build();
-            requestObserver.onNext(request);
-        } catch (RuntimeException e) {
-            // Cancel RPC
-            requestObserver.onError(e);
-            e.printStackTrace();
+            task.run();
+        } finally {
+            inCallback.set(outer);
         }
-        return finishLatch;
     }
 
-    //展示在线用户名单
-    public void showUserList() {
-        StringBuffer sb = new StringBuffer("\r+ Online Users:\n");
-        int userIndex = 1;
-        for (Map.Entry<Long, User> user : userList.entrySet()) {
-            sb.append("| User ").append(userIndex++).append(": ").append(user.getValue().name).append("\n");
+    //发出等待中的批次，只有一条时直接发送；调用方持有requestObserver的锁
+    private void flushBatch() {
+        if (batch.isEmpty())
+            return;
+        try {
+            write(batch.size() == 1 ? batch.get(0) : Protocol.batch(batch));
+        } finally {
+            batch.clear();
+            batchBytes = 0;
         }
-        sb.append("\n");
-        System.out.println(sb);
-    }
-
-    //设置接收者
-    public void setReceiver() {
-        int usersCount = userList.size();
-        int userIndex = 1;
-        StringBuffer sb = new StringBuffer("\rUser[0]: #Everyone\n");
-        ArrayList<String> userNameList = new ArrayList<>();
-        for (Map.Entry<Long, User> user : userList.entrySet()) {
-            if (user.getKey().equals(accountInfo.id))
-                continue;
-            sb.append("User[").append(userIndex++).append("]: ").append(user.getValue().name).append("\n");
-            userNameList.add(user.getValue().name);
+    }
+
+    //发送一条消息，启用压缩时只压缩较大的消息；调用方持有requestObserver的锁
+    private void write(Pack pack) {
+        if (!compression.isEmpty())
+            ((ClientCallStreamObserver<Pack>) requestObserver).setMessageCompression(
+                    pack.getSerializedSize() >= Protocol.compressMinBytes);
+        requestObserver.onNext(pack);
+    }
+
+    //等待时间到，发出批次；发送失败时取消stream，在途请求由onError统一失败
+    private void lingerExpired() {
+        synchronized (requestObserver) {
+            if (streamError != null)
+                return;
+            try {
+                flushBatch();
+            } catch (RuntimeException e) {
+                requestObserver.onError(e);
+            }
         }
-        sb.append("Receiver index: ");
-        System.out.print(sb);
-
-        Scanner scanner = new Scanner(System.in);
-        int inputInt;
-        //输入合法性验证
-        if (scanner.hasNextInt()) {
-            inputInt = scanner.nextInt();
+    }
+
+    //请求的结果；旧服务器不返回请求id，按顺序对应最早的在途请求
+    private void complete(Pack value) {
+        CompletableFuture<Pack> future;
+        if (value.getRequestId() != 0) {
+            future = inFlight.remove(value.getRequestId());
         } else {
-            inputInt = -1;
+            Map.Entry<Long, CompletableFuture<Pack>> first = inFlight.pollFirstEntry();
+            future = first == null ? null : first.getValue();
         }
-        //设置接收者
-        if (inputInt > 0 && inputInt <= usersCount) {
-            this.setReceiver(userNameList.get(inputInt - 1));
-            System.out.println("Set Receiver User " + userNameList.get(inputInt - 1) + " Succeeded");
-            logger.info("Set new Receiver: " + userNameList.get(inputInt - 1));
-        } else if (inputInt == 0) {//设置群发
-            this.setReceiver(null);
-            System.out.println("Set Receiver User #Everyone Succeeded");
-            logger.info("Set new Receiver: #Everyone");
-        } else {
-            System.out.println("Set Receiver Failed");
+        if (future == null) {
+            logger.warn("Unexpected Result: request " + value.getRequestId());
+            return;
+        }
+        window.release();
+        future.complete(value);
+    }
+
+    //连接断开，所有在途请求失败
+    private void failInFlight(Throwable t) {
+        synchronized (requestObserver) {
+            streamError = t;
+            batch.clear();
+            batchBytes = 0;
+        }
+        quietRequests.clear();
+        Map.Entry<Long, CompletableFuture<Pack>> entry;
+        while ((entry = inFlight.pollFirstEntry()) != null) {
+            window.release();
+            entry.getValue().completeExceptionally(t);
         }
     }
 
-    //接收方信息
-    private static class User {
+    //保存在线用户：v1带有完整公钥；v2只有指纹，指纹与缓存一致时直接使用缓存，否则等待批量获取
+    private User addUser(UserInfoPack userInfo) {
+        String userName = userInfo.getName() + "@" + userInfo.getId();
+        User user = new User(userInfo.getId(), userName, userInfo.getFingerprint());
+        user.features = userInfo.getFeatures();
+        if (!userInfo.getPk().isEmpty())
+            user.pk = keyCache.put(userInfo.getId(), userInfo.getPk());
+        else if ((user.pk = keyCache.get(userInfo.getId(), userInfo.getFingerprint())) == null)
+            synchronized (keyPending) {
+                keyPending.put(userInfo.getId(), user);
+            }
+        userList.put(userInfo.getId(), user);
+        return user;
+    }
+
+    //批量获取缺失的公钥，同一时间只有一个请求，请求期间新增的用户合并到下一批
+    private void fetchPendingKeys() {
+        HashMap<Long, User> batch = new HashMap<>();
+        synchronized (keyPending) {
+            if (keyFetching || keyPending.isEmpty())
+                return;
+            Iterator<Map.Entry<Long, User>> iterator = keyPending.entrySet().iterator();
+            while (iterator.hasNext() && batch.size() < Protocol.maxKeysPerFetch) {
+                Map.Entry<Long, User> entry = iterator.next();
+                batch.put(entry.getKey(), entry.getValue());
+                iterator.remove();
+            }
+            keyFetching = true;
+        }
+        KeyRequest request = KeyRequest.newBuilder().addAllIds(batch.keySet()).build();
+        asyncStub.fetchKeys(request, new StreamObserver<>() {
+            @Override
+            public void onNext(KeyResponse value) {
+                for (UserInfoPack key : value.getKeysList()) {
+                    User user = batch.get(key.getId());
+                    if (user != null)
+                        acceptKey(user, key.getPk());
+                }
+                logger.info("Fetch " + value.getKeysCount() + " Public Keys");
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                logger.warn("Fetch Keys Error: " + Status.fromThrowable(t));
+                next();
+            }
+
+            @Override
+            public void onCompleted() {
+                next();
+            }
+
+            private void next() {
+                synchronized (keyPending) {
+                    keyFetching = false;
+                }
+                fetchPendingKeys();
+            }
+        });
+    }
+
+    //校验指纹后保存公钥
+    private void acceptKey(User user, ByteString pk) {
+        if (!user.fingerprint.isEmpty() && !GRpcUtil.fingerprint(pk).equals(user.fingerprint)) {
+            logger.warn("Public Key of User " + user.name + " does not match its fingerprint");
+            return;
+        }
+        user.pk = keyCache.put(user.id, pk);
+    }
+
+    //用户公钥，尚未获取时同步请求
+    private KeysetHandle keyOf(User user) {
+        if (user.pk == null) {
+            try {
+                KeyResponse response = blockingStub.withDeadlineAfter(10, TimeUnit.SECONDS)
+                        .fetchKeys(KeyRequest.newBuilder().addIds(user.id).build());
+                for (UserInfoPack key : response.getKeysList())
+                    if (key.getId() == user.id)
+                        acceptKey(user, key.getPk());
+            } catch (StatusRuntimeException e) {
+                logger.warn("Fetch Key Error: " + e.getStatus());
+            }
+        }
+        return user.pk;
+    }
+
+    //重新应用上线/下线推送（只更新在线列表）
+    private void applyPresence(Pack value) {
+        if (Protocol.actionOf(value) == Action.PUSH_LOGIN)
+            addUser(Protocol.userOf(value));
+        else
+            userList.remove(Protocol.userOf(value).getId());
+    }
+
+    //推送的版本号连续时前进；出现缺口（推送被丢弃）时在线列表可能不完整，下次登录请求完整快照
+    //登录结果之前的推送由登录结果处理
+    private void updatePresenceVersion(Pack value) {
+        if (!value.hasPresence() || loginPending)
+            return;
+        long version = value.getPresence().getVersion();
+        if (version == presenceVersion + 1) {
+            presenceVersion = version;
+        } else if (version > presenceVersion) {
+            logger.warn("Presence Version " + version + " after " + presenceVersion + ", next login fetches a snapshot");
+            presenceEpoch = 0;
+            presenceVersion = version;
+        }
+    }
+
+    //在线用户与接收方信息，name为"用户名@id"
+    public static class User {
         public long id = -1;
         public String name = null;
-        public KeysetHandle pk = null;
+        public volatile KeysetHandle pk = null;//v2中可能尚未获取
+        public ByteString fingerprint = ByteString.EMPTY;
+        public volatile int features = 0;//对方客户端支持的特性
 
         public User() {
         }
 
-        public User(long id, String name, ByteString pk) {
+        public User(long id, String name, ByteString fingerprint) {
             this.id = id;
             this.name = name;
-            try {
-                this.pk = GRpcUtil.getKeyKeysetHandle(pk);
-            } catch (GeneralSecurityException | IOException e) {
-                logger.error("Load User " + this.name + "'s Public Key Error: " + e);
-            }
+            this.fingerprint = fingerprint;
         }
     }
 
@@ -263,17 +679,24 @@ public class GRpcClient {
         public String skHash = null;
     }
 
-    //设置接收者信息
-    private void setReceiver(String receiverName) {
-        if (receiverName != null) {
-            this.receiver.name = receiverName.substring(0, receiverName.lastIndexOf("@"));
-            this.receiver.id = Long.parseLong(receiverName.substring(receiverName.lastIndexOf("@") + 1));
-            this.receiver.pk = userList.get(this.receiver.id).pk;
+    //设置接收者，id小于0时为群发；接收者不在线或公钥无法获取时返回false
+    public boolean setReceiver(long id) {
+        if (id >= 0) {
+            User user = userList.get(id);
+            KeysetHandle pk = user == null ? null : keyOf(user);
+            if (pk == null)
+                return false;
+            this.receiver.name = user.name.substring(0, user.name.lastIndexOf("@"));
+            this.receiver.id = id;
+            this.receiver.pk = pk;
+            this.receiver.features = user.features;
         } else {
             this.receiver.name = null;
             this.receiver.id = -1;
             this.receiver.pk = null;
+            this.receiver.features = 0;
         }
+        return true;
     }
 
     //获取接收者名称
@@ -296,17 +719,113 @@ public class GRpcClient {
         } catch (NoSuchAlgorithmException e) {
             logger.error("Load SHA256 Failed: " + e);
         }
+        try {
+            if (crypto != null)
+                crypto.shutdown();
+            crypto = decryptWorkers != null ? new CryptoEngine(sk, contextInfo, decryptWorkers)
+                    : new CryptoEngine(sk, contextInfo, decryptThreads, 1024);
+        } catch (GeneralSecurityException e) {
+            logger.error("Create Crypto Primitive Failed: " + e);
+        }
+    }
+
+    //设置解密线程数（需在setAccountInfo前调用）
+    public void setDecryptThreads(int decryptThreads) {
+        this.decryptThreads = decryptThreads;
+    }
+
+    //使用共享的解密线程（需在setAccountInfo前调用）
+    public void setDecryptWorkers(OrderedExecutor decryptWorkers) {
+        this.decryptWorkers = decryptWorkers;
+    }
+
+    //设置事件回调
+    public void setListener(ChatListener listener) {
+        this.listener = listener;
+    }
+
+    //结束与服务器的stream并停止解密（未登出时服务器按断线处理）
+    public void close() {
+        synchronized (requestObserver) {
+            if (streamError == null) {
+                streamError = Status.CANCELLED.withDescription("Client Closed").asRuntimeException();
+                flushBatch();
+                requestObserver.onCompleted();
+            }
+        }
+        if (crypto != null)
+            crypto.shutdown();
+    }
+
+    //私聊会话的消息数与时长上限，messages为0时每条消息都混合加密（需在setAccountInfo后调用）
+    public void setSessionRotation(int messages, long millis) {
+        crypto.setSessionRotation(messages, millis);
+    }
+
+    //合并发送消息类请求（私聊、群发、房间消息）：最多等待lingerMillis毫秒或累计maxBytes字节，lingerMillis为0时不合并
+    //服务器不支持BATCH时逐条发送
+    public void setBatching(int lingerMillis, int maxBytes) {
+        this.batchLinger = Math.max(0, lingerMillis);
+        this.batchMaxBytes = Math.max(1, maxBytes);
+    }
+
+    //在途请求数上限（需在发送前调用）
+    public void setMaxInFlight(int maxInFlight) {
+        this.window = new Semaphore(Math.max(1, maxInFlight));
     }
 
-    public static long getAccountId() {
+    //尚未收到结果的请求数
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    public CryptoEngine getCrypto() {
+        return crypto;
+    }
+
+    //设置客户端支持的最高协议版本
+    public void setMaxVersion(int maxVersion) {
+        this.maxVersion = maxVersion;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    //设置公钥缓存（需在登录前调用）
+    public void setKeyCache(KeyCache keyCache) {
+        this.keyCache = keyCache;
+    }
+
+    public KeyCache getKeyCache() {
+        return keyCache;
+    }
+
+    public long getAccountId() {
         return accountInfo.id;
     }
 
-    public HashMap<Long, User> getUserList() {
+    public String getAccountName() {
+        return accountInfo.name;
+    }
+
+    //在线用户，可在任意线程读取
+    public Map<Long, User> getUserList() {
         return userList;
     }
 
+    //用户的显示名称，用户不在线时为id
+    public String nameOf(long id) {
+        User user = userList.get(id);
+        return user != null ? user.name : String.valueOf(id);
+    }
+
     public boolean isLoginSuccessful() {
         return loginSuccessful;
     }
+
+    //登录被重定向时为用户所属节点的地址(host:port)，否则为null
+    public String getRedirect() {
+        return redirect;
+    }
 }
\ No newline at end of file
@@ -1,43 +1,101 @@
 package org.gRpcChat;
 
 import com.google.protobuf.ByteString;
-import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.*;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 //Grpc服务端（转发服务器）
 public class GRpcServer {
     private final static Logger logger = LoggerFactory.getLogger("Server");
-    private static final HashMap<Long, UserInfo> register = new HashMap<>();
+    private static final SessionRegistry register = new SessionRegistry();
     private static ChatDatabase db;
+    private final RoomIndex rooms = new RoomIndex();
     private Server server;
-    private final static long serverId = 0;
-    private final static long broadcastId = 0;
-
-    private enum PostType {typeString, typeRepeated}
+    private int queueCapacity = 1024;
+    private OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST;
+    private File spillDir = new File("./spill/");
+    private int fanOutThreads = Runtime.getRuntime().availableProcessors();
+    private int fanOutShardSize = 256;
+    private FanOutEngine fanOut;
+    private long offlineTtlMillis = TimeUnit.DAYS.toMillis(7);
+    private int offlineQuota = 1000;
+    private OfflineStore offlineStore;
+    private RegistrationPipeline registration;
+    private int dbReadConnections = 4;
+    private int authCacheSize = 100_000;
+    private int presenceLogSize = 4096;
+    private String dbFileName = "userList.db";
+    private final ServerMetrics metrics = new ServerMetrics();
+    private int metricsPort = 0;
+    private MetricsEndpoint metricsEndpoint;
+    private String auditDir = "./audit/";
+    private long auditFileBytes = 64L << 20;
+    private int auditFiles = 100;
+    private AuditLog auditLog;
+    private TransportProfile transport = new TransportProfile();
+    private HandlerExecutor.Mode execMode = HandlerExecutor.Mode.INLINE;
+    private int handlerThreads = 16;
+    private HandlerExecutor handlers;
+    private int nodeId = 0;//集群节点id，0为单机模式
+    private int clusterPort = 0;
+    private List<String> peers = List.of();
+    private String clusterSecret = "";
+    private ClusterNode cluster;
+    private HashRing ring;//分片模式的一致性哈希环，null为不分片
+    //统计
+    private final LongAdder redirects = new LongAdder();//重定向到其他节点的登录
+    private final LongAdder batches = new LongAdder();//合并发送的请求包
+    private final LongAdder batchedRequests = new LongAdder();
+    private final LongAdder compressedStreams = new LongAdder();//推送使用压缩的stream
 
     //启动Server
     public void start(int port) throws IOException {
-        String dbFileName = "userList.db";
         File dbFile = new File(dbFileName);
         boolean initFlag = dbFile.exists();
-        db = new ChatDatabase(dbFileName);
+        db = new ChatDatabase(dbFileName, dbReadConnections);
+        db.setAuthCache(new AuthCache(authCacheSize));
+        if (ring != null)//新注册的用户只分配属于本节点的id
+            db.setIdFilter(id -> ring.nodeFor(id) == nodeId);
         db.openDB();
         if (!initFlag)
             db.createTable();
         db.selectAll(register);
-        server = ServerBuilder.forPort(port)
-                .addService(new StringMessageImpl())
+        db.createRoomTables();
+        db.selectRooms(rooms);
+        register.setPresenceLog(new PresenceLog(presenceLogSize));
+        fanOut = new FanOutEngine(fanOutThreads, fanOutShardSize);
+        offlineStore = new OfflineStore(db, offlineTtlMillis, offlineQuota, 50);
+        registration = new RegistrationPipeline(db, 256);
+        OutboundQueue.clearSpillDir(spillDir);
+        auditLog = new AuditLog(auditDir, 65536, auditFileBytes, auditFiles);
+        handlers = new HandlerExecutor(execMode, handlerThreads);
+        if (nodeId > 0) {
+            cluster = new ClusterNode(nodeId, clusterSecret, peers, register, fanOut, offlineStore, db.getOriginId(), transport);
+            cluster.start(clusterPort);
+        }
+        server = transport.serverBuilder(port)
+                .addService(ServerInterceptors.intercept(new StringMessageImpl(), metrics.interceptor()))
                 .build()
                 .start();
-        logger.info("Service started, listening on " + port);
+        logger.info("Service started, listening on " + port + ", transport " + transport + ", handlers " + handlers.getMode());
+        if (ring != null)
+            logger.info("Shard node " + nodeId + " of ring " + ring);
+        registerMetrics();
+        if (metricsPort > 0) {
+            metricsEndpoint = new MetricsEndpoint(metrics);
+            metricsEndpoint.start(metricsPort);
+        }
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             // Use stderr here since the logger may have been reset by its JVM shutdown hook.
@@ -51,11 +109,174 @@ public class GRpcServer {
         }));
     }
 
+    //抓取时读取的指标：注册表、发送队列、群发、数据库、缓存
+    private void registerMetrics() {
+        metrics.gauge("grpcchat_users_online", "Online users", register::onlineCount);
+        metrics.gauge("grpcchat_users_registered", "Registered users", register::size);
+        metrics.gauge("grpcchat_presence_version", "Presence log version", () -> register.getPresenceLog().getVersion());
+        metrics.gauge("grpcchat_outbound_depth", "Frames queued in all outbound queues", register::totalOutboundDepth);
+        metrics.gauge("grpcchat_outbound_depth_max", "Deepest outbound queue", register::maxOutboundDepth);
+        metrics.counter("grpcchat_fanout_total", "Fan-outs finished", null, fanOut::getFanOutCount);
+        metrics.counter("grpcchat_fanout_recipients_total", "Frames delivered by fan-out", null, fanOut::getRecipientCount);
+        metrics.histogram("grpcchat_fanout_size", "Recipients per fan-out", null, fanOut.getSizes(), ServerMetrics.sizeBounds);
+        metrics.timer("grpcchat_fanout_seconds", "Fan-out completion time", null, fanOut.getLatency());
+        metrics.gauge("grpcchat_fanout_queued", "Fan-out shards waiting for a thread", fanOut::getQueued);
+        for (ChatDatabase.Op op : ChatDatabase.Op.values())
+            metrics.timer("grpcchat_db_seconds", "SQLite call time", "op=\"" + op.label() + "\"", db.getTimer(op));
+        for (String role : new String[]{"writer", "reader"}) {
+            String labels = "pool=\"" + role + "\"";
+            ConnectionPool.WaitStats stats = role.equals("writer") ? db.getPool().getWriterStats() : db.getPool().getReaderStats();
+            metrics.counter("grpcchat_db_borrows_total", "Connections borrowed", labels, stats::getBorrows);
+            metrics.counter("grpcchat_db_waits_total", "Borrows that had to wait", labels, stats::getWaits);
+            metrics.counter("grpcchat_db_wait_seconds_total", "Time spent waiting for a connection", labels,
+                    () -> stats.getWaitNanos() / 1e9);
+            metrics.counter("grpcchat_db_timeouts_total", "Borrows that timed out", labels, stats::getTimeouts);
+        }
+        AuthCache authCache = db.getAuthCache();
+        metrics.counter("grpcchat_auth_cache_hits_total", "Auth cache hits", null, authCache::getHits);
+        metrics.counter("grpcchat_auth_cache_misses_total", "Auth cache misses", null, authCache::getMisses);
+        metrics.gauge("grpcchat_auth_cache_size", "Auth cache entries", authCache::size);
+        metrics.counter("grpcchat_registrations_total", "Users registered", null, registration::getRegistered);
+        metrics.counter("grpcchat_registration_commits_total", "Registration transactions", null, registration::getCommits);
+        metrics.gauge("grpcchat_rooms", "Chat rooms", rooms::size);
+        metrics.gauge("grpcchat_room_members", "Room memberships", rooms::getMemberships);
+        metrics.gauge("grpcchat_room_index_bytes", "Approximate size of the room membership sets", rooms::memoryBytes);
+        metrics.counter("grpcchat_audit_written_total", "Audit records written", null, auditLog::getWritten);
+        metrics.counter("grpcchat_audit_dropped_total", "Audit records dropped", null, auditLog::getDropped);
+        metrics.gauge("grpcchat_audit_pending", "Audit records waiting to be written", auditLog::pending);
+        if (cluster != null) {
+            metrics.gauge("grpcchat_cluster_remote_users", "Users online on other nodes", register::remoteCount);
+            metrics.gauge("grpcchat_cluster_peers_connected", "Established links to other nodes", cluster::connectedPeers);
+            metrics.counter("grpcchat_cluster_relayed_total", "Messages relayed to other nodes", null, cluster::getRelayed);
+            metrics.counter("grpcchat_cluster_received_total", "Messages relayed from other nodes", null, cluster::getReceived);
+            metrics.counter("grpcchat_cluster_dropped_total", "Cluster messages dropped while a link was down", null,
+                    cluster::getDropped);
+            metrics.counter("grpcchat_cluster_rejected_links_total", "Cluster links that failed authentication", null,
+                    cluster::getRejected);
+        }
+        if (ring != null)
+            metrics.counter("grpcchat_shard_redirects_total", "Logins redirected to the home node", null, redirects::sum);
+        metrics.counter("grpcchat_batches_total", "Batch envelopes received", null, batches::sum);
+        metrics.counter("grpcchat_batched_requests_total", "Requests received inside batch envelopes", null,
+                batchedRequests::sum);
+        metrics.counter("grpcchat_compressed_streams_total", "Streams whose pushes are compressed", null,
+                compressedStreams::sum);
+        metrics.counter("grpcchat_handler_inline_total", "Messages handled on the gRPC callback thread", null,
+                handlers::getInline);
+        metrics.counter("grpcchat_handler_offloaded_total", "Messages handled on the handler executor", null,
+                handlers::getOffloaded);
+    }
+
+    //设置每个会话发送队列的容量、溢出策略与磁盘溢出目录
+    public void setOutboundQueue(int capacity, OutboundQueue.OverflowPolicy policy, String spillDir) {
+        this.queueCapacity = capacity;
+        this.overflowPolicy = policy;
+        this.spillDir = new File(spillDir);
+    }
+
+    //设置群发线程数与分片大小
+    public void setFanOut(int threads, int shardSize) {
+        this.fanOutThreads = threads;
+        this.fanOutShardSize = shardSize;
+    }
+
+    //设置离线消息的保存时间与每个用户的条数上限
+    public void setOfflineStore(long ttlMillis, int quota) {
+        this.offlineTtlMillis = ttlMillis;
+        this.offlineQuota = quota;
+    }
+
+    //设置数据库只读连接数
+    public void setDbReadConnections(int readConnections) {
+        this.dbReadConnections = readConnections;
+    }
+
+    //设置认证缓存容量
+    public void setAuthCacheSize(int authCacheSize) {
+        this.authCacheSize = authCacheSize;
+    }
+
+    //设置在线状态日志保存的事件数，超出范围的客户端登录时收到完整快照
+    public void setPresenceLogSize(int presenceLogSize) {
+        this.presenceLogSize = presenceLogSize;
+    }
+
+    //设置数据库文件
+    public void setDbFile(String dbFileName) {
+        this.dbFileName = dbFileName;
+    }
+
+    //设置Prometheus抓取端口（仅监听本机），0为不开启
+    public void setMetricsPort(int metricsPort) {
+        this.metricsPort = metricsPort;
+    }
+
+    //设置审计日志目录、单个文件大小与保留的文件数
+    public void setAuditLog(String dir, long fileBytes, int files) {
+        this.auditDir = dir;
+        this.auditFileBytes = fileBytes;
+        this.auditFiles = files;
+    }
+
+    //设置Netty传输配置
+    public void setTransport(TransportProfile transport) {
+        this.transport = transport;
+    }
+
+    //设置消息处理的执行方式与阻塞处理线程池大小（POOL模式，及VIRTUAL不可用时）
+    public void setHandlerExecutor(HandlerExecutor.Mode mode, int threads) {
+        this.execMode = mode;
+        this.handlerThreads = threads;
+    }
+
+    //设置集群模式：本节点id（大于0）、节点间链路端口、其他节点的链路地址(host:port)、认证链路的共享密钥
+    public void setCluster(int nodeId, int clusterPort, List<String> peers, String secret) {
+        this.nodeId = nodeId;
+        this.clusterPort = clusterPort;
+        this.peers = peers;
+        this.clusterSecret = secret;
+    }
+
+    //设置分片模式：用户id由一致性哈希环分配到节点，登录其他节点的用户被重定向（需同时设置集群模式）
+    public void setRing(HashRing ring) {
+        this.ring = ring;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
     //关闭Server
     public void stop() throws InterruptedException {
+        if (cluster != null) {//先断开节点间链路，其他节点立即把本节点的用户视为下线
+            cluster.shutdown();
+        }
         if (server != null) {
             server.shutdown().awaitTermination(30, TimeUnit.SECONDS);
         }
+        transport.shutdown();
+        if (handlers != null) {
+            handlers.shutdown();
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.stop();
+        }
+        if (fanOut != null) {
+            fanOut.shutdown();
+        }
+        if (offlineStore != null) {
+            offlineStore.shutdown();
+        }
+        if (registration != null) {
+            registration.shutdown();
+        }
+        if (auditLog != null) {
+            auditLog.shutdown();
+        }
+        if (db != null) {
+            logger.info("Database Pool Wait: " + db.getPool());
+            logger.info("Auth Cache: " + db.getAuthCache());
+        }
     }
 
     //由于grpc库使用守护线程，所以在主线程上等待终止。
@@ -65,197 +286,342 @@ public class GRpcServer {
         }
     }
 
-    //Server提供的服务
-    static class StringMessageImpl extends StringMessageGrpc.StringMessageImplBase {
+    //Server提供的服务：请求为Pack，响应为预先序列化的Frame（线上格式与Pack一致）
+    class StringMessageImpl implements BindableService {
         @Override
-        public StreamObserver<Pack> postPackage(StreamObserver<Pack> responseObserver) {
+        public ServerServiceDefinition bindService() {
+            MethodDescriptor<Pack, Frame> postPackageMethod = StringMessageGrpc.getPostPackageMethod()
+                    .toBuilder(ProtoUtils.marshaller(Pack.getDefaultInstance()), Frame.MARSHALLER)
+                    .build();
+            return ServerServiceDefinition.builder(StringMessageGrpc.SERVICE_NAME)
+                    .addMethod(postPackageMethod, ServerCalls.asyncBidiStreamingCall(this::postPackage))
+                    .addMethod(StringMessageGrpc.getFetchKeysMethod(), ServerCalls.asyncUnaryCall(this::fetchKeys))
+                    .build();
+        }
+
+        //批量获取公钥，包括离线用户
+        public void fetchKeys(KeyRequest request, StreamObserver<KeyResponse> responseObserver) {
+            if (request.getIdsCount() > Protocol.maxKeysPerFetch) {
+                responseObserver.onError(Status.INVALID_ARGUMENT
+                        .withDescription("At most " + Protocol.maxKeysPerFetch + " keys per request").asRuntimeException());
+                return;
+            }
+            KeyResponse.Builder response = KeyResponse.newBuilder();
+            for (long id : request.getIdsList()) {
+                UserInfo userInfo = register.get(id);
+                if (userInfo != null)
+                    response.addKeys(userInfo.toPack());
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        public StreamObserver<Pack> postPackage(StreamObserver<Frame> responseObserver) {
+            //发送队列，受gRPC流控约束
+            OutboundQueue outbound = new OutboundQueue((ServerCallStreamObserver<Frame>) responseObserver,
+                    queueCapacity, overflowPolicy, spillDir);
+            //INLINE模式为null，消息直接在gRPC回调线程上处理
+            HandlerExecutor.Stream serial = handlers.newStream();
+            //溢出断开可能发生在群发条带或其他stream的线程上，下线（及其群发）不在该线程上执行
+            outbound.setOnDisconnect(() -> handlers.executeDetached(serial, () -> logout(outbound, true)));
             return new StreamObserver<>() {
+                private int version = Protocol.V1;//协议版本，由HELLO握手协商
+                private int features = 0;//客户端特性，登录后随用户信息转发给其他用户
+                private UserInfo session = null;//本stream登录的用户
+
                 @Override
                 public void onNext(Pack value) {
-                    String message = "";
-                    PostType postType = PostType.typeString;
+                    if (Protocol.actionOf(value) == Action.BATCH) {//合并发送的请求，按顺序逐个处理，各自返回结果
+                        batches.increment();
+                        batchedRequests.add(value.getBatchCount());
+                        for (Pack request : value.getBatchList())
+                            dispatch(request);
+                    } else {
+                        dispatch(value);
+                    }
+                }
+
+                private void dispatch(Pack value) {
+                    if (serial == null)
+                        handle(value);
+                    else//登录/注册访问数据库，移到执行器上；之后的消息排在其后，保持顺序
+                        serial.execute(() -> handle(value), Protocol.isBlocking(Protocol.actionOf(value)));
+                }
+
+                private void handle(Pack value) {
+                    StatusCode code = StatusCode.OK;
+                    long subject = 0;//结果涉及的用户
                     boolean completeFlag = false;
-                    String act = value.getAct();
+                    UserInfo loginUser = null;
+                    Pack responsePack = null;
+                    Action action = Protocol.actionOf(value);
                     //服务器动作
-                    switch (act) {
+                    switch (action) {
+                        //协商协议版本
+                        case HELLO -> {
+                            version = Protocol.negotiate(value.getHello().getVersion());
+                            features = value.getHello().getFeatures();
+                            outbound.setVersion(version);
+                            //推送的压缩算法，只能在发送第一条消息（即本结果）前设置
+                            String compression = value.getHello().getCompression();
+                            if (compression.isEmpty() || !outbound.setCompression(compression))
+                                compression = "";
+                            else
+                                compressedStreams.increment();
+                            responsePack = Protocol.hello(version, version >= Protocol.V2 ? Protocol.FEATURE_BATCH : 0,
+                                    compression).toBuilder().setRequestId(value.getRequestId()).build();
+                        }
                         //收到用户登录消息
-                        case "#login" -> {
-                            long userId = value.getUserInfoList(0).getId();
-                            String userName = value.getUserInfoList(0).getName();
-                            ByteString userPk = value.getUserInfoList(0).getPk();
-                            String userSkHash = value.getUserInfoList(0).getSkHash();
+                        case LOGIN -> {
+                            UserInfoPack loginPack = version >= Protocol.V2 ? value.getUser() : value.getUserInfoList(0);
+                            long userId = loginPack.getId();
+                            String userName = loginPack.getName();
+                            ByteString userPk = loginPack.getPk();
+                            String userSkHash = loginPack.getSkHash();
                             boolean regStatus = false;
                             String loginName = null;
-                            if (register.containsKey(userId)) {//登录
+                            PresenceLog.Event loginEvent = null;
+                            int home = ring == null || userId < 0 ? nodeId : ring.nodeFor(userId);
+                            if (home != nodeId) {//用户属于其他节点，重定向
+                                redirects.increment();
+                                logger.info("User " + userId + " Redirected to Node " + home);
+                                responsePack = Protocol.redirect(version, value.getSender(), userId, ring.address(home),
+                                        value.getRequestId());
+                                code = StatusCode.REDIRECT;
+                                completeFlag = true;
+                                break;
+                            }
+                            if (cluster != null && userId >= 0 && !register.contains(userId)) {//其他节点注册、尚未同步的用户
+                                UserInfo stored = db.selectUser(userId);
+                                if (stored != null)
+                                    register.add(stored);
+                            }
+                            if (register.contains(userId)) {//登录
                                 loginName = db.login(userId, userSkHash);
-                                userName=loginName;
+                                userName = loginName;
                             } else {//注册
-                                userId = db.reg(userName, userPk, userSkHash);
+                                userId = registration.register(userName, userPk, userSkHash).join();
                                 regStatus = true;
                             }
 
                             if (loginName == null && (!regStatus)) {//用户已存在且登陆失败
-                                message = "Login Failed: Authentication failure";
+                                code = StatusCode.AUTH_FAILED;
+                                completeFlag = true;
+                            } else if (userId < 0) {//注册失败
+                                code = StatusCode.REGISTRATION_FAILED;
                                 completeFlag = true;
                             } else {
-                                postType = PostType.typeRepeated;
                                 if (regStatus) {//新用户注册，保存用户信息
                                     UserInfo newUserInfo = new UserInfo();
                                     newUserInfo.setName(userName);
                                     newUserInfo.setPk(userPk);
-                                    newUserInfo.setStream(responseObserver);
-                                    newUserInfo.login();
                                     newUserInfo.setId(userId);
-                                    register.put(userId, newUserInfo);
-                                    message += ("Registration Successful:" + userId);
+                                    newUserInfo.setFeatures(features);
+                                    loginEvent = register.online(newUserInfo, outbound);
+                                    loginUser = newUserInfo;
+                                    code = StatusCode.CREATED;
                                     logger.info("New User " + userId + " Registration");
                                 } else {//老用户登录，更新信息
                                     UserInfo userInfo = register.get(userId);
-                                    userInfo.setStream(responseObserver);
-                                    userInfo.login();
-                                    message += ("Login Successful:" + loginName);
+                                    userInfo.setFeatures(features);
+                                    loginEvent = register.online(userInfo, outbound);
+                                    loginUser = userInfo;
                                     logger.info("User " + userId + " Login");
                                 }
+                                rooms.online(userId);
+                                session = loginUser;
                                 //广播用户登录消息
-                                UserInfoPack userInfoPack = UserInfoPack.newBuilder()
-                                        .setId(userId).setName(userName).setPk(userPk)
-                                        .build();
-                                Pack loginMsgPack = Pack.newBuilder().setAct("SP_loginMsg")
-                                        .setSender(serverId).setReceiver(db.getOriginId())
-                                        .setMessage(GRpcUtil.toByteString("login"))
-                                        .addUserInfoList(userInfoPack)
-                                        .build();
-                                for (HashMap.Entry<Long, UserInfo> user : register.entrySet()) {//遍历register
-                                    if (user.getKey().equals(db.getOriginId()) || user.getKey().equals(userId) || (!user.getValue().isOnline()))
-                                        continue;
-                                    user.getValue().getStream().onNext(loginMsgPack);//向某个在线用户发送群发消息
-                                }
+                                long loginId = userId;
+                                fanOut.fanOut(Protocol.presence(loginEvent, db.getOriginId()), register.onlineSnapshot(),
+                                        id -> id == db.getOriginId() || id == loginId);//向其他在线用户发送群发消息
+                                if (cluster != null)//发布到其他节点
+                                    cluster.publishOnline(loginUser);
                             }
+                            //发送登录结果与在线成员信息：客户端提供了最后看到的版本时只发送增量
+                            PresenceLog.Sync sync = null;
+                            if (loginUser != null)
+                                sync = register.sync(version >= Protocol.V2 && value.hasPresence() ? value.getPresence() : null,
+                                        db.getOriginId());
+                            responsePack = Protocol.login(version, value.getSender(), code, userId, userName, sync,
+                                    value.getRequestId());
                         }
                         //收到用户下线消息
-                        case "#logout" -> {
-                            for (HashMap.Entry<Long, UserInfo> user : register.entrySet()) {//遍历register
-                                if (user.getKey().equals(db.getOriginId()) || !user.getValue().isOnline())
-                                    continue;
-                                if (user.getValue().getStream().equals(responseObserver)) {
-                                    logger.info("User " + user.getKey() + " logout");
-                                    //设置离线
-                                    user.getValue().logout();
-                                    //广播用户下线消息
-                                    UserInfoPack userInfoPack = UserInfoPack.newBuilder()
-                                            .setId(user.getValue().getId()).setName(user.getValue().getName())
-                                            .setPk(user.getValue().getPk())
-                                            .build();
-                                    Pack loginMsgPack = Pack.newBuilder().setAct("SP_logoutMsg")
-                                            .setSender(serverId).setReceiver(db.getOriginId())
-                                            .setMessage(GRpcUtil.toByteString("logout"))
-                                            .addUserInfoList(userInfoPack)
-                                            .build();
-                                    for (HashMap.Entry<Long, UserInfo> entry : register.entrySet()) {//遍历register
-                                        if (entry.getKey().equals(db.getOriginId()) || (!entry.getValue().isOnline()))
-                                            continue;
-                                        entry.getValue().getStream().onNext(loginMsgPack);//向某个在线用户发送群发消息
-                                    }
-                                    break;
-                                }
-                            }
-                            message = "Logout Successful";
+                        case LOGOUT -> {
+                            session = null;
+                            logout(outbound, false);
                             completeFlag = true;
                         }
                         //转发用户发送的信息
-                        case "#post" -> {
-                            if (register.containsKey(value.getReceiver()) && register.get(value.getReceiver()).isOnline()) {//检查接收对象是否在线
-                                UserInfo userForwardTo = register.get(value.getReceiver());
-                                Pack forwardPack = Pack.newBuilder().setAct("SP_forward")
-                                        .setSender(value.getSender()).setReceiver(value.getReceiver())
-                                        .setMessage(value.getMessage()).build();
-                                userForwardTo.getStream().onNext(forwardPack);//直接转给收件方
-                                message = "Send Successful";
-                                logger.info("Private Chat: " + value.getSender() + " -> " + value.getReceiver());
+                        case POST -> {
+                            long receiver = value.getReceiver();
+                            UserInfo userForwardTo = register.getOnline(receiver);
+                            if (userForwardTo != null) {//检查接收对象是否在线
+                                //直接转给收件方
+                                userForwardTo.send(Protocol.forward(value.getSender(), receiver, value.getMessage()));
+                            } else if (cluster != null && cluster.relay(receiver, value.getSender(), value.getMessage())) {
+                                //接收者在其他节点在线，经节点间链路转发
+                            } else if (ring != null && ring.nodeFor(receiver) != nodeId) {//接收者属于其他节点，由其所属节点暂存
+                                code = cluster.relayTo(ring.nodeFor(receiver), receiver, value.getSender(), value.getMessage())
+                                        ? StatusCode.RECEIVER_OFFLINE : StatusCode.RECEIVER_NOT_FOUND;
+                                subject = receiver;
+                            } else if (register.contains(receiver)) {//离线暂存
+                                offlineStore.store(value.getSender(), receiver, value.getMessage());
+                                code = StatusCode.RECEIVER_OFFLINE;
+                                subject = receiver;
                             } else {
-                                message = "Send Failed: User " + value.getReceiver() + " is offline";
+                                code = StatusCode.RECEIVER_NOT_FOUND;
+                                subject = receiver;
                             }
+                            auditLog.record(action, code, value.getSender(), receiver, value.getMessage().size());
                         }
                         //转发用户群发的消息
-                        case "#broadcast" -> {
-                            StringBuffer sb = new StringBuffer("Broadcast:    " + value.getSender() + " -> ");
-                            Pack forwardPack = Pack.newBuilder().setAct("SP_broadcast")
-                                    .setSender(value.getSender()).setReceiver(broadcastId)
-                                    .setMessage(value.getMessage())
-                                    .build();
-                            for (HashMap.Entry<Long, UserInfo> entry : register.entrySet()) {//遍历register
-                                if (entry.getKey().equals(db.getOriginId()) || (!entry.getValue().isOnline()))
-                                    continue;
-                                entry.getValue().getStream().onNext(forwardPack);//向某个在线用户发送群发消息
-                                sb.append(entry.getKey()).append("; ");
+                        case BROADCAST -> {
+                            long sender = value.getSender();
+                            UserInfo[] recipients = register.onlineSnapshot();
+                            fanOut.fanOut(Protocol.broadcast(sender, value.getMessage()), recipients,
+                                    id -> id == db.getOriginId());//向所有在线用户发送群发消息
+                            if (cluster != null)//由其他节点投递给其在线用户
+                                cluster.relayBroadcast(sender, value.getMessage());
+                            auditLog.record(action, code, sender, recipients.length, value.getMessage().size());
+                        }
+                        //创建聊天室，创建者自动加入
+                        case ROOM_CREATE -> {
+                            long owner = roomUser();
+                            String roomName = value.getRoom().getName();
+                            long roomId = owner < 0 ? -1 : db.createRoom(roomName, owner);
+                            if (owner < 0) {
+                                code = roomRefused();
+                            } else if (roomId < 0) {
+                                code = StatusCode.BAD_REQUEST;
+                            } else {
+                                rooms.addRoom(roomId, roomName, owner);
+                                rooms.join(roomId, owner);
+                                subject = roomId;
                             }
-                            logger.info(sb.toString());
-                            message = "Broadcast Successful";
                         }
-                    }
-                    Pack responsePack = null;
-                    //服务器响应
-                    switch (postType) {
-                        //发送普通通知
-                        case typeString -> responsePack = Pack.newBuilder()
-                                .setAct("SR_String").setMessage(GRpcUtil.toByteString(message))
-                                .setSender(serverId).setReceiver(value.getSender())
-                                .build();
-                        //发送在线成员信息数组
-                        case typeRepeated -> {
-                            Pack.Builder responsePackBuilder = Pack.newBuilder();
-                            responsePackBuilder.setAct("SR_UserList").setMessage(GRpcUtil.toByteString(message))
-                                    .setSender(serverId).setReceiver(value.getSender());
-                            for (HashMap.Entry<Long, UserInfo> entry : register.entrySet()) {//遍历register
-                                //填充用户的姓名与公钥
-                                if (entry.getKey().equals(db.getOriginId())
-                                        || (!entry.getValue().isOnline()))
-                                    continue;
-                                UserInfoPack userInfoPack = UserInfoPack.newBuilder()
-                                        .setId(entry.getValue().getId()).setName(entry.getValue().getName()).setPk(entry.getValue().getPk())
-                                        .build();
-                                responsePackBuilder.addUserInfoList(userInfoPack);
+                        //加入/离开聊天室
+                        case ROOM_JOIN, ROOM_LEAVE -> {
+                            long member = roomUser();
+                            long roomId = value.getReceiver();
+                            boolean join = action == Action.ROOM_JOIN;
+                            subject = roomId;
+                            boolean isMember = rooms.isMember(roomId, member);
+                            if (member < 0)
+                                code = roomRefused();
+                            else if (rooms.get(roomId) == null)
+                                code = StatusCode.ROOM_NOT_FOUND;
+                            else if (!join && !isMember)
+                                code = StatusCode.NOT_ROOM_MEMBER;
+                            else if (join == isMember)//已是成员，不重复写入
+                                code = StatusCode.OK;
+                            else if (!db.updateRoomMember(roomId, member, join))
+                                code = StatusCode.BAD_REQUEST;
+                            else {
+                                if (join)
+                                    rooms.join(roomId, member);
+                                else
+                                    rooms.leave(roomId, member);
+                                //通知房间的在线成员，下一条房间消息前更换sender key
+                                fanOut.fanOut(Protocol.roomMembersChanged(roomId, member, join),
+                                        register.onlineOf(rooms.onlineMembers(roomId)), id -> id == member);
                             }
-                            responsePack = responsePackBuilder.build();
                         }
+                        //房间的全部成员，客户端向其分发sender key
+                        case ROOM_MEMBERS -> {
+                            long member = roomUser();
+                            long roomId = value.getReceiver();
+                            long[] members = rooms.members(roomId);
+                            subject = roomId;
+                            if (member < 0)
+                                code = roomRefused();
+                            else if (members == null)
+                                code = StatusCode.ROOM_NOT_FOUND;
+                            else if (!rooms.isMember(roomId, member))
+                                code = StatusCode.NOT_ROOM_MEMBER;
+                            else
+                                responsePack = Protocol.roomMembers(roomId, members, value.getRequestId());
+                        }
+                        //转发房间消息，只遍历房间的在线成员
+                        case ROOM_POST -> {
+                            long sender = roomUser();
+                            long roomId = value.getReceiver();
+                            long[] members = rooms.onlineMembers(roomId);
+                            subject = roomId;
+                            if (sender < 0) {
+                                code = roomRefused();
+                            } else if (members == null) {
+                                code = StatusCode.ROOM_NOT_FOUND;
+                            } else if (!rooms.isMember(roomId, sender)) {
+                                code = StatusCode.NOT_ROOM_MEMBER;
+                            } else {
+                                fanOut.fanOut(Protocol.room(sender, roomId, value.getMessage()), register.onlineOf(members),
+                                        id -> id == sender);
+                            }
+                            auditLog.record(action, code, sender, roomId, value.getMessage().size());
+                        }
+                        default -> code = StatusCode.BAD_REQUEST;
                     }
-                    responseObserver.onNext(responsePack);
+                    //服务器响应
+                    if (responsePack == null)
+                        responsePack = Protocol.result(version, action, value.getSender(), code, subject, value.getRequestId());
+                    outbound.offer(Frame.of(responsePack));
+                    if (loginUser != null)//登录成功后投递离线消息
+                        offlineStore.deliver(loginUser);
                     if (completeFlag)
-                        responseObserver.onCompleted();
+                        outbound.complete();
+                }
+
+                //房间请求的用户：本stream登录的用户（不使用请求中的sender），未登录或集群模式返回-1
+                //集群模式下房间与成员不在节点间同步，其他节点上的成员收不到消息，拒绝房间请求
+                private long roomUser() {
+                    UserInfo user = session;
+                    if (cluster != null || user == null || !user.isOnline() || user.getOutbound() != outbound)//已下线或在其他stream重新登录
+                        return -1;
+                    return user.getId();
+                }
+
+                private StatusCode roomRefused() {
+                    return cluster != null ? StatusCode.BAD_REQUEST : StatusCode.AUTH_FAILED;
                 }
 
                 @Override
                 public void onError(Throwable t) {
-                    for (HashMap.Entry<Long, UserInfo> user : register.entrySet()) {//遍历register
-                        if (user.getKey().equals(db.getOriginId()) || !user.getValue().isOnline())
-                            continue;
-                        if (user.getValue().getStream().equals(responseObserver)) {
-                            logger.warn("User " + user.getKey() + " Disconnected");
-                            user.getValue().logout();//设置离线
-                            //广播用户下线消息
-                            UserInfoPack userInfoPack = UserInfoPack.newBuilder()
-                                    .setId(user.getValue().getId()).setName(user.getValue().getName()).setPk(user.getValue().getPk())
-                                    .build();
-                            Pack loginMsgPack = Pack.newBuilder().setAct("SP_logoutMsg")
-                                    .setSender(serverId).setReceiver(db.getOriginId())
-                                    .setMessage(GRpcUtil.toByteString("logout"))
-                                    .addUserInfoList(userInfoPack)
-                                    .build();
-                            for (HashMap.Entry<Long, UserInfo> entry : register.entrySet()) {//遍历register
-                                if (entry.getKey().equals(db.getOriginId()) || (!entry.getValue().isOnline()))
-                                    continue;
-                                entry.getValue().getStream().onNext(loginMsgPack);//向某个在线用户发送群发消息
-                            }
-                            break;
-                        }
-                    }
+                    outbound.close();
+                    run(serial, () -> logout(outbound, true));
                 }
 
                 @Override
                 public void onCompleted() {
-                    responseObserver.onCompleted();
+                    run(serial, outbound::complete);
                 }
             };
         }
+
+        //在stream的串行执行器上执行（排在未完成的登录之后），INLINE模式直接执行
+        private void run(HandlerExecutor.Stream serial, Runnable task) {
+            if (serial == null)
+                task.run();
+            else
+                serial.execute(task, false);
+        }
+
+        //用户下线，并广播下线消息
+        private void logout(OutboundQueue outbound, boolean disconnected) {
+            PresenceLog.Event logoutEvent = register.offline(outbound);//设置离线
+            if (logoutEvent == null)
+                return;
+            long userId = logoutEvent.getUser().getId();
+            if (disconnected)
+                logger.warn("User " + userId + " Disconnected");
+            else
+                logger.info("User " + userId + " logout");
+            logger.debug("User " + userId + " Outbound Queue: " + outbound);
+            rooms.offline(userId);
+            //广播用户下线消息
+            fanOut.fanOut(Protocol.presence(logoutEvent, db.getOriginId()), register.onlineSnapshot(),
+                    id -> id == db.getOriginId());//向所有在线用户发送群发消息
+            if (cluster != null)
+                cluster.publishOffline(userId);
+        }
     }
 }
@@ -23,6 +23,8 @@ import java.util.Random;
 public class GRpcUtil {
     private final static Logger logger = LoggerFactory.getLogger(GRpcServer.class.getName());
     private static final String chars = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789";
+    //非阻塞的系统熵源，线程安全，只初始化一次
+    private static final SecureRandom saltRandom = new SecureRandom();
 
     //获取当前时间戳
     public static String getTimeStamp() {
@@ -35,6 +37,10 @@ public class GRpcUtil {
                 + "\nFunctions:"
                 + "\n#userlist    - Load online user list."
                 + "\n#setreceiver - Set communication receiver."
+                + "\n#createroom  - Create a chat room and join it."
+                + "\n#joinroom    - Join a chat room."
+                + "\n#leaveroom   - Leave a chat room."
+                + "\n#setroom     - Send following messages to a chat room."
                 + "\n#logout      - Logging out of login status."
                 + "\n" + "-".repeat(10) + "\n" + "#"
         );
@@ -68,8 +74,19 @@ public class GRpcUtil {
         return sha256;
     }
 
+    //公钥指纹：SHA256的前8字节
+    public static ByteString fingerprint(ByteString pk) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(pk.toByteArray());
+            return ByteString.copyFrom(hash, 0, 8);
+        } catch (NoSuchAlgorithmException e) {
+            logger.warn("Run SHA256 Error: " + e);
+            return ByteString.EMPTY;
+        }
+    }
+
     //字节数组转十六进制字符串
-    private static String bytesToHex(byte[] hash) {
+    static String bytesToHex(byte[] hash) {
         if (hash != null) {
             StringBuilder hexString = new StringBuilder(2 * hash.length);
             for (byte b : hash) {
@@ -112,16 +129,11 @@ public class GRpcUtil {
         return Files.readAllBytes(new File(filePath).toPath());
     }
 
-    //获取盐
+    //获取盐（32字节随机数的十六进制字符串）
     public static String getSalt() {
-        SecureRandom random;
-        try {
-            random = SecureRandom.getInstance("SHA1PRNG");
-        } catch (NoSuchAlgorithmException e) {
-            random = new SecureRandom();
-        }
-        random.setSeed(SecureRandom.getSeed(32));
-        return SHA256(getRandomString(32).getBytes(StandardCharsets.UTF_8));
+        byte[] salt = new byte[32];
+        saltRandom.nextBytes(salt);
+        return bytesToHex(salt);
     }
 
     //加盐哈希
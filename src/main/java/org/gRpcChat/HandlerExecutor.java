@@ -0,0 +1,175 @@
+package org.gRpcChat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+//服务器消息处理的执行方式：会阻塞的请求（登录/注册访问数据库）移出gRPC回调线程，避免慢速磁盘拖慢其他消息的转发
+//每个stream的消息仍按到达顺序依次处理：stream空闲时非阻塞请求直接在回调线程上执行，否则排在阻塞请求之后
+public class HandlerExecutor {
+    private final static Logger logger = LoggerFactory.getLogger("Server");
+    private final Mode mode;
+    private final ExecutorService executor;
+    private final ExecutorService detached;//INLINE模式下由其他线程提交的任务，在单独的线程上依次执行
+    //统计
+    private final LongAdder offloaded = new LongAdder();
+    private final LongAdder inline = new LongAdder();
+
+    public enum Mode {
+        INLINE,     //在gRPC回调线程上处理（原有方式）
+        VIRTUAL,    //每个stream的阻塞处理在虚拟线程上执行（Java 21+，否则退回POOL）
+        POOL;       //阻塞处理在有界线程池上执行
+
+        public static Mode parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    public HandlerExecutor(Mode mode, int poolThreads) {
+        ExecutorService executor = null;
+        if (mode == Mode.VIRTUAL) {
+            executor = newVirtualThreadExecutor();
+            if (executor == null) {
+                logger.warn("Virtual Threads Unavailable on Java " + Runtime.version().feature() + ", Using Pool");
+                mode = Mode.POOL;
+            }
+        }
+        if (mode == Mode.POOL) {
+            AtomicInteger threadIndex = new AtomicInteger();
+            executor = new ThreadPoolExecutor(poolThreads, poolThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                    r -> {
+                        Thread thread = new Thread(r, "handler-" + threadIndex.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        this.mode = mode;
+        this.executor = executor;
+        this.detached = executor != null ? null : Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "handler-detached");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //通过反射创建，源代码保持Java 17可编译
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    //新stream的串行执行器，INLINE模式返回null（直接在回调线程上处理）
+    public Stream newStream() {
+        return executor == null ? null : new Stream();
+    }
+
+    //由stream的gRPC回调以外的线程提交的任务（如发送队列溢出后的下线，溢出可能发生在群发条带或其他stream的线程上）
+    //总是在执行器上执行，不占用提交线程；stream为null（INLINE模式）时在单独的线程上执行
+    public void executeDetached(Stream stream, Runnable task) {
+        if (stream != null) {
+            stream.execute(task, true);
+            return;
+        }
+        offloaded.increment();
+        detached.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Handler Error: " + e);
+            }
+        });
+    }
+
+    public void shutdown() {
+        if (executor != null)
+            executor.shutdown();
+        if (detached != null)
+            detached.shutdown();
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public long getOffloaded() {
+        return offloaded.sum();
+    }
+
+    public long getInline() {
+        return inline.sum();
+    }
+
+    @Override
+    public String toString() {
+        return mode + "[inline=" + inline.sum() + ", offloaded=" + offloaded.sum() + "]";
+    }
+
+    //单个stream的串行执行器：同一时刻最多一个任务在执行，按提交顺序执行
+    //stream自己的gRPC回调是串行的，其他线程（发送队列溢出后的下线）也会提交任务，只能以blocking提交（见executeDetached）
+    public class Stream {
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<>();
+        private boolean running = false;//有任务在执行（包括在调用线程上直接执行的任务）
+
+        //blocking为true的任务总是移到执行器上；其他任务在stream空闲时直接在调用线程上执行，否则排在队列之后
+        public void execute(Runnable task, boolean blocking) {
+            synchronized (this) {
+                if (running) {
+                    queue.add(task);
+                    offloaded.increment();
+                    return;
+                }
+                running = true;
+                if (blocking) {
+                    queue.add(task);
+                    offloaded.increment();
+                    task = null;
+                }
+            }
+            if (task == null) {
+                executor.execute(this::drain);
+                return;
+            }
+            inline.increment();
+            try {
+                task.run();
+            } finally {//执行期间其他线程提交的任务移到执行器上
+                boolean pending;
+                synchronized (this) {
+                    pending = !queue.isEmpty();
+                    running = pending;
+                }
+                if (pending)
+                    executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    task = queue.poll();
+                    if (task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    logger.error("Handler Error: " + e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package org.gRpcChat;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//用户分片的一致性哈希环：每个节点在环上放置若干虚拟节点，用户id顺时针找到的第一个虚拟节点所属的节点为其所属节点
+//加入或移除一个节点时只有约1/N的用户改变所属节点
+public class HashRing {
+    public final static int DEFAULT_VNODES = 160;
+    private final Map<Integer, String> addresses;//节点id -> 客户端连接地址(host:port)
+    private final int vnodes;
+    //按位置排序的虚拟节点
+    private final long[] points;
+    private final int[] owners;
+
+    public HashRing(Map<Integer, String> addresses, int vnodes) {
+        this.addresses = new LinkedHashMap<>(addresses);
+        this.vnodes = vnodes;
+        int size = addresses.size() * vnodes;
+        long[] positions = new long[size];
+        int[] nodes = new int[size];
+        Integer[] order = new Integer[size];
+        int index = 0;
+        for (int node : addresses.keySet()) {
+            for (int v = 0; v < vnodes; v++) {
+                positions[index] = mix(((long) node << 32) | v);
+                nodes[index] = node;
+                order[index] = index;
+                index++;
+            }
+        }
+        //按位置排序，位置相同时按节点id，结果与节点的配置顺序无关
+        Arrays.sort(order, (a, b) -> {
+            int c = Long.compareUnsigned(positions[a], positions[b]);
+            return c != 0 ? c : Integer.compare(nodes[a], nodes[b]);
+        });
+        this.points = new long[size];
+        this.owners = new int[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = positions[order[i]];
+            owners[i] = nodes[order[i]];
+        }
+    }
+
+    public HashRing(Map<Integer, String> addresses) {
+        this(addresses, DEFAULT_VNODES);
+    }
+
+    //解析"1=host:port,2=host:port"，格式错误时返回null
+    public static HashRing parse(String spec, int vnodes) {
+        Map<Integer, String> addresses = new LinkedHashMap<>();
+        try {
+            for (String entry : spec.split(",")) {
+                String[] parts = entry.trim().split("=", 2);
+                if (parts.length != 2 || parts[1].isEmpty())
+                    return null;
+                int node = Integer.parseInt(parts[0].trim());
+                if (node <= 0 || addresses.put(node, parts[1].trim()) != null)
+                    return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return addresses.isEmpty() ? null : new HashRing(addresses, vnodes);
+    }
+
+    //用户所属的节点id
+    public int nodeFor(long userId) {
+        long hash = mix(userId);
+        int low = 0;
+        int high = points.length;
+        while (low < high) {//第一个位置不小于hash的虚拟节点
+            int mid = (low + high) >>> 1;
+            if (Long.compareUnsigned(points[mid], hash) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    //节点的客户端连接地址
+    public String address(int node) {
+        return addresses.get(node);
+    }
+
+    public Map<Integer, String> getAddresses() {
+        return addresses;
+    }
+
+    public int getVnodes() {
+        return vnodes;
+    }
+
+    //加入一个节点后的新环
+    public HashRing with(int node, String address) {
+        Map<Integer, String> added = new LinkedHashMap<>(addresses);
+        added.put(node, address);
+        return new HashRing(added, vnodes);
+    }
+
+    //SplitMix64的混合函数：连续的id也均匀分布在环上
+    private static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        return addresses + ", vnodes=" + vnodes;
+    }
+}
@@ -0,0 +1,116 @@
+package org.gRpcChat;
+
+import com.google.crypto.tink.KeysetHandle;
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+
+//客户端公钥缓存：id -> 公钥，保存在身份认证文件旁；指纹一致时无需重新下载与解析公钥
+public class KeyCache {
+    private final static Logger logger = LoggerFactory.getLogger(GRpcServer.class.getName());
+    private final String path;
+    private final HashMap<Long, Entry> keys = new HashMap<>();
+    private boolean dirty = false;
+    //统计
+    private long hits = 0;
+    private long misses = 0;
+
+    //path为null时只缓存在内存中
+    public KeyCache(String path) {
+        this.path = path;
+    }
+
+    //身份认证文件对应的缓存文件：xxx.key -> xxx.peers
+    public static String pathOf(String keyFilePath) {
+        return keyFilePath.replaceAll("\\.key$", "") + ".peers";
+    }
+
+    //读取缓存文件，文件不存在时为空缓存
+    public synchronized void load() {
+        if (path == null || !new File(path).exists())
+            return;
+        try {
+            KeyCacheFile file = KeyCacheFile.parseFrom(GRpcUtil.readBytesFromFile(path));
+            for (KnownKey key : file.getKeysList())
+                keys.put(key.getId(), new Entry(key.getPk()));
+            logger.info(" - Key Cache \"" + path + "\" Loaded: " + keys.size() + " keys");
+        } catch (IOException e) {
+            logger.warn("Load Key Cache \"" + path + "\" Failed: " + e.getMessage());
+        }
+    }
+
+    //有新公钥时写回缓存文件
+    public synchronized void save() {
+        if (path == null || !dirty)
+            return;
+        KeyCacheFile.Builder file = KeyCacheFile.newBuilder();
+        keys.forEach((id, entry) -> file.addKeys(KnownKey.newBuilder().setId(id).setPk(entry.pk)));
+        try {
+            GRpcUtil.writeBytesToFile(file.build().toByteArray(), path);
+            dirty = false;
+        } catch (IOException e) {
+            logger.warn("Save Key Cache \"" + path + "\" Failed: " + e.getMessage());
+        }
+    }
+
+    //指纹一致时返回缓存的公钥，否则返回null（需要获取）
+    public synchronized KeysetHandle get(long id, ByteString fingerprint) {
+        Entry entry = keys.get(id);
+        if (entry == null || !entry.fingerprint.equals(fingerprint)) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.handle();
+    }
+
+    //保存公钥并返回解析后的KeysetHandle，解析失败返回null
+    public synchronized KeysetHandle put(long id, ByteString pk) {
+        Entry entry = keys.get(id);
+        if (entry == null || !entry.pk.equals(pk)) {
+            entry = new Entry(pk);
+            keys.put(id, entry);
+            dirty = true;
+        }
+        return entry.handle();
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    private static class Entry {
+        final ByteString pk;
+        final ByteString fingerprint;
+        KeysetHandle handle = null;//首次使用时解析
+
+        Entry(ByteString pk) {
+            this.pk = pk;
+            this.fingerprint = GRpcUtil.fingerprint(pk);
+        }
+
+        KeysetHandle handle() {
+            if (handle == null) {
+                try {
+                    handle = GRpcUtil.getKeyKeysetHandle(pk);
+                } catch (GeneralSecurityException | IOException e) {
+                    logger.error("Load Public Key Error: " + e);
+                }
+            }
+            return handle;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.gRpcChat;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+//对数线性延迟直方图（微秒）：每个2的幂区间分为32档，相对误差不超过约3%；线程安全
+public class LatencyHistogram {
+    private final static int subBits = 5;
+    private final static int subCount = 1 << subBits;
+    private final static int maxExponent = 40;//约12天
+    private final AtomicLongArray counts = new AtomicLongArray((maxExponent - subBits + 2) * subCount);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        record(nanos / 1000);
+    }
+
+    public void record(long micros) {
+        long value = Math.max(0, micros);
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return total.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public double getMean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    //分位数（0~1）所在档的上界，不超过最大值
+    public long percentile(double quantile) {
+        long count = total.sum();
+        if (count == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    //不超过各上界（升序）的记录数，最后一个元素为总数；各元素来自同一次遍历，保证单调
+    public long[] cumulative(long[] bounds) {
+        long[] result = new long[bounds.length + 1];
+        int next = 0;
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long bucket = counts.get(i);
+            if (bucket == 0)
+                continue;
+            long upper = upperBoundOf(i);
+            while (next < bounds.length && upper > bounds[next])
+                result[next++] = seen;
+            seen += bucket;
+        }
+        while (next < bounds.length)
+            result[next++] = seen;
+        result[bounds.length] = seen;
+        return result;
+    }
+
+    //写出非空的档：上界(us) 数量 累计比例
+    public void writeTo(PrintWriter writer, String name) {
+        long count = total.sum();
+        writer.println("# op=" + name + " " + this);
+        writer.println("# upper_us count cumulative");
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            long bucket = counts.get(i);
+            if (bucket == 0)
+                continue;
+            seen += bucket;
+            writer.printf("%d %d %.6f%n", upperBoundOf(i), bucket, (double) seen / count);
+        }
+        writer.println();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + Math.round(getMean()) + ", p50=" + percentile(0.5)
+                + ", p99=" + percentile(0.99) + ", p999=" + percentile(0.999) + ", max=" + getMax();
+    }
+
+    private static int indexOf(long value) {
+        if (value < subCount)
+            return (int) value;
+        value = Math.min(value, (1L << (maxExponent + 1)) - 1);
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) ((value >>> (exponent - subBits)) & (subCount - 1));
+        return (exponent - subBits + 1) * subCount + sub;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < subCount)
+            return index;
+        int exponent = index / subCount + subBits - 1;
+        int sub = index % subCount;
+        return ((long) (subCount + sub + 1) << (exponent - subBits)) - 1;
+    }
+}
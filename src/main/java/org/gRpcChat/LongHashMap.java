@@ -0,0 +1,181 @@
+package org.gRpcChat;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+//以long为键的开放寻址哈希表，避免Long装箱（非线程安全，由调用方加锁）
+public class LongHashMap<V> {
+    private static final long EMPTY = Long.MIN_VALUE;
+    private long[] keys;
+    private Object[] values;
+    private int size = 0;
+    private int mask;
+    private int resizeAt;
+
+    public LongHashMap() {
+        this(16);
+    }
+
+    public LongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity / 4 * 3;
+    }
+
+    //混合哈希，打散连续id
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private int indexOf(long key) {
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key)
+                return i;
+            if (k == EMPTY)
+                return -1;
+            i = (i + 1) & mask;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        checkKey(key);
+        int i = indexOf(key);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    public boolean containsKey(long key) {
+        checkKey(key);
+        return indexOf(key) >= 0;
+    }
+
+    //插入或替换，返回旧值
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        checkKey(key);
+        int i = hash(key) & mask;
+        while (true) {
+            long k = keys[i];
+            if (k == key) {
+                V old = (V) values[i];
+                values[i] = value;
+                return old;
+            }
+            if (k == EMPTY)
+                break;
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > resizeAt)
+            rehash(keys.length << 1);
+        return null;
+    }
+
+    //删除，返回旧值
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        checkKey(key);
+        int i = indexOf(key);
+        if (i < 0)
+            return null;
+        V old = (V) values[i];
+        //线性探测的后移删除，保持探测链连续
+        int gap = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            long k = keys[j];
+            if (k == EMPTY)
+                break;
+            int home = hash(k) & mask;
+            //home不在(gap, j]之间时，可将j移到gap
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = k;
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = EMPTY;
+        values[gap] = null;
+        size--;
+        return old;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    //遍历所有值
+    @SuppressWarnings("unchecked")
+    public void forEachValue(Consumer<? super V> action) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY)
+                action.accept((V) values[i]);
+        }
+    }
+
+    //遍历所有键
+    public void forEachKey(LongConsumer action) {
+        for (long k : keys) {
+            if (k != EMPTY)
+                action.accept(k);
+        }
+    }
+
+    //将所有值复制到数组
+    @SuppressWarnings("unchecked")
+    public V[] valuesToArray(V[] array) {
+        V[] result = array.length >= size ? array : Arrays.copyOf(array, size);
+        int n = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY)
+                result[n++] = (V) values[i];
+        }
+        if (result.length > n)
+            result[n] = null;
+        return result;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            long k = oldKeys[i];
+            if (k == EMPTY)
+                continue;
+            int j = hash(k) & mask;
+            while (keys[j] != EMPTY)
+                j = (j + 1) & mask;
+            keys[j] = k;
+            values[j] = oldValues[i];
+        }
+    }
+
+    private static void checkKey(long key) {
+        if (key == EMPTY)
+            throw new IllegalArgumentException("Key " + key + " is reserved");
+    }
+}
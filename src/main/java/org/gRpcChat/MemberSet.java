@@ -0,0 +1,176 @@
+package org.gRpcChat;
+
+import java.util.Arrays;
+import java.util.function.LongConsumer;
+
+//紧凑的id集合（roaring bitmap的简化实现）：按id的高位分块，每块保存低16位
+//块内元素不超过4096个时为有序的char数组（每个2字节），超过后转为65536位的位图（8KB）
+//用户id连续分配，大房间的成员集中在少数几个块中，每个成员约占1~2字节；非线程安全
+public class MemberSet {
+    private final static int arrayMax = 4096;//超过时转为位图
+    private long[] keys = new long[0];//块的高位，有序
+    private Object[] blocks = new Object[0];//char[]（有序数组，前sizes[i]个有效）或long[1024]（位图）
+    private int[] sizes = new int[0];
+    private int blockCount = 0;
+    private int size = 0;
+
+    //加入id，已存在时返回false
+    public boolean add(long id) {
+        long key = id >>> 16;
+        char low = (char) id;
+        int index = find(key);
+        if (index < 0) {
+            index = -index - 1;
+            insertBlock(index, key);
+        }
+        Object block = blocks[index];
+        if (block instanceof long[] bitmap) {
+            long mask = 1L << low;
+            if ((bitmap[low >>> 6] & mask) != 0)
+                return false;
+            bitmap[low >>> 6] |= mask;
+        } else {
+            char[] array = (char[]) block;
+            int count = sizes[index];
+            int position = Arrays.binarySearch(array, 0, count, low);
+            if (position >= 0)
+                return false;
+            position = -position - 1;
+            if (count == arrayMax) {//转为位图
+                long[] bitmap = new long[1024];
+                for (int i = 0; i < count; i++)
+                    bitmap[array[i] >>> 6] |= 1L << array[i];
+                bitmap[low >>> 6] |= 1L << low;
+                blocks[index] = bitmap;
+            } else {
+                if (count == array.length)
+                    array = Arrays.copyOf(array, Math.min(arrayMax, Math.max(4, count * 2)));
+                System.arraycopy(array, position, array, position + 1, count - position);
+                array[position] = low;
+                blocks[index] = array;
+            }
+        }
+        sizes[index]++;
+        size++;
+        return true;
+    }
+
+    //移除id，不存在时返回false
+    public boolean remove(long id) {
+        int index = find(id >>> 16);
+        if (index < 0)
+            return false;
+        char low = (char) id;
+        Object block = blocks[index];
+        if (block instanceof long[] bitmap) {
+            long mask = 1L << low;
+            if ((bitmap[low >>> 6] & mask) == 0)
+                return false;
+            bitmap[low >>> 6] &= ~mask;
+            if (sizes[index] - 1 == arrayMax) {//转回数组
+                char[] array = new char[arrayMax];
+                int count = 0;
+                for (int word = 0; word < bitmap.length; word++)
+                    for (long bits = bitmap[word]; bits != 0; bits &= bits - 1)
+                        array[count++] = (char) ((word << 6) + Long.numberOfTrailingZeros(bits));
+                blocks[index] = array;
+            }
+        } else {
+            char[] array = (char[]) block;
+            int count = sizes[index];
+            int position = Arrays.binarySearch(array, 0, count, low);
+            if (position < 0)
+                return false;
+            System.arraycopy(array, position + 1, array, position, count - position - 1);
+        }
+        size--;
+        if (--sizes[index] == 0)
+            removeBlock(index);
+        return true;
+    }
+
+    public boolean contains(long id) {
+        int index = find(id >>> 16);
+        if (index < 0)
+            return false;
+        char low = (char) id;
+        if (blocks[index] instanceof long[] bitmap)
+            return (bitmap[low >>> 6] & (1L << low)) != 0;
+        return Arrays.binarySearch((char[]) blocks[index], 0, sizes[index], low) >= 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        keys = new long[0];
+        blocks = new Object[0];
+        sizes = new int[0];
+        blockCount = 0;
+        size = 0;
+    }
+
+    //按从小到大的顺序遍历
+    public void forEach(LongConsumer action) {
+        for (int i = 0; i < blockCount; i++) {
+            long high = keys[i] << 16;
+            if (blocks[i] instanceof long[] bitmap) {
+                for (int word = 0; word < bitmap.length; word++)
+                    for (long bits = bitmap[word]; bits != 0; bits &= bits - 1)
+                        action.accept(high | ((long) word << 6) + Long.numberOfTrailingZeros(bits));
+            } else {
+                char[] array = (char[]) blocks[i];
+                for (int j = 0; j < sizes[i]; j++)
+                    action.accept(high | array[j]);
+            }
+        }
+    }
+
+    public long[] toArray() {
+        long[] ids = new long[size];
+        int[] count = {0};
+        forEach(id -> ids[count[0]++] = id);
+        return ids;
+    }
+
+    //块占用的字节数（近似，不含对象头）
+    public long memoryBytes() {
+        long bytes = keys.length * 8L + blocks.length * 4L + sizes.length * 4L;
+        for (int i = 0; i < blockCount; i++)
+            bytes += blocks[i] instanceof long[] bitmap ? bitmap.length * 8L : ((char[]) blocks[i]).length * 2L;
+        return bytes;
+    }
+
+    private int find(long key) {
+        return Arrays.binarySearch(keys, 0, blockCount, key);
+    }
+
+    private void insertBlock(int index, long key) {
+        if (blockCount == keys.length) {
+            int capacity = Math.max(2, blockCount * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            blocks = Arrays.copyOf(blocks, capacity);
+            sizes = Arrays.copyOf(sizes, capacity);
+        }
+        System.arraycopy(keys, index, keys, index + 1, blockCount - index);
+        System.arraycopy(blocks, index, blocks, index + 1, blockCount - index);
+        System.arraycopy(sizes, index, sizes, index + 1, blockCount - index);
+        keys[index] = key;
+        blocks[index] = new char[4];
+        sizes[index] = 0;
+        blockCount++;
+    }
+
+    private void removeBlock(int index) {
+        System.arraycopy(keys, index + 1, keys, index, blockCount - index - 1);
+        System.arraycopy(blocks, index + 1, blocks, index, blockCount - index - 1);
+        System.arraycopy(sizes, index + 1, sizes, index, blockCount - index - 1);
+        blockCount--;
+        blocks[blockCount] = null;
+    }
+}
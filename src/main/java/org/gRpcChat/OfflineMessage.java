@@ -0,0 +1,40 @@
+package org.gRpcChat;
+
+import com.google.protobuf.ByteString;
+
+//离线消息（收件人不在线时暂存的密文）
+public class OfflineMessage {
+    private final long seq;
+    private final long receiver;
+    private final long sender;
+    private final ByteString message;
+    private final long createDate;
+
+    public OfflineMessage(long seq, long receiver, long sender, ByteString message, long createDate) {
+        this.seq = seq;
+        this.receiver = receiver;
+        this.sender = sender;
+        this.message = message;
+        this.createDate = createDate;
+    }
+
+    public long getSeq() {
+        return seq;
+    }
+
+    public long getReceiver() {
+        return receiver;
+    }
+
+    public long getSender() {
+        return sender;
+    }
+
+    public ByteString getMessage() {
+        return message;
+    }
+
+    public long getCreateDate() {
+        return createDate;
+    }
+}
@@ -0,0 +1,103 @@
+package org.gRpcChat;
+
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//离线消息存储转发：写入在后台线程批量提交，用户上线后分页投递
+public class OfflineStore {
+    private final static Logger logger = LoggerFactory.getLogger("Server");
+    private final ChatDatabase db;
+    private final long ttlMillis;
+    private final int quota;
+    private final int pageSize;
+    private final int batchSize = 256;
+    private final long lingerMillis = 5;
+    private final ConcurrentLinkedQueue<OfflineMessage> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    //所有数据库访问都在这一个线程上执行，保证写入与投递的顺序
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "offline-store");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public OfflineStore(ChatDatabase db, long ttlMillis, int quota, int pageSize) {
+        this.db = db;
+        this.ttlMillis = ttlMillis;
+        this.quota = quota;
+        this.pageSize = pageSize;
+        db.createOfflineTable();
+        //定期清理过期消息
+        executor.scheduleWithFixedDelay(this::expire, 1, 60, TimeUnit.SECONDS);
+    }
+
+    //暂存发给离线用户的消息（不阻塞请求线程）
+    public void store(long sender, long receiver, ByteString message) {
+        pending.add(new OfflineMessage(0, receiver, sender, message, System.currentTimeMillis()));
+        if (flushScheduled.compareAndSet(false, true))
+            executor.schedule(this::flush, lingerMillis, TimeUnit.MILLISECONDS);
+    }
+
+    //用户上线，开始分页投递离线消息
+    public void deliver(UserInfo userInfo) {
+        OutboundQueue outbound = userInfo.getOutbound();
+        if (outbound != null)
+            executor.execute(() -> {
+                flush();//先写入尚未提交的消息，保证顺序
+                deliverPage(userInfo, outbound, 0);
+            });
+    }
+
+    private void flush() {
+        flushScheduled.set(false);
+        List<OfflineMessage> batch = new ArrayList<>(batchSize);
+        OfflineMessage message;
+        while ((message = pending.poll()) != null) {
+            batch.add(message);
+            if (batch.size() >= batchSize) {
+                db.insertOfflineMessages(batch, quota);
+                batch.clear();
+            }
+        }
+        if (!batch.isEmpty())
+            db.insertOfflineMessages(batch, quota);
+    }
+
+    //投递一页，待发送队列清空后再投递下一页，避免冲垮新连接
+    private void deliverPage(UserInfo userInfo, OutboundQueue outbound, long afterSeq) {
+        if (userInfo.getOutbound() != outbound)//已下线或重新登录
+            return;
+        List<OfflineMessage> page = db.selectOfflineMessages(userInfo.getId(), afterSeq,
+                System.currentTimeMillis() - ttlMillis, pageSize);
+        if (page.isEmpty())
+            return;
+        for (OfflineMessage message : page)
+            outbound.offer(Protocol.forward(message.getSender(), message.getReceiver(), message.getMessage()));
+        long lastSeq = page.get(page.size() - 1).getSeq();
+        logger.info("Deliver " + page.size() + " Offline Messages to User " + userInfo.getId());
+        outbound.whenDrained(() -> executor.execute(() -> {
+            db.deleteOfflineMessages(userInfo.getId(), lastSeq);
+            if (page.size() == pageSize)
+                deliverPage(userInfo, outbound, lastSeq);
+        }));
+    }
+
+    private void expire() {
+        int count = db.deleteExpiredOfflineMessages(System.currentTimeMillis() - ttlMillis);
+        if (count > 0)
+            logger.info("Expire " + count + " Offline Messages");
+    }
+
+    public void shutdown() {
+        if (executor.isShutdown())
+            return;
+        executor.execute(this::flush);
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,107 @@
+package org.gRpcChat;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+//按键分条的工作线程：同一键的任务在同一线程上按提交顺序执行；队列已满时阻塞提交方形成背压
+//可由多个客户端共享（见ClientHub）
+//任务中不能再向同一执行器提交任务：队列已满时工作线程会阻塞在自己的队列上
+public class OrderedExecutor {
+    private final static Logger logger = LoggerFactory.getLogger(GRpcServer.class.getName());
+    private final Stripe[] stripes;
+
+    public OrderedExecutor(int threads, int queueSize, String name) {
+        this.stripes = new Stripe[Math.max(1, threads)];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(queueSize, name + "-" + i);
+            stripes[i].start();
+        }
+    }
+
+    //提交任务，返回false表示等待时被中断，任务未提交
+    public boolean execute(long key, Runnable task) {
+        return executeOn(stripeOf(key), task);
+    }
+
+    //键所在的条带
+    public int stripeOf(long key) {
+        return (int) ((key ^ (key >>> 32)) & 0x7fffffff) % stripes.length;
+    }
+
+    //提交到指定条带（0 ~ getThreads()-1），用于调用方已按stripeOf分好组的批量任务
+    public boolean executeOn(int index, Runnable task) {
+        Stripe stripe = stripes[index];
+        try {
+            stripe.queue.put(task);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    //等待队列中的任务执行完毕后停止工作线程
+    public void shutdown() {
+        for (Stripe stripe : stripes)
+            stripe.shutdown();
+        for (Stripe stripe : stripes) {
+            try {
+                stripe.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    //等待执行的任务数
+    public int pending() {
+        int pending = 0;
+        for (Stripe stripe : stripes)
+            pending += stripe.queue.size();
+        return pending;
+    }
+
+    public int getThreads() {
+        return stripes.length;
+    }
+
+    //单线程工作队列
+    private static class Stripe extends Thread {
+        private final static Runnable POISON = () -> {
+        };
+        private final ArrayBlockingQueue<Runnable> queue;
+
+        Stripe(int queueSize, String name) {
+            super(name);
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                Runnable task;
+                while ((task = queue.take()) != POISON) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {//单个任务失败不影响之后的任务
+                        logger.error(getName() + " Task Error: " + e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        void shutdown() {
+            try {
+                queue.put(POISON);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
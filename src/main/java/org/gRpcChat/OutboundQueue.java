@@ -0,0 +1,306 @@
+package org.gRpcChat;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.util.ArrayDeque;
+
+//每个会话的有界发送队列：仅在stream可写(isReady)时发送，其余消息排队，由OnReadyHandler继续发送
+public class OutboundQueue {
+    private final static Logger logger = LoggerFactory.getLogger("Server");
+    private final static long maxSpillBytes = 64L << 20;//每个会话的溢出文件上限，超出后断开连接
+
+    //队列溢出策略
+    public enum OverflowPolicy {
+        DROP_OLDEST,    //丢弃最旧的消息
+        DISCONNECT,     //断开慢速客户端
+        SPILL_TO_DISK;  //溢出部分写入磁盘
+
+        public static OverflowPolicy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final ServerCallStreamObserver<Frame> stream;
+    private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final File spillDir;//溢出文件目录，仅SPILL_TO_DISK使用
+    private volatile int version = Protocol.V1;
+    private boolean compressed = false;//推送使用压缩，只压缩较大的消息
+    private Runnable onDisconnect = null;
+    private Runnable onDrained = null;
+    private boolean closed = false;
+    private boolean completing = false;
+    //磁盘溢出
+    private File spillFile = null;
+    private DataOutputStream spillOut = null;
+    private DataInputStream spillIn = null;
+    private int spillPending = 0;
+    private long spillBytes = 0;//溢出文件已写入的字节数（读回的部分在文件删除前仍占用磁盘）
+    //统计
+    private int maxDepth = 0;
+    private long sentCount = 0;
+    private long droppedCount = 0;
+    private long spilledCount = 0;
+
+    public OutboundQueue(ServerCallStreamObserver<Frame> stream, int capacity, OverflowPolicy policy, File spillDir) {
+        this.stream = stream;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.spillDir = spillDir;
+        //必须在服务方法返回前注册
+        stream.setOnReadyHandler(this::drain);
+    }
+
+    //设置因溢出而断开连接时的回调（在锁外执行）
+    public void setOnDisconnect(Runnable onDisconnect) {
+        this.onDisconnect = onDisconnect;
+    }
+
+    //设置会话协商的协议版本，之后的消息按该版本编码
+    public void setVersion(int version) {
+        this.version = version;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    //设置推送使用的压缩算法（需已在CompressorRegistry中注册），只能在发送第一条消息前设置，否则返回false
+    public synchronized boolean setCompression(String compression) {
+        if (closed || sentCount > 0 || !queue.isEmpty())
+            return false;
+        try {
+            stream.setCompression(compression);
+            compressed = true;
+            return true;
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            logger.warn("Set Compression \"" + compression + "\" Failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    //加入发送队列，连接已关闭或消息被拒绝时返回false
+    public boolean offer(Frame frame) {
+        frame = frame.forVersion(version);
+        boolean disconnect = false;
+        synchronized (this) {
+            if (closed || completing)
+                return false;
+            //快速路径：无积压且可写时直接发送
+            if (queue.isEmpty() && spillPending == 0 && stream.isReady()) {
+                send(frame);
+                return true;
+            }
+            if (spillPending > 0) {//已有溢出，保持顺序
+                disconnect = !spill(frame);
+            } else if (queue.size() >= capacity) {
+                switch (policy) {
+                    case DROP_OLDEST -> {
+                        queue.poll();
+                        droppedCount++;
+                        queue.add(frame);
+                    }
+                    case DISCONNECT -> disconnect = true;
+                    case SPILL_TO_DISK -> disconnect = !spill(frame);
+                }
+            } else {
+                queue.add(frame);
+            }
+            if (queue.size() > maxDepth)
+                maxDepth = queue.size();
+            if (disconnect) {//丢弃积压与本条消息，断开慢速客户端
+                droppedCount += queue.size() + spillPending + 1;
+                queue.clear();
+                spillPending = 0;
+                closeSpill();
+                closed = true;
+                stream.onError(Status.RESOURCE_EXHAUSTED
+                        .withDescription("Outbound queue overflow").asRuntimeException());
+            } else {
+                drain();
+            }
+        }
+        if (disconnect) {
+            logger.warn("Outbound Queue Overflow, Disconnect: " + this);
+            if (onDisconnect != null)
+                onDisconnect.run();
+            return false;
+        }
+        return true;
+    }
+
+    //发送积压消息，直到stream不可写
+    public synchronized void drain() {
+        if (closed)
+            return;
+        while (stream.isReady()) {
+            if (queue.isEmpty() && spillPending > 0)
+                unspill();
+            Frame frame = queue.poll();
+            if (frame == null)
+                break;
+            send(frame);
+            if (closed)//发送失败，连接已关闭
+                return;
+        }
+        if (queue.isEmpty() && spillPending == 0) {
+            if (onDrained != null) {
+                Runnable callback = onDrained;
+                onDrained = null;
+                callback.run();
+            }
+            if (completing) {
+                closed = true;
+                stream.onCompleted();
+            }
+        }
+    }
+
+    //积压全部发出后执行一次回调（回调应尽快返回），连接关闭则不再执行
+    public synchronized void whenDrained(Runnable callback) {
+        if (closed)
+            return;
+        onDrained = callback;
+        drain();
+    }
+
+    //积压消息发送完毕后结束stream
+    public synchronized void complete() {
+        if (closed || completing)
+            return;
+        completing = true;
+        drain();
+    }
+
+    //连接已断开，丢弃积压
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        droppedCount += queue.size() + spillPending;
+        queue.clear();
+        spillPending = 0;
+        onDrained = null;
+        closeSpill();
+    }
+
+    private void send(Frame frame) {
+        try {
+            if (compressed)
+                stream.setMessageCompression(frame.size() >= Protocol.compressMinBytes);
+            stream.onNext(frame);
+            sentCount++;
+        } catch (RuntimeException e) {//对端已取消
+            logger.warn("Outbound Send Error: " + e);
+            droppedCount++;
+            close();
+        }
+    }
+
+    //写入磁盘溢出文件，超出文件上限时返回false（由调用方断开连接）
+    private boolean spill(Frame frame) {
+        if (spillBytes + 4 + frame.size() > maxSpillBytes)
+            return false;
+        try {
+            if (spillOut == null) {
+                if (!spillDir.exists())
+                    spillDir.mkdirs();
+                spillFile = File.createTempFile("outbound-", ".spill", spillDir);
+                spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+            }
+            spillOut.writeInt(frame.size());
+            spillOut.write(frame.bytes());
+            spillBytes += 4 + frame.size();
+            spillPending++;
+            spilledCount++;
+        } catch (IOException e) {
+            logger.error("Outbound Spill Error: " + e);
+            droppedCount++;
+        }
+        return true;
+    }
+
+    //清理上次运行遗留的溢出文件（进程退出时未关闭的会话不会删除自己的文件）
+    public static void clearSpillDir(File spillDir) {
+        File[] files = spillDir.listFiles((dir, name) -> name.startsWith("outbound-") && name.endsWith(".spill"));
+        if (files == null)
+            return;
+        for (File file : files)
+            if (!file.delete())
+                logger.warn("Delete Spill File " + file + " Failed");
+        if (files.length > 0)
+            logger.info("Cleared " + files.length + " Spill Files in " + spillDir);
+    }
+
+    //从溢出文件读回一批消息
+    private void unspill() {
+        try {
+            if (spillIn == null) {
+                spillOut.flush();
+                spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+            }
+            spillOut.flush();
+            while (spillPending > 0 && queue.size() < capacity) {
+                byte[] bytes = new byte[spillIn.readInt()];
+                spillIn.readFully(bytes);
+                queue.add(Frame.wrap(bytes));
+                spillPending--;
+            }
+        } catch (IOException e) {
+            logger.error("Outbound Unspill Error: " + e);
+            droppedCount += spillPending;
+            spillPending = 0;
+        }
+        if (spillPending == 0)
+            closeSpill();
+    }
+
+    private void closeSpill() {
+        try {
+            if (spillIn != null)
+                spillIn.close();
+            if (spillOut != null)
+                spillOut.close();
+        } catch (IOException e) {
+            logger.warn("Outbound Spill Close Error: " + e);
+        }
+        if (spillFile != null && !spillFile.delete())
+            logger.warn("Delete Spill File " + spillFile + " Failed");
+        spillIn = null;
+        spillOut = null;
+        spillFile = null;
+        spillBytes = 0;
+    }
+
+    //当前队列深度（含磁盘溢出部分）
+    public synchronized int depth() {
+        return queue.size() + spillPending;
+    }
+
+    public synchronized int maxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long sentCount() {
+        return sentCount;
+    }
+
+    public synchronized long droppedCount() {
+        return droppedCount;
+    }
+
+    public synchronized long spilledCount() {
+        return spilledCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "depth=" + (queue.size() + spillPending) + ", maxDepth=" + maxDepth + ", sent=" + sentCount
+                + ", dropped=" + droppedCount + ", spilled=" + spilledCount + ", policy=" + policy;
+    }
+}
@@ -0,0 +1,126 @@
+package org.gRpcChat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//在线状态版本日志：每次上线/下线版本号加一，环形缓冲保存最近的事件，用于登录时的增量同步
+//epoch区分服务器的每次启动，重启后旧版本号失效（非线程安全，由SessionRegistry加锁）
+public class PresenceLog {
+    private final long epoch = System.currentTimeMillis();
+    private final Event[] events;
+    private long version = 0;
+
+    public PresenceLog(int capacity) {
+        this.events = new Event[Math.max(1, capacity)];
+    }
+
+    //记录一次上线/下线，返回事件
+    public Event append(boolean join, UserInfo user) {
+        Event event = new Event(++version, join, user);
+        events[(int) (version % events.length)] = event;
+        return event;
+    }
+
+    //合并since之后的事件：每个用户只保留最后一次状态
+    //epoch不符或since已超出缓冲范围时返回null，需要发送完整快照
+    public Sync since(long epoch, long since) {
+        if (epoch != this.epoch || since < 0 || since > version || version - since > events.length)
+            return null;
+        LongHashMap<Event> last = new LongHashMap<>((int) (version - since));
+        for (long v = since + 1; v <= version; v++) {
+            Event event = events[(int) (v % events.length)];
+            last.put(event.user.getId(), event);
+        }
+        Sync delta = new Sync(false, this.epoch, version);
+        last.forEachValue(event -> {
+            if (event.join)
+                delta.users.add(event.user);
+            else
+                delta.left.add(event.user.getId());
+        });
+        return delta;
+    }
+
+    //当前版本的完整快照
+    public Sync snapshot(List<UserInfo> users) {
+        Sync snapshot = new Sync(true, epoch, version);
+        snapshot.users.addAll(users);
+        return snapshot;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int getCapacity() {
+        return events.length;
+    }
+
+    //上线/下线事件
+    public static class Event {
+        private final long version;
+        private final boolean join;
+        private final UserInfo user;
+
+        private Event(long version, boolean join, UserInfo user) {
+            this.version = version;
+            this.join = join;
+            this.user = user;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public boolean isJoin() {
+            return join;
+        }
+
+        public UserInfo getUser() {
+            return user;
+        }
+    }
+
+    //同步结果：完整快照（全部在线用户），或增量（上线的用户与下线用户的id）
+    public static class Sync {
+        private final boolean snapshot;
+        private final long epoch;
+        private final long version;
+        private final List<UserInfo> users = new ArrayList<>();
+        private final List<Long> left = new ArrayList<>();
+
+        private Sync(boolean snapshot, long epoch, long version) {
+            this.snapshot = snapshot;
+            this.epoch = epoch;
+            this.version = version;
+        }
+
+        public boolean isSnapshot() {
+            return snapshot;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public List<UserInfo> getUsers() {
+            return users;
+        }
+
+        public List<Long> getLeft() {
+            return left;
+        }
+
+        public int size() {
+            return users.size() + left.size();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package org.gRpcChat;
+
+import com.google.protobuf.ByteString;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+
+//协议版本：v1使用act字符串与文本结果，v2使用Action枚举与带结果码的负载
+//每个stream由HELLO握手协商版本，未握手的stream按v1处理
+public final class Protocol {
+    public final static int V1 = 1;
+    public final static int V2 = 2;
+    public final static int LATEST = V2;
+    //fetchKeys每次请求的公钥数上限
+    public final static int maxKeysPerFetch = 1024;
+    //特性，客户端在HELLO请求中声明，服务器在HELLO结果中声明
+    public final static int FEATURE_SESSION = 1;//私聊会话密钥（SessionCipher）
+    public final static int FEATURE_BATCH = 2;//服务器接受BATCH请求（HELLO结果中）
+    //启用压缩的stream中小于该字节数的消息不压缩：gzip每条消息的头部与校验大于小消息可省下的字节
+    public final static int compressMinBytes = 256;
+    private final static long serverId = 0;
+    private final static long broadcastId = 0;
+    //v1的act字符串
+    private final static HashMap<String, Action> v1Actions = new HashMap<>();
+    private final static EnumMap<Action, String> v1Acts = new EnumMap<>(Action.class);
+
+    static {
+        v1Act("#login", Action.LOGIN);
+        v1Act("#logout", Action.LOGOUT);
+        v1Act("#post", Action.POST);
+        v1Act("#broadcast", Action.BROADCAST);
+        v1Act("SP_forward", Action.PUSH_FORWARD);
+        v1Act("SP_broadcast", Action.PUSH_BROADCAST);
+        v1Act("SP_loginMsg", Action.PUSH_LOGIN);
+        v1Act("SP_logoutMsg", Action.PUSH_LOGOUT);
+        v1Actions.put("SR_UserList", Action.LOGIN);//登录结果
+    }
+
+    private Protocol() {
+    }
+
+    private static void v1Act(String act, Action action) {
+        v1Actions.put(act, action);
+        v1Acts.put(action, act);
+    }
+
+    //双方都支持的最高版本
+    public static int negotiate(int requested) {
+        return Math.max(V1, Math.min(requested, LATEST));
+    }
+
+    //消息的动作，v1由act映射，无法识别返回UNRECOGNIZED
+    public static Action actionOf(Pack pack) {
+        Action action = pack.getAction();
+        if (action != Action.ACT_STRING)
+            return action;
+        return v1Actions.getOrDefault(pack.getAct(), Action.UNRECOGNIZED);
+    }
+
+    //是否为普通结果通知（v1的SR_String，v2的Result）
+    public static boolean isResult(Pack pack) {
+        return pack.hasResult() || "SR_String".equals(pack.getAct());
+    }
+
+    //按版本设置动作的请求
+    public static Pack.Builder request(int version, Action action) {
+        Pack.Builder builder = Pack.newBuilder();
+        if (version >= V2)
+            return builder.setAction(action);
+        return builder.setAct(v1Acts.get(action));
+    }
+
+    public static Pack hello(int version) {
+        return hello(version, 0);
+    }
+
+    public static Pack hello(int version, int features) {
+        return hello(version, features, "");
+    }
+
+    //compression：请求中为希望推送使用的压缩算法，结果中为服务器采用的算法，空为不压缩
+    public static Pack hello(int version, int features, String compression) {
+        return Pack.newBuilder().setAction(Action.HELLO)
+                .setHello(Hello.newBuilder().setVersion(version).setFeatures(features).setCompression(compression))
+                .build();
+    }
+
+    //合并发送的请求
+    public static Pack batch(List<Pack> requests) {
+        return Pack.newBuilder().setAction(Action.BATCH).addAllBatch(requests).build();
+    }
+
+    //可以合并发送的请求：不改变会话状态的消息类请求
+    public static boolean isBatchable(Action action) {
+        return action == Action.POST || action == Action.BROADCAST || action == Action.ROOM_POST;
+    }
+
+    //结果的文本描述，即v1返回的内容
+    public static String describe(Action action, StatusCode code, long id) {
+        return switch (code) {
+            case OK -> switch (action) {
+                case LOGOUT -> "Logout Successful";
+                case POST -> "Send Successful";
+                case BROADCAST -> "Broadcast Successful";
+                case ROOM_CREATE -> "Room " + id + " Created";
+                case ROOM_JOIN -> "Joined Room " + id;
+                case ROOM_LEAVE -> "Left Room " + id;
+                case ROOM_POST -> "Room Message Sent";
+                case ROOM_MEMBERS -> "Members of Room " + id;
+                default -> "Successful";
+            };
+            case CREATED -> "Registration Successful:" + id;
+            case AUTH_FAILED -> "Login Failed: Authentication failure";
+            case REGISTRATION_FAILED -> "Registration Failed: Database error";
+            case RECEIVER_OFFLINE -> "Send Successful: User " + id + " is offline, message saved";
+            case RECEIVER_NOT_FOUND -> "Send Failed: User " + id + " does not exist";
+            case REDIRECT -> "Login Redirected: User " + id + " belongs to another server";
+            case ROOM_NOT_FOUND -> "Failed: Room " + id + " does not exist";
+            case NOT_ROOM_MEMBER -> "Send Failed: Not a member of room " + id;
+            default -> "Bad Request";
+        };
+    }
+
+    //结果通知的文本
+    public static String noticeOf(Pack pack) {
+        if (pack.hasResult())
+            return describe(pack.getAction(), pack.getResult().getCode(), pack.getResult().getId());
+        return pack.getMessage().toStringUtf8();
+    }
+
+    //服务器对请求的结果，附带请求的id
+    public static Pack result(int version, Action action, long receiver, StatusCode code, long id, long requestId) {
+        if (version >= V2)
+            return Pack.newBuilder().setAction(action).setRequestId(requestId)
+                    .setResult(Result.newBuilder().setCode(code).setId(id))
+                    .build();
+        return Pack.newBuilder().setAct("SR_String").setRequestId(requestId)
+                .setSender(serverId).setReceiver(receiver)
+                .setMessage(GRpcUtil.toByteString(describe(action, code, id)))
+                .build();
+    }
+
+    //登录结果，成功时附带在线用户的快照或增量（v1只支持快照，且包含完整公钥；v2只包含公钥指纹）
+    public static Pack login(int version, long receiver, StatusCode code, long id, String name,
+                             PresenceLog.Sync sync, long requestId) {
+        boolean success = code == StatusCode.OK || code == StatusCode.CREATED;
+        if (version >= V2) {
+            LoginResult.Builder login = LoginResult.newBuilder().setCode(code).setId(id);
+            if (name != null)
+                login.setName(name);
+            Pack.Builder builder = Pack.newBuilder().setAction(Action.LOGIN).setRequestId(requestId);
+            if (success) {
+                for (UserInfo user : sync.getUsers())
+                    login.addUsers(user.toSummary());
+                login.setDelta(!sync.isSnapshot()).addAllLeft(sync.getLeft());
+                builder.setPresence(PresenceVersion.newBuilder()
+                        .setEpoch(sync.getEpoch()).setVersion(sync.getVersion()));
+            }
+            return builder.setLogin(login).build();
+        }
+        if (!success)
+            return result(version, Action.LOGIN, receiver, code, id, requestId);
+        String message = code == StatusCode.CREATED ? "Registration Successful:" + id : "Login Successful:" + name;
+        Pack.Builder builder = Pack.newBuilder().setAct("SR_UserList").setMessage(GRpcUtil.toByteString(message))
+                .setSender(serverId).setReceiver(receiver).setRequestId(requestId);
+        for (UserInfo user : sync.getUsers())
+            builder.addUserInfoList(user.toPack());
+        return builder.build();
+    }
+
+    //用户属于其他节点，重定向到该节点（v1为不含用户列表的SR_UserList，文本"Redirect:host:port"）
+    public static Pack redirect(int version, long receiver, long id, String target, long requestId) {
+        if (version >= V2)
+            return Pack.newBuilder().setAction(Action.LOGIN).setRequestId(requestId)
+                    .setLogin(LoginResult.newBuilder().setCode(StatusCode.REDIRECT).setId(id).setRedirect(target))
+                    .build();
+        return Pack.newBuilder().setAct("SR_UserList").setRequestId(requestId)
+                .setSender(serverId).setReceiver(receiver)
+                .setMessage(GRpcUtil.toByteString("Redirect:" + target))
+                .build();
+    }
+
+    //解析登录结果，v1从文本中取出id或用户名
+    public static LoginResult loginResultOf(Pack pack) {
+        if (pack.hasLogin())
+            return pack.getLogin();
+        LoginResult.Builder login = LoginResult.newBuilder().addAllUsers(pack.getUserInfoListList());
+        String message = pack.getMessage().toStringUtf8();
+        String value = message.substring(message.indexOf(':') + 1);
+        if (message.startsWith("Login Successful"))
+            login.setCode(StatusCode.OK).setName(value);
+        else if (message.startsWith("Registration Successful"))
+            login.setCode(StatusCode.CREATED).setId(Long.parseLong(value));
+        else if (message.startsWith("Redirect"))
+            login.setCode(StatusCode.REDIRECT).setRedirect(value);
+        else
+            login.setCode(StatusCode.BAD_REQUEST);
+        return login.build();
+    }
+
+    //转发私聊消息
+    public static Frame forward(long sender, long receiver, ByteString message) {
+        Pack.Builder builder = Pack.newBuilder()
+                .setSender(sender).setReceiver(receiver).setMessage(message);
+        return Frame.of(builder.setAct("SP_forward").build(),
+                builder.clearAct().setAction(Action.PUSH_FORWARD).build());
+    }
+
+    //转发群发消息
+    public static Frame broadcast(long sender, ByteString message) {
+        Pack.Builder builder = Pack.newBuilder()
+                .setSender(sender).setReceiver(broadcastId).setMessage(message);
+        return Frame.of(builder.setAct("SP_broadcast").build(),
+                builder.clearAct().setAction(Action.PUSH_BROADCAST).build());
+    }
+
+    //转发房间消息（只有v2客户端能加入房间）
+    public static Frame room(long sender, long room, ByteString message) {
+        return Frame.of(Pack.newBuilder().setAction(Action.PUSH_ROOM)
+                .setSender(sender).setReceiver(room).setMessage(message)
+                .build());
+    }
+
+    //房间的全部成员（ROOM_MEMBERS的结果）
+    public static Pack roomMembers(long room, long[] members, long requestId) {
+        Room.Builder builder = Room.newBuilder().setId(room);
+        for (long member : members)
+            builder.addMembers(member);
+        return Pack.newBuilder().setAction(Action.ROOM_MEMBERS).setRequestId(requestId).setRoom(builder).build();
+    }
+
+    //房间成员变化通知，成员据此更换sender key
+    public static Frame roomMembersChanged(long room, long member, boolean join) {
+        Room.Builder builder = Room.newBuilder().setId(room);
+        if (join)
+            builder.addMembers(member);
+        else
+            builder.addLeft(member);
+        return Frame.of(Pack.newBuilder().setAction(Action.PUSH_ROOM_MEMBERS).setReceiver(room).setRoom(builder).build());
+    }
+
+    //会访问数据库的请求，在HandlerExecutor上执行
+    public static boolean isBlocking(Action action) {
+        return action == Action.LOGIN || action == Action.ROOM_CREATE
+                || action == Action.ROOM_JOIN || action == Action.ROOM_LEAVE;
+    }
+
+    //用户上线/下线通知，v2附带事件的版本，上线只含公钥指纹，下线只需id
+    public static Frame presence(PresenceLog.Event event, long originId) {
+        boolean login = event.isJoin();
+        UserInfo user = event.getUser();
+        Pack v1 = Pack.newBuilder().setAct(login ? "SP_loginMsg" : "SP_logoutMsg")
+                .setSender(serverId).setReceiver(originId)
+                .setMessage(GRpcUtil.toByteString(login ? "login" : "logout"))
+                .addUserInfoList(user.toPack())
+                .build();
+        Pack v2 = Pack.newBuilder().setAction(login ? Action.PUSH_LOGIN : Action.PUSH_LOGOUT)
+                .setUser(login ? user.toSummary() : UserInfoPack.newBuilder().setId(user.getId()).build())
+                .setPresence(PresenceVersion.newBuilder().setVersion(event.getVersion()))
+                .build();
+        return Frame.of(v1, v2);
+    }
+
+    //上线/下线通知中的用户
+    public static UserInfoPack userOf(Pack pack) {
+        return pack.hasUser() ? pack.getUser() : pack.getUserInfoList(0);
+    }
+}
@@ -0,0 +1,40 @@
+package org.gRpcChat;
+
+import com.google.protobuf.ByteString;
+
+//待写入数据库的注册信息（已加盐）
+public class Registration {
+    private final String name;
+    private final ByteString pk;
+    private final String skHashSalted;
+    private final String salt;
+
+    public Registration(String name, ByteString pk, String skHashSalted, String salt) {
+        this.name = name;
+        this.pk = pk;
+        this.skHashSalted = skHashSalted;
+        this.salt = salt;
+    }
+
+    //生成盐并计算加盐哈希
+    public static Registration of(String name, ByteString pk, String skHash) {
+        String salt = GRpcUtil.getSalt();
+        return new Registration(name, pk, GRpcUtil.addSalt(skHash, salt), salt);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public ByteString getPk() {
+        return pk;
+    }
+
+    public String getSkHashSalted() {
+        return skHashSalted;
+    }
+
+    public String getSalt() {
+        return salt;
+    }
+}
@@ -0,0 +1,106 @@
+package org.gRpcChat;
+
+import com.google.protobuf.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+//注册流水线：请求线程计算加盐哈希，写线程将积压的注册合并为一个事务提交（group commit）
+public class RegistrationPipeline {
+    private final static Logger logger = LoggerFactory.getLogger("Server");
+    private final ChatDatabase db;
+    private final int maxBatch;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private volatile boolean running = true;
+    //统计
+    private final AtomicLong registered = new AtomicLong();
+    private final AtomicLong commits = new AtomicLong();
+
+    public RegistrationPipeline(ChatDatabase db, int maxBatch) {
+        this.db = db;
+        this.maxBatch = maxBatch;
+        writer = new Thread(this::run, "registration-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    //提交注册，返回新用户id，失败则返回-1
+    public CompletableFuture<Long> register(String name, ByteString pk, String skHash) {
+        Request request = new Request(Registration.of(name, pk, skHash));
+        if (!running) {
+            request.future.complete(-1L);
+            return request.future;
+        }
+        queue.add(request);
+        //写线程可能已在加入前完成最后一次取队列，由提交方自行移除并结束
+        if (!running && queue.remove(request))
+            request.future.complete(-1L);
+        return request.future;
+    }
+
+    private void run() {
+        List<Request> batch = new ArrayList<>(maxBatch);
+        List<Registration> registrations = new ArrayList<>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                if (!running)
+                    break;
+                continue;
+            }
+            //上一次提交期间到达的请求一并提交
+            queue.drainTo(batch, maxBatch - 1);
+            for (Request request : batch)
+                registrations.add(request.registration);
+            try {
+                long[] ids = db.regBatch(registrations);
+                for (int i = 0; i < batch.size(); i++)
+                    batch.get(i).future.complete(ids[i]);
+                registered.addAndGet(batch.size());
+                commits.incrementAndGet();
+                if (batch.size() > 1)
+                    logger.debug("Registration Group Commit: " + batch.size() + " users");
+            } catch (RuntimeException e) {//写线程不能退出，否则之后的注册永远不会完成
+                logger.error("Registration Batch Error: " + e);
+                for (Request failed : batch)
+                    failed.future.complete(-1L);
+            } finally {
+                batch.clear();
+                registrations.clear();
+            }
+        }
+        //停止后到达的请求
+        Request request;
+        while ((request = queue.poll()) != null)
+            request.future.complete(-1L);
+    }
+
+    public long getRegistered() {
+        return registered.get();
+    }
+
+    public long getCommits() {
+        return commits.get();
+    }
+
+    public void shutdown() {
+        running = false;
+        writer.interrupt();
+    }
+
+    private static class Request {
+        final Registration registration;
+        final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        Request(Registration registration) {
+            this.registration = registration;
+        }
+    }
+}
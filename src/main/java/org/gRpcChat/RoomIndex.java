@@ -0,0 +1,200 @@
+package org.gRpcChat;
+
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//聊天室的成员索引：房间 -> 全部成员与在线成员，用户 -> 所在的房间
+//用户上线/下线时只更新其所在房间的在线成员，房间消息只遍历在线成员，开销与房间在线人数成正比而与全部在线用户无关
+//成员集合使用MemberSet，大房间的内存占用约为每个成员1~2字节
+public class RoomIndex {
+    private final HashMap<Long, Room> rooms = new HashMap<>();
+    private final HashMap<Long, MemberSet> userRooms = new HashMap<>();//用户 -> 所在房间的id
+    private final MemberSet onlineUsers = new MemberSet();//在线且至少在一个房间中的用户
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private long memberships = 0;
+
+    public static class Room {
+        private final long id;
+        private final String name;
+        private final long owner;
+        private final MemberSet members = new MemberSet();
+        private final MemberSet online = new MemberSet();
+
+        Room(long id, String name, long owner) {
+            this.id = id;
+            this.name = name;
+            this.owner = owner;
+        }
+
+        public long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getOwner() {
+            return owner;
+        }
+    }
+
+    //加入房间（启动时从数据库加载，或新建房间）
+    public void addRoom(long id, String name, long owner) {
+        lock.writeLock().lock();
+        try {
+            rooms.putIfAbsent(id, new Room(id, name, owner));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //加入成员，房间不存在或已是成员时返回false
+    public boolean join(long roomId, long member) {
+        lock.writeLock().lock();
+        try {
+            Room room = rooms.get(roomId);
+            if (room == null || !room.members.add(member))
+                return false;
+            userRooms.computeIfAbsent(member, id -> new MemberSet()).add(roomId);
+            if (onlineUsers.contains(member))
+                room.online.add(member);
+            memberships++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //移除成员，不是成员时返回false
+    public boolean leave(long roomId, long member) {
+        lock.writeLock().lock();
+        try {
+            Room room = rooms.get(roomId);
+            if (room == null || !room.members.remove(member))
+                return false;
+            room.online.remove(member);
+            MemberSet joined = userRooms.get(member);
+            joined.remove(roomId);
+            if (joined.isEmpty())
+                userRooms.remove(member);
+            memberships--;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //用户上线，加入其所在房间的在线成员
+    public void online(long userId) {
+        lock.writeLock().lock();
+        try {
+            MemberSet joined = userRooms.get(userId);
+            onlineUsers.add(userId);
+            if (joined != null)
+                joined.forEach(roomId -> rooms.get(roomId).online.add(userId));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //用户下线
+    public void offline(long userId) {
+        lock.writeLock().lock();
+        try {
+            if (!onlineUsers.remove(userId))
+                return;
+            MemberSet joined = userRooms.get(userId);
+            if (joined != null)
+                joined.forEach(roomId -> rooms.get(roomId).online.remove(userId));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //房间的全部成员，房间不存在时返回null
+    public long[] members(long roomId) {
+        lock.readLock().lock();
+        try {
+            Room room = rooms.get(roomId);
+            return room == null ? null : room.members.toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //房间的在线成员，房间不存在时返回null
+    public long[] onlineMembers(long roomId) {
+        lock.readLock().lock();
+        try {
+            Room room = rooms.get(roomId);
+            return room == null ? null : room.online.toArray();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public Room get(long roomId) {
+        lock.readLock().lock();
+        try {
+            return rooms.get(roomId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isMember(long roomId, long userId) {
+        lock.readLock().lock();
+        try {
+            Room room = rooms.get(roomId);
+            return room != null && room.members.contains(userId);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return rooms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public long getMemberships() {
+        lock.readLock().lock();
+        try {
+            return memberships;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //成员集合占用的字节数（近似）
+    public long memoryBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = onlineUsers.memoryBytes();
+            for (Room room : rooms.values())
+                bytes += room.members.memoryBytes() + room.online.memoryBytes();
+            for (MemberSet joined : userRooms.values())
+                bytes += joined.memoryBytes();
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            rooms.clear();
+            userRooms.clear();
+            onlineUsers.clear();
+            memberships = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.gRpcChat;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongPredicate;
+
+//聊天室的端到端加密（sender key）：每个成员为每个房间生成一条链密钥，经私聊会话分别发给房间的其他在线成员一次，
+//之后每条房间消息只用AES-GCM加密一次，服务器把同一密文投递给所有在线成员
+//每条消息的密钥由链密钥派生，之后链密钥向前推进（HMAC-SHA256），拿到当前链密钥的新成员无法解密之前的消息
+//房间成员变化（加入/离开）后下一条消息使用新的链密钥，离开的成员无法解密之后的消息
+public class SenderKeys {
+    private final static byte[] messageKeySeed = {1};
+    private final static byte[] chainKeySeed = {2};
+    private final static int chainKeySize = 32;
+    private final static int maxSkip = 2000;//允许跳过（丢失或迟到）的消息数，也是每条链保留的跳过的消息密钥数
+    private final static int keptKeys = 4;//每个发送者在每个房间保留的链，旧链的消息晚于新链的分发到达时仍可解密
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<>();
+    private final ThreadLocal<Mac> macs = new ThreadLocal<>();
+    private final HashMap<Long, RoomState> rooms = new HashMap<>();//本账户所在的房间
+    private final HashMap<Long, HashMap<Long, LinkedHashMap<Long, Chain>>> received = new HashMap<>();//房间 -> 发送者 -> 链
+    //统计
+    private final LongAdder encrypted = new LongAdder();
+    private final LongAdder decrypted = new LongAdder();
+    private final LongAdder rotations = new LongAdder();
+    private final LongAdder distributions = new LongAdder();
+
+    //分发消息的明文以0x00开头，文本消息不会以0x00开头
+    public static boolean isDistribution(byte[] plaintext) {
+        return plaintext.length > 0 && plaintext[0] == 0;
+    }
+
+    //房间的成员是否已知（加入房间后第一次发送前需要获取）
+    public synchronized boolean knowsMembers(long room) {
+        RoomState state = rooms.get(room);
+        return state != null && state.members != null;
+    }
+
+    //设置房间的全部成员
+    public synchronized void setMembers(long room, Collection<Long> members) {
+        RoomState state = rooms.computeIfAbsent(room, id -> new RoomState());
+        state.members = new HashSet<>(members);
+        state.chain = null;
+    }
+
+    //房间成员变化：下一条消息换新的链密钥，新成员只收到新链，离开的成员不再收到
+    //离开的成员发来的链仍保留（其离开前的消息可能还在解密队列中），每个发送者最多保留keptKeys条
+    public synchronized void membersChanged(long room, Collection<Long> joined, Collection<Long> left) {
+        RoomState state = rooms.get(room);
+        if (state != null && state.members != null) {
+            state.members.addAll(joined);
+            state.members.removeAll(left);
+            state.chain = null;
+        }
+    }
+
+    //成员重新上线，可能已丢失收到的链，下一条消息前重新发给他
+    public synchronized void peerOnline(long peer) {
+        for (RoomState state : rooms.values())
+            state.distributed.remove(peer);
+    }
+
+    //离开房间
+    public synchronized void forget(long room) {
+        rooms.remove(room);
+        received.remove(room);
+    }
+
+    //发送前调用：需要时换新的链，返回尚未收到当前链的在线成员（不含自己）
+    public synchronized List<Long> pendingMembers(long room, long self, LongPredicate online) {
+        RoomState state = rooms.computeIfAbsent(room, id -> new RoomState());
+        if (state.chain == null) {
+            byte[] chainKey = new byte[chainKeySize];
+            random.nextBytes(chainKey);
+            state.chain = new Chain(random.nextLong(), chainKey, 0);
+            state.distributed.clear();
+            rotations.increment();
+        }
+        List<Long> pending = new ArrayList<>();
+        if (state.members != null)
+            for (long member : state.members)
+                if (member != self && !state.distributed.contains(member) && online.test(member))
+                    pending.add(member);
+        return pending;
+    }
+
+    //当前链的分发消息（私聊明文）
+    public synchronized byte[] distribution(long room) {
+        Chain chain = rooms.get(room).chain;
+        byte[] message = SenderKey.newBuilder().setRoom(room).setKey(chain.id).setIteration((int) chain.iteration)
+                .setChain(ByteString.copyFrom(chain.key)).build().toByteArray();
+        byte[] plaintext = new byte[message.length + 1];
+        System.arraycopy(message, 0, plaintext, 1, message.length);
+        return plaintext;
+    }
+
+    //分发消息已发出
+    public synchronized void distributed(long room, long member) {
+        rooms.get(room).distributed.add(member);
+        distributions.increment();
+    }
+
+    //用当前链加密一条房间消息，之后链向前推进
+    public synchronized byte[] encrypt(long room, long sender, byte[] plaintext) throws GeneralSecurityException {
+        Chain chain = rooms.get(room).chain;
+        byte[] ciphertext = seal(Cipher.ENCRYPT_MODE, messageKey(chain.key), chain.iteration, sender, room, plaintext);
+        GroupMessage message = GroupMessage.newBuilder().setKey(chain.id).setIteration((int) chain.iteration)
+                .setCiphertext(ByteString.copyFrom(ciphertext)).build();
+        chain.key = nextChainKey(chain.key);
+        chain.iteration++;
+        encrypted.increment();
+        return message.toByteArray();
+    }
+
+    //保存其他成员经私聊发来的链
+    public synchronized void accept(long sender, byte[] plaintext) throws GeneralSecurityException {
+        SenderKey key;
+        try {
+            key = SenderKey.parseFrom(ByteBuffer.wrap(plaintext, 1, plaintext.length - 1));
+        } catch (InvalidProtocolBufferException e) {
+            throw new GeneralSecurityException("Malformed Sender Key", e);
+        }
+        LinkedHashMap<Long, Chain> chains = received.computeIfAbsent(key.getRoom(), id -> new HashMap<>())
+                .computeIfAbsent(sender, id -> new LinkedHashMap<>());
+        Chain known = chains.get(key.getKey());
+        if (known != null && known.iteration >= Integer.toUnsignedLong(key.getIteration()))//重复或较旧的分发
+            return;
+        chains.put(key.getKey(), new Chain(key.getKey(), key.getChain().toByteArray(),
+                Integer.toUnsignedLong(key.getIteration())));
+        if (chains.size() > keptKeys)
+            chains.remove(chains.keySet().iterator().next());
+    }
+
+    //解密房间消息：链推进到消息的序号，跳过的序号的消息密钥保留在链上（最多maxSkip个），迟到的消息仍可解密
+    //消息密钥用过即删除，重放或过旧的消息解密失败；同一发送者的消息在同一个解密线程上按顺序调用
+    public byte[] decrypt(long sender, long room, byte[] message) throws GeneralSecurityException {
+        GroupMessage group;
+        try {
+            group = GroupMessage.parseFrom(message);
+        } catch (InvalidProtocolBufferException e) {
+            throw new GeneralSecurityException("Malformed Room Message", e);
+        }
+        long iteration = Integer.toUnsignedLong(group.getIteration());
+        synchronized (this) {
+            HashMap<Long, LinkedHashMap<Long, Chain>> senders = received.get(room);
+            Chain chain = senders == null || senders.get(sender) == null ? null : senders.get(sender).get(group.getKey());
+            if (chain == null)
+                throw new GeneralSecurityException("No Sender Key " + Long.toHexString(group.getKey()) + " from " + sender);
+            if (iteration < chain.iteration) {//迟到的消息
+                byte[] messageKey = chain.skipped.get(iteration);
+                if (messageKey == null)
+                    throw new GeneralSecurityException("Room Message " + iteration + " replayed or too old, chain at " + chain.iteration);
+                byte[] plaintext = seal(Cipher.DECRYPT_MODE, messageKey, iteration, sender, room,
+                        group.getCiphertext().toByteArray());
+                chain.skipped.remove(iteration);
+                decrypted.increment();
+                return plaintext;
+            }
+            if (iteration - chain.iteration > maxSkip)
+                throw new GeneralSecurityException("Room Message " + iteration + " out of window, chain at " + chain.iteration);
+            byte[] chainKey = chain.key;
+            byte[][] skippedKeys = new byte[(int) (iteration - chain.iteration)][];
+            for (int i = 0; i < skippedKeys.length; i++) {
+                skippedKeys[i] = messageKey(chainKey);
+                chainKey = nextChainKey(chainKey);
+            }
+            byte[] plaintext = seal(Cipher.DECRYPT_MODE, messageKey(chainKey), iteration, sender, room,
+                    group.getCiphertext().toByteArray());
+            //验证通过后保存跳过的消息密钥并推进
+            for (int i = 0; i < skippedKeys.length; i++)
+                chain.skipped.put(chain.iteration + i, skippedKeys[i]);
+            while (chain.skipped.size() > maxSkip)
+                chain.skipped.remove(chain.skipped.keySet().iterator().next());
+            chain.key = nextChainKey(chainKey);
+            chain.iteration = iteration + 1;
+            decrypted.increment();
+            return plaintext;
+        }
+    }
+
+    private byte[] messageKey(byte[] chainKey) throws GeneralSecurityException {
+        return hmac(chainKey, messageKeySeed);
+    }
+
+    private byte[] nextChainKey(byte[] chainKey) throws GeneralSecurityException {
+        return hmac(chainKey, chainKeySeed);
+    }
+
+    private byte[] hmac(byte[] key, byte[] input) throws GeneralSecurityException {
+        Mac mac = macs.get();
+        if (mac == null) {
+            mac = Mac.getInstance("HmacSHA256");
+            macs.set(mac);
+        }
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(input);
+    }
+
+    //AES-128-GCM，密钥取消息密钥的前16字节，nonce为4字节0与8字节序号，附加数据为发送者与房间id
+    private byte[] seal(int mode, byte[] messageKey, long iteration, long sender, long room, byte[] input)
+            throws GeneralSecurityException {
+        byte[] nonce = ByteBuffer.allocate(12).putLong(4, iteration).array();
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            ciphers.set(cipher);
+        }
+        cipher.init(mode, new SecretKeySpec(messageKey, 0, 16, "AES"), new GCMParameterSpec(128, nonce));
+        cipher.updateAAD(ByteBuffer.allocate(16).putLong(sender).putLong(room).array());
+        return cipher.doFinal(input);
+    }
+
+    public long getEncrypted() {
+        return encrypted.sum();
+    }
+
+    public long getDecrypted() {
+        return decrypted.sum();
+    }
+
+    public long getRotations() {
+        return rotations.sum();
+    }
+
+    public long getDistributions() {
+        return distributions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "roomEncrypted=" + encrypted.sum() + ", roomDecrypted=" + decrypted.sum()
+                + ", senderKeyRotations=" + rotations.sum() + ", senderKeysSent=" + distributions.sum();
+    }
+
+    //本账户在房间中的发送状态
+    private static class RoomState {
+        HashSet<Long> members = null;//null为尚未获取
+        Chain chain = null;//null为下一条消息前换新的链
+        final HashSet<Long> distributed = new HashSet<>();//已收到当前链的成员
+    }
+
+    //链：id、当前的链密钥与序号，以及跳过的序号的消息密钥（收到的链使用）
+    private static class Chain {
+        final long id;
+        byte[] key;
+        long iteration;
+        final LinkedHashMap<Long, byte[]> skipped = new LinkedHashMap<>();
+
+        Chain(long id, byte[] key, long iteration) {
+            this.id = id;
+            this.key = key;
+            this.iteration = iteration;
+        }
+    }
+}
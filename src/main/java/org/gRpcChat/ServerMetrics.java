@@ -0,0 +1,256 @@
+package org.gRpcChat;
+
+import io.grpc.*;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+//服务器指标：拦截器按动作记录每条postPackage消息的处理耗时，其余指标（在线人数、队列、数据库等）在抓取时读取
+//记录路径只更新预先创建的直方图与计数器，不分配对象；输出为Prometheus文本格式
+public class ServerMetrics {
+    //耗时直方图的上界(us)，输出时换算为秒
+    private final static long[] latencyBounds = {100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+            100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000};
+    //数量直方图的上界
+    public final static long[] sizeBounds = {1, 10, 100, 1_000, 10_000, 100_000, 1_000_000};
+    private final static Action[] actions = Action.values();
+    private final static String postPackage = StringMessageGrpc.getPostPackageMethod().getFullMethodName();
+    private final LatencyHistogram[] requests = new LatencyHistogram[actions.length];
+    private final LongAdder[] requestErrors = new LongAdder[actions.length];
+    private final ConcurrentHashMap<String, LatencyHistogram> calls = new ConcurrentHashMap<>();
+    private final LongAdder activeCalls = new LongAdder();
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public ServerMetrics() {
+        for (int i = 0; i < actions.length; i++) {
+            requests[i] = new LatencyHistogram();
+            requestErrors[i] = new LongAdder();
+        }
+        Family requestFamily = family("grpcchat_request_seconds", "postPackage message handling time by action",
+                "histogram");
+        Family errorFamily = family("grpcchat_request_errors_total", "postPackage messages whose handler threw",
+                "counter");
+        for (int i = 0; i < actions.length; i++) {
+            String labels = "action=\"" + actions[i].name() + "\"";
+            requestFamily.samples.add(new Sample(labels, requests[i], latencyBounds, 1e6));
+            errorFamily.samples.add(new Sample(labels, requestErrors[i]::sum));
+        }
+        gauge("grpcchat_active_calls", "Open gRPC calls", activeCalls::sum);
+    }
+
+    //按动作计时postPackage的每条消息，其他方法按方法名计时
+    public ServerInterceptor interceptor() {
+        return new ServerInterceptor() {
+            @Override
+            public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                         ServerCallHandler<ReqT, RespT> next) {
+                String method = call.getMethodDescriptor().getFullMethodName();
+                LatencyHistogram callTimer = postPackage.equals(method) ? null : callTimer(method);
+                //一元调用在onHalfClose中执行处理方法，流式调用在onMessage中
+                boolean unary = call.getMethodDescriptor().getType() == MethodDescriptor.MethodType.UNARY;
+                AtomicBoolean closed = new AtomicBoolean();
+                activeCalls.increment();
+                return new ForwardingServerCallListener.SimpleForwardingServerCallListener<>(next.startCall(call, headers)) {
+                    @Override
+                    public void onMessage(ReqT message) {
+                        if (unary) {
+                            super.onMessage(message);
+                            return;
+                        }
+                        long start = System.nanoTime();
+                        int action = message instanceof Pack ? Protocol.actionOf((Pack) message).ordinal() : -1;
+                        try {
+                            super.onMessage(message);
+                        } catch (RuntimeException e) {
+                            if (action >= 0)
+                                requestErrors[action].increment();
+                            throw e;
+                        } finally {
+                            long elapsed = System.nanoTime() - start;
+                            if (action >= 0)
+                                requests[action].recordNanos(elapsed);
+                            else if (callTimer != null)
+                                callTimer.recordNanos(elapsed);
+                        }
+                    }
+
+                    @Override
+                    public void onHalfClose() {
+                        if (!unary) {
+                            super.onHalfClose();
+                            return;
+                        }
+                        long start = System.nanoTime();
+                        try {
+                            super.onHalfClose();
+                        } finally {
+                            callTimer.recordNanos(System.nanoTime() - start);
+                        }
+                    }
+
+                    @Override
+                    public void onComplete() {
+                        close();
+                        super.onComplete();
+                    }
+
+                    @Override
+                    public void onCancel() {
+                        close();
+                        super.onCancel();
+                    }
+
+                    private void close() {
+                        if (closed.compareAndSet(false, true))
+                            activeCalls.decrement();
+                    }
+                };
+            }
+        };
+    }
+
+    //非postPackage方法的计时器，首次调用时创建
+    private LatencyHistogram callTimer(String method) {
+        LatencyHistogram timer = calls.get(method);
+        if (timer == null) {
+            synchronized (families) {
+                timer = calls.computeIfAbsent(method, m -> new LatencyHistogram());
+                Family family = family("grpcchat_call_seconds", "Handling time of other methods (per message for streams)",
+                        "histogram");
+                String labels = "method=\"" + method + "\"";
+                if (family.samples.stream().noneMatch(sample -> sample.labels.equals(labels)))
+                    family.samples.add(new Sample(labels, timer, latencyBounds, 1e6));
+            }
+        }
+        return timer;
+    }
+
+    //注册在抓取时读取的指标
+    public void gauge(String name, String help, DoubleSupplier value) {
+        gauge(name, help, null, value);
+    }
+
+    public void gauge(String name, String help, String labels, DoubleSupplier value) {
+        synchronized (families) {
+            family(name, help, "gauge").samples.add(new Sample(labels, value));
+        }
+    }
+
+    public void counter(String name, String help, String labels, DoubleSupplier value) {
+        synchronized (families) {
+            family(name, help, "counter").samples.add(new Sample(labels, value));
+        }
+    }
+
+    //注册耗时直方图（微秒记录，以秒输出）
+    public void timer(String name, String help, String labels, LatencyHistogram histogram) {
+        synchronized (families) {
+            family(name, help, "histogram").samples.add(new Sample(labels, histogram, latencyBounds, 1e6));
+        }
+    }
+
+    //注册数量直方图
+    public void histogram(String name, String help, String labels, LatencyHistogram histogram, long[] bounds) {
+        synchronized (families) {
+            family(name, help, "histogram").samples.add(new Sample(labels, histogram, bounds, 1));
+        }
+    }
+
+    private Family family(String name, String help, String type) {
+        return families.computeIfAbsent(name, n -> new Family(n, help, type));
+    }
+
+    //Prometheus文本格式（0.0.4）
+    public String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        synchronized (families) {
+            for (Family family : families.values()) {
+                out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+                out.append("# TYPE ").append(family.name).append(' ').append(family.type).append('\n');
+                for (Sample sample : family.samples)
+                    sample.writeTo(out, family.name);
+            }
+        }
+        return out.toString();
+    }
+
+    public LatencyHistogram getRequests(Action action) {
+        return requests[action.ordinal()];
+    }
+
+    private static class Family {
+        private final String name;
+        private final String help;
+        private final String type;
+        private final List<Sample> samples = new ArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private static class Sample {
+        private final String labels;
+        private final DoubleSupplier value;
+        private final LatencyHistogram histogram;
+        private final long[] bounds;
+        private final double scale;
+
+        Sample(String labels, DoubleSupplier value) {
+            this.labels = labels;
+            this.value = value;
+            this.histogram = null;
+            this.bounds = null;
+            this.scale = 1;
+        }
+
+        Sample(String labels, LatencyHistogram histogram, long[] bounds, double scale) {
+            this.labels = labels;
+            this.value = null;
+            this.histogram = histogram;
+            this.bounds = bounds;
+            this.scale = scale;
+        }
+
+        void writeTo(StringBuilder out, String name) {
+            if (histogram == null) {
+                line(out, name, labels, null, value.getAsDouble());
+                return;
+            }
+            long[] cumulative = histogram.cumulative(bounds);
+            for (int i = 0; i < bounds.length; i++)
+                line(out, name + "_bucket", labels, format(bounds[i] / scale), cumulative[i]);
+            line(out, name + "_bucket", labels, "+Inf", cumulative[bounds.length]);
+            line(out, name + "_sum", labels, null, histogram.getSum() / scale);
+            line(out, name + "_count", labels, null, cumulative[bounds.length]);
+        }
+
+        private static void line(StringBuilder out, String name, String labels, String le, double value) {
+            out.append(name);
+            if (labels != null || le != null) {
+                out.append('{');
+                if (labels != null)
+                    out.append(labels);
+                if (le != null)
+                    out.append(labels != null ? "," : "").append("le=\"").append(le).append('"');
+                out.append('}');
+            }
+            out.append(' ').append(format(value)).append('\n');
+        }
+
+        private static String format(double value) {
+            if (value == Math.rint(value) && Math.abs(value) < 1e15)
+                return Long.toString((long) value);
+            return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+        }
+    }
+}
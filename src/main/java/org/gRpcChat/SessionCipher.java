@@ -0,0 +1,236 @@
+package org.gRpcChat;
+
+import com.google.crypto.tink.HybridDecrypt;
+import com.google.crypto.tink.HybridEncrypt;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+//私聊会话密钥：每个发送方向一个AES-128-GCM密钥，用接收者公钥混合加密密钥（init），
+//之后只做AES-GCM，nonce为消息序号；达到消息数或时长上限后换新会话
+//对方在发来的消息中确认（ack）收到会话之前，每条消息都带init，第一条消息丢失时之后的消息仍能建立会话
+public class SessionCipher {
+    public final static byte MAGIC = 'S';//Tink混合加密的密文以0x00/0x01开头
+    private final static String transformation = "AES/GCM/NoPadding";
+    private final static int keySize = 16;
+    private final static int tagBits = 128;
+    private final int maxReceiveSessions;
+    private final HybridDecrypt decryptor;
+    private final byte[] contextInfo;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<>();
+    private final ConcurrentHashMap<Long, SendSession> sending = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, Long> acks = new ConcurrentHashMap<>();//对方 -> 最近从对方收到的会话id
+    //最近使用的接收会话，超出上限时淘汰最久未用的
+    private final LinkedHashMap<Long, ReceiveSession> receiving = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ReceiveSession> eldest) {
+            if (size() <= maxReceiveSessions)
+                return false;
+            //不再确认被淘汰的会话，对方之后的消息重新带init
+            acks.remove(eldest.getValue().sender, eldest.getKey());
+            return true;
+        }
+    };
+    private volatile int rotateMessages = 1000;
+    private volatile long rotateMillis = TimeUnit.HOURS.toMillis(1);
+    //统计
+    private final LongAdder opened = new LongAdder();
+    private final LongAdder accepted = new LongAdder();
+
+    public SessionCipher(HybridDecrypt decryptor, byte[] contextInfo) {
+        this(decryptor, contextInfo, 4096);
+    }
+
+    SessionCipher(HybridDecrypt decryptor, byte[] contextInfo, int maxReceiveSessions) {
+        this.decryptor = decryptor;
+        this.contextInfo = contextInfo;
+        this.maxReceiveSessions = maxReceiveSessions;
+    }
+
+    //消息是否为会话消息
+    public static boolean isSession(byte[] message) {
+        return message.length > 0 && message[0] == MAGIC;
+    }
+
+    //加密，没有会话或会话到期时新建会话，用encryptor混合加密会话密钥
+    public synchronized byte[] encrypt(long sender, long receiver, KeysetHandle pk, HybridEncrypt encryptor,
+                                       byte[] plaintext) throws GeneralSecurityException {
+        SendSession session = sending.get(receiver);
+        long now = System.currentTimeMillis();
+        if (session == null || session.pk != pk || session.counter >= rotateMessages
+                || now - session.created >= rotateMillis) {
+            byte[] key = new byte[keySize];
+            random.nextBytes(key);
+            byte[] init = encryptor.encrypt(SessionKey.newBuilder().setKey(ByteString.copyFrom(key)).build().toByteArray(),
+                    contextInfo);
+            session = new SendSession(random.nextLong(), pk, new SecretKeySpec(key, "AES"), ByteString.copyFrom(init), now);
+            sending.put(receiver, session);
+            opened.increment();
+        }
+        long counter = session.counter++;
+        SessionMessage.Builder message = SessionMessage.newBuilder().setSession(session.id).setCounter(counter)
+                .setCiphertext(ByteString.copyFrom(seal(Cipher.ENCRYPT_MODE, session.key, counter, sender, plaintext)));
+        if (!session.confirmed)
+            message.setInit(session.init);
+        Long ack = acks.get(receiver);
+        if (ack != null)
+            message.setAck(ack);
+        return envelope(message.build());
+    }
+
+    //解密会话消息，带init的消息同时建立会话；重放的消息视为解密失败
+    public byte[] decrypt(long sender, byte[] envelope) throws GeneralSecurityException {
+        SessionMessage message;
+        try {
+            message = SessionMessage.parseFrom(ByteBuffer.wrap(envelope, 1, envelope.length - 1));
+        } catch (InvalidProtocolBufferException e) {
+            throw new GeneralSecurityException("Malformed Session Message", e);
+        }
+        long counter = message.getCounter();
+        ReceiveSession session;
+        synchronized (receiving) {
+            session = receiving.get(message.getSession());
+        }
+        boolean established = session != null && session.sender == sender;
+        if (!established) {
+            if (message.getInit().isEmpty())
+                throw new GeneralSecurityException("Unknown Session " + Long.toHexString(message.getSession()));
+            SessionKey key;
+            try {
+                key = SessionKey.parseFrom(decryptor.decrypt(message.getInit().toByteArray(), contextInfo));
+            } catch (InvalidProtocolBufferException e) {
+                throw new GeneralSecurityException("Malformed Session Key", e);
+            }
+            session = new ReceiveSession(sender, new SecretKeySpec(key.getKey().toByteArray(), "AES"));
+        }
+        synchronized (session) {
+            if (counter < 0 || !session.fresh(counter))
+                throw new GeneralSecurityException("Replayed Session Message " + counter);
+            byte[] plaintext = seal(Cipher.DECRYPT_MODE, session.key, counter, sender, message.getCiphertext().toByteArray());
+            session.mark(counter);
+            if (!established) {//密文验证通过后才保存会话
+                synchronized (receiving) {
+                    receiving.put(message.getSession(), session);
+                }
+                accepted.increment();
+            }
+            acks.put(sender, message.getSession());
+            SendSession reply = sending.get(sender);
+            if (reply != null)//对方已建立发往它的会话时之后的消息不再带init；对方淘汰会话后不再确认，重新带init
+                reply.confirmed = message.getAck() == reply.id;
+            return plaintext;
+        }
+    }
+
+    //结束发往receiver的会话，下一条消息重新建立（对方重新登录后不再有旧会话）
+    public void close(long receiver) {
+        sending.remove(receiver);
+        acks.remove(receiver);
+    }
+
+    //会话的消息数与时长上限
+    public void setRotation(int messages, long millis) {
+        this.rotateMessages = messages;
+        this.rotateMillis = millis;
+    }
+
+    public long getOpened() {
+        return opened.sum();
+    }
+
+    public long getAccepted() {
+        return accepted.sum();
+    }
+
+    //nonce为4字节0与8字节序号，附加数据为发送者id
+    private byte[] seal(int mode, SecretKeySpec key, long counter, long sender, byte[] input)
+            throws GeneralSecurityException {
+        byte[] nonce = ByteBuffer.allocate(12).putLong(4, counter).array();
+        Cipher cipher = ciphers.get();
+        if (cipher == null) {
+            cipher = Cipher.getInstance(transformation);
+            ciphers.set(cipher);
+        }
+        cipher.init(mode, key, new GCMParameterSpec(tagBits, nonce));
+        cipher.updateAAD(ByteBuffer.allocate(8).putLong(sender).array());
+        return cipher.doFinal(input);
+    }
+
+    private static byte[] envelope(SessionMessage message) {
+        byte[] envelope = new byte[1 + message.getSerializedSize()];
+        envelope[0] = MAGIC;
+        try {
+            CodedOutputStream output = CodedOutputStream.newInstance(envelope, 1, envelope.length - 1);
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return envelope;
+    }
+
+    //发送会话
+    private static class SendSession {
+        final long id;
+        final KeysetHandle pk;
+        final SecretKeySpec key;
+        final ByteString init;
+        final long created;
+        long counter = 0;
+        volatile boolean confirmed = false;//对方已确认收到会话
+
+        SendSession(long id, KeysetHandle pk, SecretKeySpec key, ByteString init, long created) {
+            this.id = id;
+            this.pk = pk;
+            this.key = key;
+            this.init = init;
+            this.created = created;
+        }
+    }
+
+    //接收会话，64条消息的滑动窗口拒绝重放
+    private static class ReceiveSession {
+        final long sender;
+        final SecretKeySpec key;
+        long highest = -1;
+        long window = 0;
+
+        ReceiveSession(long sender, SecretKeySpec key) {
+            this.sender = sender;
+            this.key = key;
+        }
+
+        boolean fresh(long counter) {
+            if (counter > highest)
+                return true;
+            long offset = highest - counter;
+            return offset < 64 && (window & (1L << offset)) == 0;
+        }
+
+        void mark(long counter) {
+            if (counter > highest) {
+                long shift = counter - highest;
+                window = shift >= 64 ? 0 : window << shift;
+                window |= 1;
+                highest = counter;
+            } else {
+                window |= 1L << (highest - counter);
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package org.gRpcChat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+//线程安全的会话注册表：全部用户(id -> UserInfo)、在线用户、发送队列(stream) -> 会话的反向索引、在线状态版本日志
+//集群模式下另外记录在其他节点在线的用户（由ClusterNode同步），其上线/下线同样写入在线状态日志
+public class SessionRegistry {
+    private static final UserInfo[] EMPTY_USERS = new UserInfo[0];
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongHashMap<UserInfo> users = new LongHashMap<>(1024);
+    private final LongHashMap<UserInfo> onlineUsers = new LongHashMap<>(256);
+    private final IdentityHashMap<OutboundQueue, UserInfo> streams = new IdentityHashMap<>();
+    private final LongHashMap<UserInfo> remoteUsers = new LongHashMap<>(256);
+    private PresenceLog presence = new PresenceLog(4096);
+
+    //设置在线状态日志（需在服务启动前调用）
+    public void setPresenceLog(PresenceLog presence) {
+        lock.writeLock().lock();
+        try {
+            this.presence = presence;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //添加用户（离线状态）
+    public void add(UserInfo userInfo) {
+        lock.writeLock().lock();
+        try {
+            users.put(userInfo.getId(), userInfo);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public UserInfo get(long id) {
+        lock.readLock().lock();
+        try {
+            return users.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean contains(long id) {
+        lock.readLock().lock();
+        try {
+            return users.containsKey(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //获取在线用户，不在线则返回null
+    public UserInfo getOnline(long id) {
+        lock.readLock().lock();
+        try {
+            return onlineUsers.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isOnline(long id) {
+        return getOnline(id) != null;
+    }
+
+    //用户上线，绑定stream；同一用户重复登录时替换旧stream，返回上线事件
+    public PresenceLog.Event online(UserInfo userInfo, OutboundQueue stream) {
+        lock.writeLock().lock();
+        try {
+            users.put(userInfo.getId(), userInfo);
+            OutboundQueue oldStream = userInfo.getOutbound();
+            if (oldStream != null && oldStream != stream)
+                streams.remove(oldStream);
+            userInfo.setOutbound(stream);
+            userInfo.setNode(0);
+            userInfo.login();
+            remoteUsers.remove(userInfo.getId());//从其他节点转到本节点
+            onlineUsers.put(userInfo.getId(), userInfo);
+            streams.put(stream, userInfo);
+            return presence.append(true, userInfo);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //根据stream使用户下线，返回下线事件，stream未绑定用户则返回null
+    public PresenceLog.Event offline(OutboundQueue stream) {
+        lock.writeLock().lock();
+        try {
+            UserInfo userInfo = streams.remove(stream);
+            if (userInfo == null)
+                return null;
+            onlineUsers.remove(userInfo.getId());
+            userInfo.logout();
+            return presence.append(false, userInfo);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    //用户在其他节点上线；用户在本节点在线时忽略并返回null
+    public PresenceLog.Event onlineRemote(UserInfoPack pack, int node) {
+        lock.writeLock().lock();
+        try {
+            return onlineRemoteLocked(pack, node);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private PresenceLog.Event onlineRemoteLocked(UserInfoPack pack, int node) {
+        long id = pack.getId();
+        if (onlineUsers.containsKey(id))
+            return null;
+        UserInfo userInfo = users.get(id);
+        if (userInfo == null) {//在其他节点新注册的用户
+            userInfo = new UserInfo();
+            userInfo.setId(id);
+            users.put(id, userInfo);
+        }
+        userInfo.setName(pack.getName());
+        userInfo.setPk(pack.getPk());
+        userInfo.setFeatures(pack.getFeatures());
+        userInfo.setNode(node);
+        userInfo.login();
+        remoteUsers.put(id, userInfo);
+        return presence.append(true, userInfo);
+    }
+
+    //用户从其他节点下线，用户已不在该节点时返回null
+    public PresenceLog.Event offlineRemote(long id, int node) {
+        lock.writeLock().lock();
+        try {
+            return offlineRemoteLocked(id, node);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private PresenceLog.Event offlineRemoteLocked(long id, int node) {
+        UserInfo userInfo = remoteUsers.get(id);
+        if (userInfo == null || userInfo.getNode() != node)
+            return null;
+        remoteUsers.remove(id);
+        userInfo.setNode(0);
+        userInfo.logout();
+        return presence.append(false, userInfo);
+    }
+
+    //以节点的完整在线列表替换该节点的在线用户（链路建立时），packs为null时该节点的用户全部下线（链路断开时）
+    //返回产生的上线/下线事件，已在该节点在线的用户不重复产生事件
+    public List<PresenceLog.Event> replaceNode(int node, List<UserInfoPack> packs) {
+        ArrayList<PresenceLog.Event> events = new ArrayList<>();
+        lock.writeLock().lock();
+        try {
+            LongHashMap<UserInfoPack> keep = new LongHashMap<>(packs == null ? 1 : packs.size());
+            if (packs != null) {
+                for (UserInfoPack pack : packs)
+                    keep.put(pack.getId(), pack);
+            }
+            ArrayList<Long> left = new ArrayList<>();
+            remoteUsers.forEachValue(userInfo -> {
+                if (userInfo.getNode() != node)
+                    return;
+                if (keep.containsKey(userInfo.getId()))
+                    keep.remove(userInfo.getId());//已在线，无需事件
+                else
+                    left.add(userInfo.getId());
+            });
+            for (long id : left)
+                events.add(offlineRemoteLocked(id, node));
+            keep.forEachValue(pack -> {
+                PresenceLog.Event event = onlineRemoteLocked(pack, node);
+                if (event != null)
+                    events.add(event);
+            });
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return events;
+    }
+
+    //在其他节点在线的用户，不在线则返回null
+    public UserInfo getRemote(long id) {
+        lock.readLock().lock();
+        try {
+            return remoteUsers.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //在线用户快照，用于群发时在锁外遍历
+    public UserInfo[] onlineSnapshot() {
+        lock.readLock().lock();
+        try {
+            if (onlineUsers.isEmpty())
+                return EMPTY_USERS;
+            return onlineUsers.valuesToArray(new UserInfo[onlineUsers.size()]);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //指定用户中在线的用户（房间消息的接收者），在同一次加锁内查找
+    public UserInfo[] onlineOf(long[] ids) {
+        UserInfo[] users = new UserInfo[ids.length];
+        int count = 0;
+        lock.readLock().lock();
+        try {
+            for (long id : ids) {
+                UserInfo userInfo = onlineUsers.get(id);
+                if (userInfo != null)
+                    users[count++] = userInfo;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return count == users.length ? users : Arrays.copyOf(users, count);
+    }
+
+    //客户端最后看到的版本之后的在线状态变化；since为null、版本过旧或增量不小于快照时返回完整快照
+    public PresenceLog.Sync sync(PresenceVersion since, long excludeId) {
+        lock.readLock().lock();
+        try {
+            if (since != null) {
+                PresenceLog.Sync delta = presence.since(since.getEpoch(), since.getVersion());
+                if (delta != null && delta.size() < onlineUsers.size() + remoteUsers.size())
+                    return delta;
+            }
+            ArrayList<UserInfo> users = new ArrayList<>(onlineUsers.size() + remoteUsers.size());
+            onlineUsers.forEachValue(userInfo -> {
+                if (userInfo.getId() != excludeId)
+                    users.add(userInfo);
+            });
+            remoteUsers.forEachValue(users::add);
+            return presence.snapshot(users);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public PresenceLog getPresenceLog() {
+        return presence;
+    }
+
+    //所有在线会话发送队列的积压总量
+    public long totalOutboundDepth() {
+        long depth = 0;
+        for (UserInfo userInfo : onlineSnapshot()) {
+            OutboundQueue outbound = userInfo.getOutbound();
+            if (outbound != null)
+                depth += outbound.depth();
+        }
+        return depth;
+    }
+
+    //在线会话中发送队列积压的最大值
+    public long maxOutboundDepth() {
+        long max = 0;
+        for (UserInfo userInfo : onlineSnapshot()) {
+            OutboundQueue outbound = userInfo.getOutbound();
+            if (outbound != null)
+                max = Math.max(max, outbound.depth());
+        }
+        return max;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return users.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int onlineCount() {
+        lock.readLock().lock();
+        try {
+            return onlineUsers.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //在其他节点在线的用户数
+    public int remoteCount() {
+        lock.readLock().lock();
+        try {
+            return remoteUsers.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    //清空注册表
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            users.clear();
+            onlineUsers.clear();
+            streams.clear();
+            remoteUsers.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
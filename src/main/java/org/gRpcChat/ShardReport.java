@@ -0,0 +1,128 @@
+package org.gRpcChat;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+//报告用户在一致性哈希环上的分布（HashRing）：各节点的用户数与偏斜，以及加入一个节点后需要迁移的用户
+//用法: java -cp gRpcChat-1.0.jar org.gRpcChat.ShardReport --ring 1=host:port,2=host:port
+//          [--users n | --random n | --db file...] [--vnodes k] [--add id=host:port]
+public class ShardReport {
+    private final static long firstUserId = 1597535;//数据库中第一个注册用户的id
+
+    public static void main(String[] args) throws SQLException {
+        String spec = null;
+        String add = null;
+        int vnodes = HashRing.DEFAULT_VNODES;
+        int users = 100_000;
+        boolean random = false;
+        List<String> databases = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--ring" -> spec = args[++i];
+                case "--add" -> add = args[++i];
+                case "--vnodes" -> vnodes = Integer.parseInt(args[++i]);
+                case "--users" -> users = Integer.parseInt(args[++i]);
+                case "--random" -> {
+                    users = Integer.parseInt(args[++i]);
+                    random = true;
+                }
+                case "--db" -> databases.add(args[++i]);
+                default -> databases.add(args[i]);//--db之后的多个文件
+            }
+        }
+        HashRing ring = spec == null ? null : HashRing.parse(spec, vnodes);
+        if (ring == null) {
+            System.err.println("Usage: ShardReport --ring 1=host:port,2=host:port [--users n | --random n | --db file...]"
+                    + " [--vnodes k] [--add id=host:port]");
+            System.exit(1);
+        }
+        //用户群体：连续注册的id（默认）、随机id，或数据库中的全部用户
+        long[] ids;
+        if (!databases.isEmpty()) {
+            ids = loadIds(databases);
+        } else {
+            ids = new long[users];
+            Random rand = new Random(1);
+            for (int i = 0; i < users; i++)
+                ids[i] = random ? rand.nextLong() & Long.MAX_VALUE : firstUserId + i;
+        }
+        System.out.println("Ring: " + ring);
+        System.out.println("Users: " + ids.length + (databases.isEmpty() ? (random ? " random ids" : " sequential ids from " + firstUserId)
+                : " from " + databases));
+        int[] owners = new int[ids.length];
+        Map<Integer, Integer> counts = new LinkedHashMap<>();
+        for (int node : ring.getAddresses().keySet())
+            counts.put(node, 0);
+        for (int i = 0; i < ids.length; i++) {
+            owners[i] = ring.nodeFor(ids[i]);
+            counts.merge(owners[i], 1, Integer::sum);
+        }
+        printDistribution(counts, ids.length);
+        if (add == null)
+            return;
+        //加入节点：统计改变所属节点的用户，理想情况下为1/(N+1)
+        String[] parts = add.split("=", 2);
+        int newNode = Integer.parseInt(parts[0]);
+        HashRing grown = ring.with(newNode, parts.length > 1 ? parts[1] : "");
+        Map<Integer, Integer> grownCounts = new LinkedHashMap<>();
+        for (int node : grown.getAddresses().keySet())
+            grownCounts.put(node, 0);
+        Map<Integer, Integer> movedFrom = new LinkedHashMap<>();
+        int moved = 0;
+        int misplaced = 0;//移动到新节点以外的节点（一致性哈希下应为0）
+        for (int i = 0; i < ids.length; i++) {
+            int owner = grown.nodeFor(ids[i]);
+            grownCounts.merge(owner, 1, Integer::sum);
+            if (owner != owners[i]) {
+                moved++;
+                movedFrom.merge(owners[i], 1, Integer::sum);
+                if (owner != newNode)
+                    misplaced++;
+            }
+        }
+        System.out.println();
+        System.out.println("After adding node " + newNode + ":");
+        printDistribution(grownCounts, ids.length);
+        System.out.printf("Moved: %d users (%.2f%%, ideal %.2f%%), from %s, to other nodes %d%n", moved,
+                100.0 * moved / Math.max(1, ids.length), 100.0 / grown.getAddresses().size(), movedFrom, misplaced);
+    }
+
+    private static void printDistribution(Map<Integer, Integer> counts, int total) {
+        double mean = (double) total / counts.size();
+        double variance = 0;
+        int max = 0;
+        System.out.printf("%6s %10s %8s %9s%n", "node", "users", "share", "vs mean");
+        for (Map.Entry<Integer, Integer> entry : counts.entrySet()) {
+            int count = entry.getValue();
+            max = Math.max(max, count);
+            variance += (count - mean) * (count - mean);
+            System.out.printf("%6d %10d %7.2f%% %+8.2f%%%n", entry.getKey(), count, 100.0 * count / Math.max(1, total),
+                    mean == 0 ? 0 : 100.0 * (count - mean) / mean);
+        }
+        double stddev = Math.sqrt(variance / counts.size());
+        System.out.printf("Skew: max/mean %.3f, stddev %.2f%% of mean%n", mean == 0 ? 0 : max / mean,
+                mean == 0 ? 0 : 100.0 * stddev / mean);
+    }
+
+    //读取数据库中的用户id（不含#Everyone）
+    private static long[] loadIds(List<String> databases) throws SQLException {
+        List<Long> ids = new ArrayList<>();
+        for (String database : databases) {
+            try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + database);
+                 Statement stmt = connection.createStatement();
+                 ResultSet rs = stmt.executeQuery("SELECT id FROM UserList WHERE id >= " + firstUserId + ";")) {
+                while (rs.next())
+                    ids.add(rs.getLong(1));
+            }
+        }
+        return ids.stream().mapToLong(Long::longValue).toArray();
+    }
+}
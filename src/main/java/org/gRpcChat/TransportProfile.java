@@ -0,0 +1,239 @@
+package org.gRpcChat;
+
+import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
+import io.grpc.netty.shaded.io.netty.channel.EventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.epoll.EpollSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.nio.NioEventLoopGroup;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.grpc.netty.shaded.io.netty.channel.socket.nio.NioSocketChannel;
+import io.grpc.netty.shaded.io.netty.util.concurrent.DefaultThreadFactory;
+import org.apache.commons.cli.CommandLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Netty传输配置：事件循环线程数、epoll/NIO、回调线程池、keepalive、最大消息与流控窗口
+//由预设（default, low-latency, high-fan-out）或properties文件加载，命令行参数可覆盖单项
+public class TransportProfile {
+    private final static Logger logger = LoggerFactory.getLogger(GRpcServer.class.getName());
+    private final static int cores = Runtime.getRuntime().availableProcessors();
+    private String name = "default";
+    private String type = "auto";//auto, epoll, nio
+    private int eventLoops = 0;//0为gRPC默认
+    private int executorThreads = 0;//0为gRPC默认的缓存线程池
+    private long keepAliveSeconds = 0;//0为不发送keepalive
+    private long keepAliveTimeoutSeconds = 20;
+    private int maxMessageBytes = 4 << 20;
+    private int flowControlWindow = 1 << 20;
+    //由构建的服务器/通道使用，shutdown时释放
+    private final List<EventLoopGroup> groups = new ArrayList<>();
+    private final List<ExecutorService> executors = new ArrayList<>();
+
+    //预设：low-latency 事件循环为CPU核数，固定的回调线程池，低keepalive间隔及时发现断线
+    //      high-fan-out 更多事件循环，更大的流控窗口以容纳群发推送的突发，更大的消息上限以容纳大的在线列表
+    public static TransportProfile preset(String name) {
+        TransportProfile profile = new TransportProfile();
+        profile.name = name;
+        switch (name) {
+            case "default" -> {
+            }
+            case "low-latency" -> {
+                profile.eventLoops = cores;
+                profile.executorThreads = Math.max(4, cores);
+                profile.keepAliveSeconds = 20;
+                profile.keepAliveTimeoutSeconds = 5;
+                profile.flowControlWindow = 1 << 20;
+            }
+            case "high-fan-out" -> {
+                profile.eventLoops = cores * 2;
+                profile.executorThreads = cores * 4;
+                profile.keepAliveSeconds = 60;
+                profile.maxMessageBytes = 16 << 20;
+                profile.flowControlWindow = 4 << 20;
+            }
+            default -> {
+                return null;
+            }
+        }
+        return profile;
+    }
+
+    //从properties文件加载，preset指定基础预设，其余键同命令行参数名
+    public static TransportProfile load(String path) {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(path)) {
+            properties.load(in);
+        } catch (IOException e) {
+            logger.error("Load Transport Profile " + path + " Error: " + e.getMessage());
+            return null;
+        }
+        TransportProfile profile = preset(properties.getProperty("preset", "default"));
+        if (profile == null) {
+            logger.error("Unknown Transport Preset: " + properties.getProperty("preset"));
+            return null;
+        }
+        profile.name = path;
+        for (String key : properties.stringPropertyNames()) {
+            if (!key.equals("preset") && !profile.set(key, properties.getProperty(key).trim()))
+                return null;
+        }
+        return profile;
+    }
+
+    //--transport为预设名或properties文件，之后用单项参数覆盖；参数错误时返回null
+    public static TransportProfile fromOptions(CommandLine result) {
+        TransportProfile profile = new TransportProfile();
+        if (result.hasOption("transport")) {
+            String value = result.getOptionValue("transport");
+            profile = value.endsWith(".properties") ? load(value) : preset(value);
+            if (profile == null) {
+                logger.error("Invalid Transport Profile: " + value);
+                return null;
+            }
+        }
+        for (String key : new String[]{"transport-type", "event-loops", "executor-threads", "keepalive",
+                "max-message", "flow-window"}) {
+            if (result.hasOption(key) && !profile.set(key, result.getOptionValue(key)))
+                return null;
+        }
+        return profile;
+    }
+
+    //设置单项（键同命令行参数名），值无效时返回false
+    public boolean set(String key, String value) {
+        try {
+            switch (key) {
+                case "transport-type" -> {
+                    if (!value.equals("auto") && !value.equals("epoll") && !value.equals("nio"))
+                        throw new IllegalArgumentException(value);
+                    type = value;
+                }
+                case "event-loops" -> eventLoops = Integer.parseInt(value);
+                case "executor-threads" -> executorThreads = Integer.parseInt(value);
+                case "keepalive" -> keepAliveSeconds = Long.parseLong(value);
+                case "keepalive-timeout" -> keepAliveTimeoutSeconds = Long.parseLong(value);
+                case "max-message" -> maxMessageBytes = Integer.parseInt(value) << 20;
+                case "flow-window" -> flowControlWindow = Integer.parseInt(value) << 10;
+                default -> throw new IllegalArgumentException("unknown key");
+            }
+        } catch (IllegalArgumentException e) {
+            logger.error("Invalid Transport Setting " + key + "=" + value + ": " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    private boolean useEpoll() {
+        if (type.equals("nio"))
+            return false;
+        if (!Epoll.isAvailable()) {
+            if (type.equals("epoll"))
+                logger.warn("Epoll Unavailable, Falling Back to NIO: " + Epoll.unavailabilityCause());
+            return false;
+        }
+        return true;
+    }
+
+    private EventLoopGroup group(int threads, String prefix) {
+        DefaultThreadFactory factory = new DefaultThreadFactory(prefix, true);
+        EventLoopGroup group = useEpoll() ? new EpollEventLoopGroup(threads, factory) : new NioEventLoopGroup(threads, factory);
+        groups.add(group);
+        return group;
+    }
+
+    private ExecutorService executor(String prefix) {
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(executorThreads, r -> {
+            Thread thread = new Thread(r, prefix + "-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        executors.add(executor);
+        return executor;
+    }
+
+    //服务器端
+    public NettyServerBuilder serverBuilder(int port) {
+        NettyServerBuilder builder = NettyServerBuilder.forPort(port)
+                .maxInboundMessageSize(maxMessageBytes)
+                .flowControlWindow(flowControlWindow);
+        if (eventLoops > 0 || !type.equals("auto")) {
+            builder.bossEventLoopGroup(group(1, "grpc-boss"))
+                    .workerEventLoopGroup(group(eventLoops, "grpc-worker"))
+                    .channelType(useEpoll() ? EpollServerSocketChannel.class : NioServerSocketChannel.class);
+        }
+        if (executorThreads > 0)
+            builder.executor(executor("grpc-server"));
+        if (keepAliveSeconds > 0) {
+            builder.keepAliveTime(keepAliveSeconds, TimeUnit.SECONDS)
+                    .keepAliveTimeout(keepAliveTimeoutSeconds, TimeUnit.SECONDS);
+        }
+        //接受使用任意预设的客户端的keepalive（gRPC默认最少5分钟一次，过于频繁会断开连接）
+        builder.permitKeepAliveTime(20, TimeUnit.SECONDS).permitKeepAliveWithoutCalls(true);
+        return builder;
+    }
+
+    //客户端（明文）
+    public NettyChannelBuilder channelBuilder(String target) {
+        return channelBuilder(target, null);
+    }
+
+    //executor不为null时回调在该线程池上执行（如ClientHub共享的线程），不使用配置的回调线程数
+    public NettyChannelBuilder channelBuilder(String target, Executor executor) {
+        NettyChannelBuilder builder = NettyChannelBuilder.forTarget(target)
+                .usePlaintext()
+                .maxInboundMessageSize(maxMessageBytes)
+                .flowControlWindow(flowControlWindow);
+        if (eventLoops > 0 || !type.equals("auto")) {
+            builder.eventLoopGroup(group(eventLoops, "grpc-client"))
+                    .channelType(useEpoll() ? EpollSocketChannel.class : NioSocketChannel.class);
+        }
+        if (executor != null)
+            builder.executor(executor);
+        else if (executorThreads > 0)
+            builder.executor(executor("grpc-client-executor"));
+        if (keepAliveSeconds > 0) {
+            builder.keepAliveTime(Math.max(keepAliveSeconds, 20), TimeUnit.SECONDS)//不低于服务器允许的间隔
+                    .keepAliveTimeout(keepAliveTimeoutSeconds, TimeUnit.SECONDS)
+                    .keepAliveWithoutCalls(true);
+        }
+        return builder;
+    }
+
+    //释放事件循环与线程池（服务器/通道关闭之后）
+    public void shutdown() {
+        for (EventLoopGroup group : groups)
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS);
+        for (ExecutorService executor : executors)
+            executor.shutdown();
+        groups.clear();
+        executors.clear();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name + "[type=" + (useEpoll() ? "epoll" : "nio") + ", eventLoops=" + (eventLoops > 0 ? eventLoops : "default")
+                + ", executorThreads=" + (executorThreads > 0 ? executorThreads : "default")
+                + ", keepAlive=" + keepAliveSeconds + "s, maxMessage=" + (maxMessageBytes >> 20)
+                + "MB, flowWindow=" + (flowControlWindow >> 10) + "KB]";
+    }
+}
@@ -2,7 +2,6 @@ package org.gRpcChat;
 
 import com.google.crypto.tink.CleartextKeysetHandle;
 import com.google.protobuf.ByteString;
-import io.grpc.stub.StreamObserver;
 
 import java.io.IOException;
 import java.security.GeneralSecurityException;
@@ -11,9 +10,13 @@ import java.util.Arrays;
 public class UserInfo {
     private long id = -1;
     private String name = null;
-    private boolean online = false;
+    private volatile boolean online = false;
     private ByteString pk = null;
-    private StreamObserver<Pack> stream = null;
+    private int features = 0;//客户端特性，每次登录时更新
+    private volatile OutboundQueue outbound = null;
+    private volatile int node = 0;//集群模式下用户所在的其他节点，0为本节点
+    private volatile UserInfoPack pack = null;//缓存的用户信息包
+    private volatile UserInfoPack summary = null;
 
     @Override
     public String toString() {
@@ -29,7 +32,7 @@ public class UserInfo {
             sb.append(pk.toString());
         }
         sb.append("\n")
-                .append("stream: ").append(stream).append("\n")
+                .append("queue : ").append(outbound).append("\n")
                 .append("-".repeat(10)).append("\n")
         ;
         return sb.toString();
@@ -41,6 +44,8 @@ public class UserInfo {
 
     public void setName(String name) {
         this.name = name;
+        this.pack = null;
+        this.summary = null;
     }
 
     public ByteString getPk() {
@@ -49,14 +54,46 @@ public class UserInfo {
 
     public void setPk(ByteString pk) {
         this.pk = pk;
+        this.pack = null;
+        this.summary = null;
     }
 
-    public StreamObserver<Pack> getStream() {
-        return stream;
+    public int getFeatures() {
+        return features;
     }
 
-    public void setStream(StreamObserver<Pack> stream) {
-        this.stream = stream;
+    public void setFeatures(int features) {
+        this.features = features;
+        this.pack = null;
+        this.summary = null;
+    }
+
+    public OutboundQueue getOutbound() {
+        return outbound;
+    }
+
+    public void setOutbound(OutboundQueue outbound) {
+        this.outbound = outbound;
+    }
+
+    public int getNode() {
+        return node;
+    }
+
+    public void setNode(int node) {
+        this.node = node;
+    }
+
+    //向用户推送消息（进入发送队列），用户已下线或消息被拒绝则返回false
+    public boolean send(Frame frame) {
+        OutboundQueue outbound = this.outbound;
+        if (outbound == null)
+            return false;
+        return outbound.offer(frame);
+    }
+
+    public boolean send(Pack pack) {
+        return send(Frame.of(pack));
     }
 
     public boolean isOnline() {
@@ -69,7 +106,7 @@ public class UserInfo {
 
     public void logout() {
         this.online = false;
-        this.stream = null;
+        this.outbound = null;
     }
 
     public long getId() {
@@ -78,5 +115,28 @@ public class UserInfo {
 
     public void setId(long id) {
         this.id = id;
+        this.pack = null;
+        this.summary = null;
+    }
+
+    //用户信息包(id, name, pk, features)，用于v1的在线列表与上线/下线通知，以及公钥获取
+    public UserInfoPack toPack() {
+        UserInfoPack pack = this.pack;
+        if (pack == null) {
+            pack = UserInfoPack.newBuilder().setId(id).setName(name).setPk(pk).setFeatures(features).build();
+            this.pack = pack;
+        }
+        return pack;
+    }
+
+    //用户摘要(id, name, fingerprint, features)，用于v2的在线列表与上线通知
+    public UserInfoPack toSummary() {
+        UserInfoPack summary = this.summary;
+        if (summary == null) {
+            summary = UserInfoPack.newBuilder().setId(id).setName(name)
+                    .setFingerprint(GRpcUtil.fingerprint(pk)).setFeatures(features).build();
+            this.summary = summary;
+        }
+        return summary;
     }
 }
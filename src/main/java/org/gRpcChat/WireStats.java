@@ -0,0 +1,87 @@
+package org.gRpcChat;
+
+import io.grpc.*;
+
+import java.util.concurrent.atomic.LongAdder;
+
+//客户端流量统计：拦截器为每个调用挂上StreamTracer，记录收发的gRPC消息数、线上字节数（压缩后）与压缩前字节数
+//用法：Channel channel = ClientInterceptors.intercept(managedChannel, wireStats);
+public class WireStats implements ClientInterceptor {
+    private final LongAdder sentMessages = new LongAdder();
+    private final LongAdder sentWireBytes = new LongAdder();
+    private final LongAdder sentBytes = new LongAdder();
+    private final LongAdder receivedMessages = new LongAdder();
+    private final LongAdder receivedWireBytes = new LongAdder();
+    private final LongAdder receivedBytes = new LongAdder();
+    private final ClientStreamTracer.Factory factory = new ClientStreamTracer.Factory() {
+        @Override
+        public ClientStreamTracer newClientStreamTracer(ClientStreamTracer.StreamInfo info, Metadata headers) {
+            return new ClientStreamTracer() {
+                @Override
+                public void outboundMessage(int seqNo) {
+                    sentMessages.increment();
+                }
+
+                @Override
+                public void outboundWireSize(long bytes) {
+                    sentWireBytes.add(bytes);
+                }
+
+                @Override
+                public void outboundUncompressedSize(long bytes) {
+                    sentBytes.add(bytes);
+                }
+
+                @Override
+                public void inboundMessage(int seqNo) {
+                    receivedMessages.increment();
+                }
+
+                @Override
+                public void inboundWireSize(long bytes) {
+                    receivedWireBytes.add(bytes);
+                }
+
+                @Override
+                public void inboundUncompressedSize(long bytes) {
+                    receivedBytes.add(bytes);
+                }
+            };
+        }
+    };
+
+    @Override
+    public <ReqT, RespT> ClientCall<ReqT, RespT> interceptCall(MethodDescriptor<ReqT, RespT> method,
+                                                               CallOptions callOptions, Channel next) {
+        return next.newCall(method, callOptions.withStreamTracerFactory(factory));
+    }
+
+    //当前计数：发送消息数、发送线上字节、发送压缩前字节、接收消息数、接收线上字节、接收压缩前字节
+    public long[] snapshot() {
+        return new long[]{sentMessages.sum(), sentWireBytes.sum(), sentBytes.sum(),
+                receivedMessages.sum(), receivedWireBytes.sum(), receivedBytes.sum()};
+    }
+
+    public long getSentMessages() {
+        return sentMessages.sum();
+    }
+
+    public long getSentWireBytes() {
+        return sentWireBytes.sum();
+    }
+
+    public long getReceivedMessages() {
+        return receivedMessages.sum();
+    }
+
+    public long getReceivedWireBytes() {
+        return receivedWireBytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "sent=" + sentMessages.sum() + " msgs/" + sentWireBytes.sum() + " B (uncompressed " + sentBytes.sum()
+                + " B), received=" + receivedMessages.sum() + " msgs/" + receivedWireBytes.sum() + " B (uncompressed "
+                + receivedBytes.sum() + " B)";
+    }
+}
@@ -0,0 +1,31 @@
+package org.gRpcChat;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AuthCacheTest {
+    //直接比较加盐哈希，错误的skHash不能通过
+    @Test
+    public void matchesSaltedHash() {
+        String salted = GRpcUtil.addSalt("skHash", "salt");
+        assertTrue(AuthCache.matches("skHash", "salt", salted));
+        assertFalse(AuthCache.matches("other", "salt", salted));
+        assertFalse(AuthCache.matches(null, "salt", salted));
+    }
+
+    //未命中后写入缓存，之后的验证才计为命中
+    @Test
+    public void countsOneMissThenHits() {
+        AuthCache cache = new AuthCache(16);
+        assertEquals(AuthCache.Result.MISS, cache.verify(1, "skHash"));
+        cache.put(1, "name", "salt", GRpcUtil.addSalt("skHash", "salt"));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(AuthCache.Result.HIT_OK, cache.verify(1, "skHash"));
+        assertEquals(AuthCache.Result.HIT_FAILED, cache.verify(1, "other"));
+        assertEquals(2, cache.getHits());
+    }
+}
@@ -0,0 +1,52 @@
+package org.gRpcChat;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class FanOutEngineTest {
+    //多次群发给远多于shardSize的接收者，接收者数组每次顺序不同，每个接收者仍按发送顺序收到
+    @Test
+    public void keepsOrderPerRecipient() throws Exception {
+        int users = 2000;
+        int broadcasts = 200;
+        FanOutEngine engine = new FanOutEngine(4, 16);
+        List<UserInfo> recipients = new ArrayList<>();
+        List<StubStream> streams = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            StubStream stream = new StubStream(true);
+            UserInfo userInfo = new UserInfo();
+            userInfo.setId(1000 + i);
+            userInfo.setOutbound(new OutboundQueue(stream, broadcasts, OutboundQueue.OverflowPolicy.DISCONNECT, null));
+            userInfo.login();
+            recipients.add(userInfo);
+            streams.add(stream);
+        }
+        List<CompletableFuture<Long>> done = new ArrayList<>();
+        for (int i = 0; i < broadcasts; i++) {
+            Collections.shuffle(recipients);//登录/登出后快照中的位置会变化
+            Frame frame = Protocol.broadcast(1, ByteString.copyFromUtf8(Integer.toString(i)));
+            done.add(engine.fanOut(frame, recipients.toArray(new UserInfo[0]), id -> false));
+        }
+        CompletableFuture.allOf(done.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        engine.shutdown();
+        int[] expected = new int[broadcasts];
+        Arrays.setAll(expected, i -> i);
+        for (StubStream stream : streams)
+            assertEquals(Arrays.toString(expected), Arrays.toString(received(stream)));
+        assertEquals((long) users * broadcasts, engine.getRecipientCount());
+    }
+
+    //stream收到的群发序号
+    private static int[] received(StubStream stream) {
+        return stream.sent().stream().mapToInt(frame -> Integer.parseInt(frame.toPack().getMessage().toStringUtf8())).toArray();
+    }
+}
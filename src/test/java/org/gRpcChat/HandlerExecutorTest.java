@@ -0,0 +1,48 @@
+package org.gRpcChat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class HandlerExecutorTest {
+    //其他线程提交的任务不与stream正在回调线程上执行的任务并发，排在其后执行
+    @Test
+    public void detachedTaskWaitsForInlineTask() throws Exception {
+        HandlerExecutor handlers = new HandlerExecutor(HandlerExecutor.Mode.POOL, 2);
+        HandlerExecutor.Stream serial = handlers.newStream();
+        CountDownLatch detached = new CountDownLatch(1);
+        serial.execute(() -> {
+            Thread other = new Thread(() -> handlers.executeDetached(serial, detached::countDown));
+            other.start();
+            try {
+                other.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            assertEquals(1, detached.getCount());
+        }, false);
+        assertTrue(detached.await(5, TimeUnit.SECONDS));
+        handlers.shutdown();
+    }
+
+    //INLINE模式下其他线程提交的任务也不在提交线程上执行
+    @Test
+    public void detachedTaskLeavesSubmitterInInlineMode() throws Exception {
+        HandlerExecutor handlers = new HandlerExecutor(HandlerExecutor.Mode.INLINE, 0);
+        AtomicReference<Thread> ranOn = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+        handlers.executeDetached(handlers.newStream(), () -> {
+            ranOn.set(Thread.currentThread());
+            done.countDown();
+        });
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertNotEquals(Thread.currentThread(), ranOn.get());
+        handlers.shutdown();
+    }
+}
@@ -0,0 +1,23 @@
+package org.gRpcChat;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OrderedExecutorTest {
+    //任务抛出异常后，同一条带上之后的任务仍然执行
+    @Test
+    public void survivesFailingTask() throws Exception {
+        OrderedExecutor executor = new OrderedExecutor(1, 16, "test");
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(1, () -> {
+            throw new IllegalStateException("task failed");
+        });
+        executor.execute(1, done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        executor.shutdown();
+    }
+}
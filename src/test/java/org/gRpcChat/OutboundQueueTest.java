@@ -0,0 +1,57 @@
+package org.gRpcChat;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class OutboundQueueTest {
+    //溢出文件达到上限后断开连接，不再继续写入磁盘
+    @Test
+    public void spillLimitDisconnects(@TempDir File spillDir) {
+        StubStream stream = new StubStream();
+        stream.setReady(false);
+        OutboundQueue outbound = new OutboundQueue(stream, 1, OutboundQueue.OverflowPolicy.SPILL_TO_DISK, spillDir);
+        Frame frame = Protocol.broadcast(1, ByteString.copyFrom(new byte[1 << 20]));
+        int accepted = 0;
+        while (outbound.offer(frame))
+            accepted++;
+        assertTrue(accepted > 1 && accepted < 100, "accepted " + accepted);
+        assertNotNull(stream.getError());
+        assertEquals(0, outbound.depth());
+        assertFalse(outbound.offer(frame));
+        assertEquals(0, spillDir.list().length);
+    }
+
+    //启动时清理遗留的溢出文件，不删除其他文件
+    @Test
+    public void clearSpillDirRemovesLeftovers(@TempDir File spillDir) throws Exception {
+        File leftover = File.createTempFile("outbound-", ".spill", spillDir);
+        File other = new File(spillDir, "other.txt");
+        assertTrue(other.createNewFile());
+        OutboundQueue.clearSpillDir(spillDir);
+        assertFalse(leftover.exists());
+        assertTrue(other.exists());
+    }
+
+    //结束stream前的发送失败后不再调用onCompleted
+    @Test
+    public void failedSendDoesNotComplete() {
+        StubStream stream = new StubStream();
+        stream.setReady(false);
+        OutboundQueue outbound = new OutboundQueue(stream, 16, OutboundQueue.OverflowPolicy.DROP_OLDEST, null);
+        assertTrue(outbound.offer(Protocol.broadcast(1, ByteString.copyFromUtf8("m"))));
+        outbound.complete();
+        stream.setReady(true);
+        stream.setFailSend(true);
+        outbound.drain();
+        assertFalse(stream.isCompleted());
+        assertEquals(1, outbound.droppedCount() + outbound.sentCount());
+    }
+}
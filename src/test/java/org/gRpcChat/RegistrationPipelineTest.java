@@ -0,0 +1,27 @@
+package org.gRpcChat;
+
+import com.google.protobuf.ByteString;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class RegistrationPipelineTest {
+    //提交失败（此处数据库为null）时返回-1，写线程继续处理之后的注册
+    @Test
+    public void failedBatchCompletesWithError() throws Exception {
+        RegistrationPipeline pipeline = new RegistrationPipeline(null, 16);
+        assertEquals(-1L, pipeline.register("a", ByteString.EMPTY, "skHash").get(5, TimeUnit.SECONDS));
+        assertEquals(-1L, pipeline.register("b", ByteString.EMPTY, "skHash").get(5, TimeUnit.SECONDS));
+        pipeline.shutdown();
+    }
+
+    //停止后提交的注册直接返回-1
+    @Test
+    public void registerAfterShutdownCompletes() throws Exception {
+        RegistrationPipeline pipeline = new RegistrationPipeline(null, 16);
+        pipeline.shutdown();
+        assertEquals(-1L, pipeline.register("a", ByteString.EMPTY, "skHash").get(5, TimeUnit.SECONDS));
+    }
+}
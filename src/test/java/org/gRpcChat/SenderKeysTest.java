@@ -0,0 +1,69 @@
+package org.gRpcChat;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SenderKeysTest {
+    private final static long room = 7;
+    private final static long alice = 1;
+    private final static long bob = 2;
+    private SenderKeys aliceKeys;
+    private SenderKeys bobKeys;
+
+    @BeforeEach
+    public void distribute() throws GeneralSecurityException {
+        aliceKeys = new SenderKeys();
+        bobKeys = new SenderKeys();
+        aliceKeys.setMembers(room, List.of(alice, bob));
+        assertEquals(List.of(bob), aliceKeys.pendingMembers(room, alice, id -> true));
+        bobKeys.accept(alice, aliceKeys.distribution(room));
+        aliceKeys.distributed(room, bob);
+    }
+
+    //后发的消息先到，之前跳过的消息迟到后仍可解密
+    @Test
+    public void decryptsLateMessages() throws GeneralSecurityException {
+        byte[][] messages = new byte[4][];
+        for (int i = 0; i < messages.length; i++)
+            messages[i] = aliceKeys.encrypt(room, alice, ("m" + i).getBytes(StandardCharsets.UTF_8));
+        assertEquals("m3", decrypt(messages[3]));
+        assertEquals("m1", decrypt(messages[1]));
+        assertEquals("m0", decrypt(messages[0]));
+        assertEquals("m2", decrypt(messages[2]));
+        assertEquals(4, bobKeys.getDecrypted());
+    }
+
+    //消息密钥用过即删除，重放失败
+    @Test
+    public void rejectsReplay() throws GeneralSecurityException {
+        byte[] first = aliceKeys.encrypt(room, alice, "m0".getBytes(StandardCharsets.UTF_8));
+        byte[] second = aliceKeys.encrypt(room, alice, "m1".getBytes(StandardCharsets.UTF_8));
+        assertEquals("m1", decrypt(second));
+        assertEquals("m0", decrypt(first));
+        assertThrows(GeneralSecurityException.class, () -> decrypt(first));
+        assertThrows(GeneralSecurityException.class, () -> decrypt(second));
+    }
+
+    //密文被篡改时不保存跳过的密钥，链不推进
+    @Test
+    public void tamperedMessageKeepsChain() throws GeneralSecurityException {
+        byte[] first = aliceKeys.encrypt(room, alice, "m0".getBytes(StandardCharsets.UTF_8));
+        byte[] second = aliceKeys.encrypt(room, alice, "m1".getBytes(StandardCharsets.UTF_8));
+        byte[] tampered = second.clone();
+        tampered[tampered.length - 1] ^= 1;
+        assertThrows(GeneralSecurityException.class, () -> decrypt(tampered));
+        assertEquals("m0", decrypt(first));
+        assertEquals("m1", decrypt(second));
+    }
+
+    private String decrypt(byte[] message) throws GeneralSecurityException {
+        return new String(bobKeys.decrypt(alice, room, message), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,106 @@
+package org.gRpcChat;
+
+import com.google.crypto.tink.HybridDecrypt;
+import com.google.crypto.tink.HybridEncrypt;
+import com.google.crypto.tink.KeyTemplates;
+import com.google.crypto.tink.KeysetHandle;
+import com.google.crypto.tink.hybrid.HybridConfig;
+import com.google.protobuf.InvalidProtocolBufferException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SessionCipherTest {
+    private final static byte[] contextInfo = "gRpcChat".getBytes(StandardCharsets.UTF_8);
+    private final static long alice = 1;
+    private final static long bob = 2;
+    private final static long carol = 3;
+    private SessionCipher aliceSessions;
+    private SessionCipher bobSessions;
+    private KeysetHandle alicePk;
+    private KeysetHandle bobPk;
+
+    @BeforeEach
+    public void keys() throws GeneralSecurityException {
+        HybridConfig.register();
+        KeysetHandle aliceSk = KeysetHandle.generateNew(KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM"));
+        KeysetHandle bobSk = KeysetHandle.generateNew(KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM"));
+        alicePk = aliceSk.getPublicKeysetHandle();
+        bobPk = bobSk.getPublicKeysetHandle();
+        aliceSessions = new SessionCipher(aliceSk.getPrimitive(HybridDecrypt.class), contextInfo);
+        bobSessions = new SessionCipher(bobSk.getPrimitive(HybridDecrypt.class), contextInfo);
+    }
+
+    //会话的第一条消息丢失，之后的消息仍带init，接收者能建立会话并解密
+    @Test
+    public void recoversFromLostFirstMessage() throws GeneralSecurityException {
+        toBob("lost");
+        assertEquals("second", fromAlice(toBob("second")));
+        assertEquals("third", fromAlice(toBob("third")));
+        assertEquals(1, bobSessions.getAccepted());
+    }
+
+    //对方确认收到会话后不再附带init
+    @Test
+    public void stopsSendingInitAfterAck() throws GeneralSecurityException {
+        byte[] first = toBob("hello");
+        assertTrue(hasInit(first));
+        assertEquals("hello", fromAlice(first));
+        byte[] reply = bobSessions.encrypt(bob, alice, alicePk, alicePk.getPrimitive(HybridEncrypt.class),
+                "hi".getBytes(StandardCharsets.UTF_8));
+        assertEquals("hi", new String(aliceSessions.decrypt(bob, reply), StandardCharsets.UTF_8));
+        byte[] next = toBob("again");
+        assertFalse(hasInit(next));
+        assertEquals("again", fromAlice(next));
+        assertEquals(1, aliceSessions.getOpened());
+    }
+
+    //接收者淘汰会话后不再确认，发送者之后的消息重新带init
+    @Test
+    public void resendsInitAfterEviction() throws GeneralSecurityException {
+        KeysetHandle bobSk = KeysetHandle.generateNew(KeyTemplates.get("ECIES_P256_COMPRESSED_HKDF_HMAC_SHA256_AES128_GCM"));
+        bobPk = bobSk.getPublicKeysetHandle();
+        bobSessions = new SessionCipher(bobSk.getPrimitive(HybridDecrypt.class), contextInfo, 1);
+        assertEquals("hello", fromAlice(toBob("hello")));
+        assertEquals("hi", new String(aliceSessions.decrypt(bob, toAlice("hi")), StandardCharsets.UTF_8));
+        assertFalse(hasInit(toBob("confirmed")));
+        //carol的会话淘汰了alice发往bob的会话
+        SessionCipher carolSessions = new SessionCipher(null, contextInfo);
+        byte[] fromCarol = carolSessions.encrypt(carol, bob, bobPk, bobPk.getPrimitive(HybridEncrypt.class),
+                "carol".getBytes(StandardCharsets.UTF_8));
+        assertEquals("carol", new String(bobSessions.decrypt(carol, fromCarol), StandardCharsets.UTF_8));
+        aliceSessions.decrypt(bob, toAlice("no ack"));
+        byte[] next = toBob("again");
+        assertTrue(hasInit(next));
+        assertEquals("again", fromAlice(next));
+    }
+
+    private byte[] toAlice(String text) throws GeneralSecurityException {
+        return bobSessions.encrypt(bob, alice, alicePk, alicePk.getPrimitive(HybridEncrypt.class),
+                text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private byte[] toBob(String text) throws GeneralSecurityException {
+        return aliceSessions.encrypt(alice, bob, bobPk, bobPk.getPrimitive(HybridEncrypt.class),
+                text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String fromAlice(byte[] envelope) throws GeneralSecurityException {
+        return new String(bobSessions.decrypt(alice, envelope), StandardCharsets.UTF_8);
+    }
+
+    private static boolean hasInit(byte[] envelope) throws GeneralSecurityException {
+        try {
+            return !SessionMessage.parseFrom(ByteBuffer.wrap(envelope, 1, envelope.length - 1)).getInit().isEmpty();
+        } catch (InvalidProtocolBufferException e) {
+            throw new GeneralSecurityException(e);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.gRpcChat;
+
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//测试与基准测试共用的服务端stream：可切换是否可写、发送是否失败，可选记录发出的消息（基准测试中丢弃）
+public class StubStream extends ServerCallStreamObserver<Frame> {
+    private final List<Frame> sent;//null为不记录
+    private volatile boolean ready = true;
+    private volatile boolean failSend = false;
+    private volatile boolean completed = false;
+    private volatile Throwable error = null;
+
+    //始终可写、丢弃消息
+    public StubStream() {
+        this(false);
+    }
+
+    public StubStream(boolean record) {
+        this.sent = record ? new ArrayList<>() : null;
+    }
+
+    public void setReady(boolean ready) {
+        this.ready = ready;
+    }
+
+    //之后的onNext抛出异常，如同调用已被取消
+    public void setFailSend(boolean failSend) {
+        this.failSend = failSend;
+    }
+
+    //已记录的消息
+    public synchronized List<Frame> sent() {
+        return new ArrayList<>(sent);
+    }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    public Throwable getError() {
+        return error;
+    }
+
+    @Override
+    public void onNext(Frame value) {
+        if (failSend)
+            throw new IllegalStateException("call already closed");
+        if (sent != null) {
+            synchronized (this) {
+                sent.add(value);
+            }
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        error = t;
+    }
+
+    @Override
+    public void onCompleted() {
+        completed = true;
+    }
+
+    @Override
+    public boolean isReady() {
+        return ready;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public void setOnCancelHandler(Runnable onCancelHandler) {
+    }
+
+    @Override
+    public void setCompression(String compression) {
+    }
+
+    @Override
+    public void setOnReadyHandler(Runnable onReadyHandler) {
+    }
+
+    @Override
+    public void disableAutoInboundFlowControl() {
+    }
+
+    @Override
+    public void request(int count) {
+    }
+
+    @Override
+    public void setMessageCompression(boolean enable) {
+    }
+}